@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sun.management.ThreadMXBean;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Benchmarks of the throughput and allocations of {@link DownloadEngine}, for plain and
+ * gzip-encoded content.
+ *
+ * <p>Each case is warmed up before being measured over several iterations. Allocations are
+ * measured with the allocation counter of the host JVM, when it provides one.
+ */
+public class DownloadEngineBenchmark {
+    private static final int[] CONTENT_SIZES = { 65536, 1048576, 16777216 };
+    private static final int[] BUFFER_SIZES = { 1500, 16384, 65536 };
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_TIME_NS = 2_000_000_000L;
+
+    @NonNull
+    private final byte[] mContent;
+    @NonNull
+    private final byte[] mCompressedContent;
+    @NonNull
+    private final DownloadEngine mEngine;
+
+    // Written by sinks and progress callbacks, so that their work is not optimized away
+    private volatile long mSink;
+
+    /**
+     * A case to measure: one transfer of the content.
+     */
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    private class SinkProgress implements DownloadEngine.Progress {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void onBytesTransferred(long bytes, long nowMs) {
+            mSink += bytes;
+        }
+
+        @Override
+        public long getMaxReadRate() {
+            return DownloadEngine.RATE_UNLIMITED;
+        }
+
+        @Override
+        public void onProgress(@Nullable Integer progress) {
+            if (progress != null) mSink += progress;
+        }
+    }
+
+    private DownloadEngineBenchmark(int contentSize, int bufferSize) throws IOException {
+        // Half random, half repeated bytes, so that compression is realistic
+        mContent = new byte[contentSize];
+        new Random(42).nextBytes(mContent);
+        for (int i = 0; i < contentSize; i += 2) {
+            mContent[i] = 'a';
+        }
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(mContent);
+        }
+        mCompressedContent = compressed.toByteArray();
+        mEngine = new DownloadEngine(System::currentTimeMillis, bufferSize);
+    }
+
+    private void transferPlain() throws IOException {
+        final DownloadEngine.Source source =
+                DownloadEngine.streamSource(new ByteArrayInputStream(mContent));
+        mEngine.transfer(source, (buffer, offset, count) -> mSink += buffer[offset],
+                mContent.length, new SinkProgress());
+    }
+
+    private void transferGzip() throws IOException {
+        final CountingInputStream wireStream =
+                new CountingInputStream(new ByteArrayInputStream(mCompressedContent));
+        final DownloadEngine.Source source =
+                DownloadEngine.decodingSource(new GZIPInputStream(wireStream), wireStream);
+        mEngine.transfer(source, (buffer, offset, count) -> mSink += buffer[offset],
+                mCompressedContent.length, new SinkProgress());
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread, or -1 if the JVM does not count
+     * them.
+     */
+    private static long getAllocatedBytes() {
+        // Allocations are only counted by the com.sun.management extension of the bean
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) return -1;
+        final ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void measure(@NonNull String name, int contentSize, int bufferSize,
+            @NonNull Operation operation) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+            final long startAllocated = getAllocatedBytes();
+            final long startNs = System.nanoTime();
+            long ops = 0;
+            long elapsedNs;
+            do {
+                operation.run();
+                ops++;
+                elapsedNs = System.nanoTime() - startNs;
+            } while (elapsedNs < ITERATION_TIME_NS);
+            final long allocated = getAllocatedBytes() - startAllocated;
+            if (i < WARMUP_ITERATIONS) continue;
+            System.out.println(String.format("%s content %d buffer %d: %.1f ops/s, %d B/op",
+                    name, contentSize, bufferSize, ops * 1e9 / elapsedNs,
+                    startAllocated < 0 ? -1 : allocated / ops));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (int contentSize : CONTENT_SIZES) {
+            for (int bufferSize : BUFFER_SIZES) {
+                final DownloadEngineBenchmark benchmark =
+                        new DownloadEngineBenchmark(contentSize, bufferSize);
+                measure("transferPlain", contentSize, bufferSize, benchmark::transferPlain);
+                measure("transferGzip", contentSize, bufferSize, benchmark::transferGzip);
+            }
+        }
+    }
+}
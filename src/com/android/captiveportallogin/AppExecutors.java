@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Executors shared by all components of the app, so that background threads are reused, named
+ * and bounded.
+ *
+ * <p>Tests can replace the instance with {@link #setInstanceForTest} to control scheduling.
+ */
+class AppExecutors {
+    // Probes are serialized by ProbeScheduler. The second thread serves probes from another
+    // activity instance while the previous one finishes, and short tasks like delayed reports or
+    // decoding inline downloads.
+    private static final int MAX_PROBE_THREADS = 2;
+    // Endpoints raced by each probe, up to 4, on their own executor: probes block until the race
+    // completes, so endpoint probes queued behind blocked probes would never run.
+    private static final int MAX_ENDPOINT_PROBE_THREADS = 8;
+    // Download workers of each network. Each download lane caps its own concurrency, and the
+    // pool grows with the number of lanes, so that workers blocked on a stalled network do not
+    // hold threads needed by other networks.
+    private static final int DOWNLOAD_THREADS_PER_LANE =
+            DownloadConcurrencyController.MAX_CONCURRENCY;
+    // Connection attempts raced by DualStackConnector for probes and downloads. They only last
+    // until a connection is established, and queue if all threads are busy.
+    private static final int MAX_CONNECT_THREADS = 8;
+
+    @GuardedBy("AppExecutors.class")
+    private static AppExecutors sInstance;
+
+    @NonNull
+    private final ScheduledExecutorService mProbeExecutor;
+    @NonNull
+    private final ScheduledExecutorService mEndpointProbeExecutor;
+    @NonNull
+    private final ScheduledExecutorService mDownloadExecutor;
+    @NonNull
+    private final ScheduledExecutorService mConnectExecutor;
+
+    @VisibleForTesting
+    AppExecutors(@NonNull ScheduledExecutorService probeExecutor,
+            @NonNull ScheduledExecutorService endpointProbeExecutor,
+            @NonNull ScheduledExecutorService downloadExecutor,
+            @NonNull ScheduledExecutorService connectExecutor) {
+        mProbeExecutor = probeExecutor;
+        mEndpointProbeExecutor = endpointProbeExecutor;
+        mDownloadExecutor = downloadExecutor;
+        mConnectExecutor = connectExecutor;
+    }
+
+    /**
+     * Get the executors of the current process, creating them if needed.
+     */
+    @NonNull
+    static synchronized AppExecutors getInstance() {
+        if (sInstance == null) {
+            sInstance = new AppExecutors(
+                    new InstrumentedExecutor("CaptivePortalProbe", MAX_PROBE_THREADS),
+                    new InstrumentedExecutor("EndpointProbe", MAX_ENDPOINT_PROBE_THREADS),
+                    new InstrumentedExecutor("DownloadWorker", DOWNLOAD_THREADS_PER_LANE),
+                    new InstrumentedExecutor("ConnectAttempt", MAX_CONNECT_THREADS));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replace the executors of the current process, or reset them to the default if null.
+     */
+    @VisibleForTesting
+    static synchronized void setInstanceForTest(AppExecutors executors) {
+        sInstance = executors;
+    }
+
+    /**
+     * Get the executor running captive portal probes.
+     */
+    @NonNull
+    ScheduledExecutorService getProbeExecutor() {
+        return mProbeExecutor;
+    }
+
+    /**
+     * Get the executor running the probes of each endpoint raced by a captive portal probe.
+     * Captive portal probes block on these, so they must not run on the same executor.
+     */
+    @NonNull
+    ScheduledExecutorService getEndpointProbeExecutor() {
+        return mEndpointProbeExecutor;
+    }
+
+    /**
+     * Get the executor running download workers.
+     */
+    @NonNull
+    ScheduledExecutorService getDownloadExecutor() {
+        return mDownloadExecutor;
+    }
+
+    /**
+     * Size the download executor for the number of download lanes that currently exist.
+     */
+    void setDownloadLanes(int lanes) {
+        if (mDownloadExecutor instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) mDownloadExecutor).setCorePoolSize(
+                    Math.max(1, lanes) * DOWNLOAD_THREADS_PER_LANE);
+        }
+    }
+
+    /**
+     * Get the executor running connection attempts. Callers of other executors block on these
+     * attempts, so they must not run on the same executor.
+     */
+    @NonNull
+    ScheduledExecutorService getConnectExecutor() {
+        return mConnectExecutor;
+    }
+
+    /**
+     * Dump the metrics of the executors for debugging.
+     */
+    void dump(@NonNull PrintWriter writer) {
+        for (ScheduledExecutorService executor : new ScheduledExecutorService[] {
+                mProbeExecutor, mEndpointProbeExecutor, mDownloadExecutor, mConnectExecutor }) {
+            if (executor instanceof InstrumentedExecutor) {
+                ((InstrumentedExecutor) executor).dump(writer);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client for the Captive Portal API of a network, as specified in RFC 8908.
+ *
+ * <p>Networks advertise the URL of the API with DHCP or router advertisement options (RFC 8910).
+ * The API returns a small JSON document describing whether the network is still captive, which is
+ * cheaper and more reliable than inferring it from the responses to captive portal probes.
+ */
+class CaptivePortalApi {
+    private static final String TAG = CaptivePortalApi.class.getSimpleName();
+    private static final boolean DBG = true;
+
+    @VisibleForTesting
+    static final String CAPTIVE_JSON_MEDIA_TYPE = "application/captive+json";
+    // The API state is a few fields: anything larger is not a valid response
+    private static final int MAX_RESPONSE_SIZE = 16 * 1024;
+    static final long SECONDS_REMAINING_UNKNOWN = -1;
+
+    /**
+     * State of the network reported by the API.
+     */
+    static final class State {
+        final boolean mCaptive;
+        // Seconds until the session expires, or SECONDS_REMAINING_UNKNOWN
+        final long mSecondsRemaining;
+
+        State(boolean captive, long secondsRemaining) {
+            mCaptive = captive;
+            mSecondsRemaining = secondsRemaining;
+        }
+
+        @Override
+        public String toString() {
+            return "captive=" + mCaptive + " seconds-remaining=" + mSecondsRemaining;
+        }
+    }
+
+    @NonNull
+    private final URL mApiUrl;
+    @NonNull
+    private final ProbeRacer.Connector mConnector;
+    @Nullable
+    private final String mUserAgent;
+    private final int mTimeoutMs;
+
+    /**
+     * Create a client.
+     * @param apiUrl URL of the API. RFC 8908 requires it to use HTTPS.
+     * @param connector Connector opening connections on the network.
+     */
+    CaptivePortalApi(@NonNull URL apiUrl, @NonNull ProbeRacer.Connector connector,
+            @Nullable String userAgent, int timeoutMs) {
+        mApiUrl = apiUrl;
+        mConnector = connector;
+        mUserAgent = userAgent;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Query the state of the network.
+     * @return The state, or null if the API could not be queried or returned an invalid response.
+     */
+    @Nullable
+    State fetchState() {
+        HttpURLConnection urlConnection = null;
+        try {
+            urlConnection = (HttpURLConnection) mConnector.openConnection(mApiUrl);
+            urlConnection.setInstanceFollowRedirects(false);
+            urlConnection.setConnectTimeout(mTimeoutMs);
+            urlConnection.setReadTimeout(mTimeoutMs);
+            urlConnection.setUseCaches(false);
+            urlConnection.setRequestProperty("Accept", CAPTIVE_JSON_MEDIA_TYPE);
+            if (mUserAgent != null) {
+                urlConnection.setRequestProperty("User-Agent", mUserAgent);
+            }
+            final int httpResponseCode = urlConnection.getResponseCode();
+            if (httpResponseCode != HttpURLConnection.HTTP_OK) {
+                if (DBG) Log.d(TAG, "API at " + mApiUrl + " ret=" + httpResponseCode);
+                return null;
+            }
+            final State state = parseState(readBody(urlConnection.getInputStream()));
+            if (DBG) Log.d(TAG, "API at " + mApiUrl + " state: " + state);
+            return state;
+        } catch (IOException | ClassCastException e) {
+            if (DBG) Log.d(TAG, "API at " + mApiUrl + " failed: " + e);
+            return null;
+        } finally {
+            if (urlConnection != null) urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Parse the JSON state returned by the API.
+     * @return The state, or null if the document is invalid.
+     */
+    @VisibleForTesting
+    @Nullable
+    static State parseState(@Nullable String json) {
+        if (json == null) return null;
+        try {
+            final JSONObject state = new JSONObject(json);
+            // "captive" is the only required field
+            return new State(state.getBoolean("captive"),
+                    state.optLong("seconds-remaining", SECONDS_REMAINING_UNKNOWN));
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid API state: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Nullable
+    private static String readBody(@NonNull InputStream is) throws IOException {
+        try (InputStream in = is) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_RESPONSE_SIZE) return null;
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
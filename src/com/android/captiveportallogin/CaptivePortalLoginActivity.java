@@ -34,6 +34,7 @@ import android.graphics.Bitmap;
 import android.net.CaptivePortal;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
@@ -46,6 +47,8 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.DeviceConfig;
 import android.provider.MediaStore;
@@ -76,22 +79,30 @@ import android.widget.TextView;
 
 import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.annotation.VisibleForTesting;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CaptivePortalLoginActivity extends Activity {
     private static final String TAG = CaptivePortalLoginActivity.class.getSimpleName();
@@ -99,11 +110,40 @@ public class CaptivePortalLoginActivity extends Activity {
     private static final boolean VDBG = false;
 
     private static final int SOCKET_TIMEOUT_MS = 10000;
+    // Give time for the captive portal to open after a page load, and collapse the probes
+    // requested by the successive page loads of redirect chains.
+    public static final String CAPTIVE_PORTAL_PROBE_DEBOUNCE_MS =
+            "captive_portal_probe_debounce_ms";
+    private static final int DEFAULT_PROBE_DEBOUNCE_MS = 1000;
+    // Probes while the user is idle on a page start after the minimum delay, and back off
+    // exponentially up to the maximum delay.
+    public static final String CAPTIVE_PORTAL_PROBE_IDLE_MIN_DELAY_MS =
+            "captive_portal_probe_idle_min_delay_ms";
+    private static final int DEFAULT_PROBE_IDLE_MIN_DELAY_MS = 5000;
+    public static final String CAPTIVE_PORTAL_PROBE_IDLE_MAX_DELAY_MS =
+            "captive_portal_probe_idle_max_delay_ms";
+    private static final int DEFAULT_PROBE_IDLE_MAX_DELAY_MS = 60_000;
     public static final String HTTP_LOCATION_HEADER_NAME = "Location";
     private static final String DEFAULT_CAPTIVE_PORTAL_HTTP_URL =
             "http://connectivitycheck.gstatic.com/generate_204";
     public static final String DISMISS_PORTAL_IN_VALIDATED_NETWORK =
             "dismiss_portal_in_validated_network";
+    public static final String DOWNLOAD_TO_DOWNLOADS_COLLECTION =
+            "captive_portal_download_to_downloads_collection";
+    public static final String DOWNLOAD_IN_SEPARATE_PROCESS =
+            "captive_portal_download_in_separate_process";
+    // Additional probe endpoints, raced with the URL provided by the system
+    public static final String CAPTIVE_PORTAL_HTTPS_URL = "captive_portal_https_url";
+    public static final String CAPTIVE_PORTAL_OTHER_FALLBACK_URLS =
+            "captive_portal_other_fallback_urls";
+    public static final String CAPTIVE_PORTAL_FALLBACK_PROBE_SPECS =
+            "captive_portal_fallback_probe_specs";
+    private static final int MAX_PROBE_ENDPOINTS = 4;
+    // Time during which a probe result is reused by following probes, unless the network or
+    // the page changes in the meantime
+    public static final String CAPTIVE_PORTAL_PROBE_CACHE_TTL_MS =
+            "captive_portal_probe_cache_ttl_ms";
+    private static final int DEFAULT_PROBE_CACHE_TTL_MS = 2000;
 
     private enum Result {
         DISMISSED(MetricsEvent.ACTION_CAPTIVE_PORTAL_LOGIN_RESULT_DISMISSED),
@@ -125,31 +165,99 @@ public class CaptivePortalLoginActivity extends Activity {
     private DevicePolicyManager mDpm;
     private WifiManager mWifiManager;
     private boolean mLaunchBrowser = false;
+    // Whether the user asked to pick the output file of downloads, when downloads would otherwise
+    // be saved directly in the Downloads collection.
+    private boolean mAskDownloadLocation = false;
+    // Read once, so that all intents for a download go to the same service
+    private boolean mDownloadInSeparateProcess = false;
     private MyWebViewClient mWebViewClient;
     private SwipeRefreshLayout mSwipeRefreshLayout;
+    // Time at which the activity was created, to measure how long users take to log in
+    private long mCreateTimeMs;
     // Ensures that done() happens once exactly, handling concurrent callers with atomic operations.
     private final AtomicBoolean isDone = new AtomicBoolean(false);
+    private ProbeScheduler mProbeScheduler;
+    private ProbeCadence mProbeCadence;
+    // Opens probe connections on mNetwork, racing IPv6 and IPv4
+    private DualStackConnector mConnector;
+    private ProbeRacer mProbeRacer;
+    private ProbeResultCache mProbeResultCache;
+    // Client for the RFC 8908 API of the network, or null if the network does not provide one
+    private CaptivePortalApi mCaptivePortalApi;
+    // Whether NetworkMonitor reevaluates the network on request, in which case the app only
+    // polls the API of the network instead of probing
+    private volatile boolean mNetworkMonitorReevaluates = false;
+    private List<ProbeRacer.Endpoint> mProbeEndpoints;
+    private PassiveLoginDetector mPassiveLoginDetector;
+    private LoginActionBridge mLoginActionBridge;
 
     // When starting downloads a file is created via startActivityForResult(ACTION_CREATE_DOCUMENT).
-    // This array keeps the download request until the activity result is received. It is keyed by
-    // requestCode sent in startActivityForResult.
+    // The download is started speculatively in the meantime, and this array keeps the download
+    // request until the activity result is received. It is keyed by requestCode sent in
+    // startActivityForResult.
     @GuardedBy("mDownloadRequests")
     private final SparseArray<DownloadRequest> mDownloadRequests = new SparseArray<>();
     @GuardedBy("mDownloadRequests")
     private int mNextDownloadRequestId = 1;
+    // Status of the downloads started by this activity, reported by the download service from
+    // whichever process it runs in
+    private final DownloadStatusReceiver mDownloadStatusReceiver = new DownloadStatusReceiver();
 
     private static final class DownloadRequest {
         final String mUrl;
         final String mFilename;
-        DownloadRequest(String url, String filename) {
+        // ID of the speculative download in DownloadService
+        final String mStagingId;
+        DownloadRequest(String url, String filename, String stagingId) {
             mUrl = url;
             mFilename = filename;
+            mStagingId = stagingId;
+        }
+    }
+
+    /**
+     * Receiver of the status of downloads, counting finished downloads for the dump.
+     */
+    private static final class DownloadStatusReceiver extends ResultReceiver {
+        private final AtomicInteger mCompleted = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private final AtomicInteger mCancelled = new AtomicInteger();
+
+        DownloadStatusReceiver() {
+            // Statuses are only counted: receive them on the thread that sends them
+            super(null /* handler */);
+        }
+
+        @Override
+        protected void onReceiveResult(int resultCode, Bundle resultData) {
+            final int downloadId = resultData.getInt(DownloadService.EXTRA_DOWNLOAD_ID);
+            switch (resultCode) {
+                case DownloadService.STATUS_COMPLETED:
+                    mCompleted.incrementAndGet();
+                    break;
+                case DownloadService.STATUS_FAILED:
+                    Log.w(TAG, "Download " + downloadId + " failed");
+                    mFailed.incrementAndGet();
+                    break;
+                case DownloadService.STATUS_CANCELLED:
+                    mCancelled.incrementAndGet();
+                    break;
+                default:
+                    // Progress is shown by the notifications of the service
+                    break;
+            }
+        }
+
+        void dump(@NonNull PrintWriter writer) {
+            writer.println(String.format("Downloads: %d completed, %d failed, %d cancelled",
+                    mCompleted.get(), mFailed.get(), mCancelled.get()));
         }
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTimeMs = SystemClock.elapsedRealtime();
         mCaptivePortal = getIntent().getParcelableExtra(ConnectivityManager.EXTRA_CAPTIVE_PORTAL);
         // Null CaptivePortal is unexpected. The following flow will need to access mCaptivePortal
         // to communicate with system. Thus, finish the activity.
@@ -175,6 +283,15 @@ public class CaptivePortalLoginActivity extends Activity {
         if (DBG) {
             Log.d(TAG, String.format("onCreate for %s", mUrl));
         }
+        final int probeDebounceMs = DeviceConfig.getInt(NAMESPACE_CONNECTIVITY,
+                CAPTIVE_PORTAL_PROBE_DEBOUNCE_MS, DEFAULT_PROBE_DEBOUNCE_MS);
+        mProbeScheduler = new ProbeScheduler(AppExecutors.getInstance().getProbeExecutor(),
+                this::probeForCaptivePortal, probeDebounceMs, 3L * probeDebounceMs);
+        mProbeCadence = new ProbeCadence(
+                DeviceConfig.getInt(NAMESPACE_CONNECTIVITY, CAPTIVE_PORTAL_PROBE_IDLE_MIN_DELAY_MS,
+                        DEFAULT_PROBE_IDLE_MIN_DELAY_MS),
+                DeviceConfig.getInt(NAMESPACE_CONNECTIVITY, CAPTIVE_PORTAL_PROBE_IDLE_MAX_DELAY_MS,
+                        DEFAULT_PROBE_IDLE_MAX_DELAY_MS));
 
         final String spec = getIntent().getStringExtra(EXTRA_CAPTIVE_PORTAL_PROBE_SPEC);
         try {
@@ -183,6 +300,12 @@ public class CaptivePortalLoginActivity extends Activity {
             // Make extra sure that invalid configurations do not cause crashes
             mProbeSpec = null;
         }
+        mDownloadInSeparateProcess = isFeatureEnabled(DOWNLOAD_IN_SEPARATE_PROCESS,
+                false /* defaultEnabled */);
+        mProbeEndpoints = getProbeEndpoints();
+        mPassiveLoginDetector = new PassiveLoginDetector(mProbeEndpoints);
+        mProbeResultCache = new ProbeResultCache(DeviceConfig.getInt(NAMESPACE_CONNECTIVITY,
+                CAPTIVE_PORTAL_PROBE_CACHE_TTL_MS, DEFAULT_PROBE_CACHE_TTL_MS));
 
         mNetworkCallback = new NetworkCallback() {
             @Override
@@ -195,6 +318,12 @@ public class CaptivePortalLoginActivity extends Activity {
             public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
                 handleCapabilitiesChanged(network, nc);
             }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties lp) {
+                // The DNS servers of the network may have changed
+                if (mNetwork.equals(network)) DnsCache.getInstance().flush(network);
+            }
         };
         mCm.registerNetworkCallback(new NetworkRequest.Builder().build(), mNetworkCallback);
 
@@ -208,6 +337,19 @@ public class CaptivePortalLoginActivity extends Activity {
         // Also initializes proxy system properties.
         mNetwork = mNetwork.getPrivateDnsBypassingCopy();
         mCm.bindProcessToNetwork(mNetwork);
+        // Portals commonly spoof the addresses of the probe hosts, and may stop doing so once the
+        // user logs in without anything flushing the DNS cache, for example with AJAX requests:
+        // probe hosts are resolved again for each probe.
+        mConnector = DualStackConnector.forNetwork(
+                AppExecutors.getInstance().getConnectExecutor(), mCm, mNetwork, SOCKET_TIMEOUT_MS,
+                ProbeRacer.Endpoint.getHosts(mProbeEndpoints));
+        mProbeRacer = new ProbeRacer(AppExecutors.getInstance().getEndpointProbeExecutor(),
+                mNetwork, mConnector, mProbeResultCache, ProbeMetrics.getInstance(), mUserAgent,
+                SOCKET_TIMEOUT_MS);
+        final URL apiUrl = getCaptivePortalApiUrl();
+        if (apiUrl != null) {
+            mCaptivePortalApi = makeCaptivePortalApi(apiUrl);
+        }
 
         // Proxy system properties must be initialized before setContentView is called because
         // setContentView initializes the WebView logic which in turn reads the system properties.
@@ -234,6 +376,8 @@ public class CaptivePortalLoginActivity extends Activity {
         webview.setWebViewClient(mWebViewClient);
         webview.setWebChromeClient(new MyWebChromeClient());
         webview.setDownloadListener(new PortalDownloadListener());
+        mLoginActionBridge = new LoginActionBridge(this::onLoginAction);
+        webview.addJavascriptInterface(mLoginActionBridge, mLoginActionBridge.getName());
         // Start initial page load so WebView finishes loading proxy settings.
         // Actual load of mUrl is initiated by MyWebViewClient.
         webview.loadData("", "text/html", null);
@@ -245,6 +389,12 @@ public class CaptivePortalLoginActivity extends Activity {
             });
     }
 
+    @VisibleForTesting
+    @NonNull
+    CaptivePortalApi makeCaptivePortalApi(@NonNull URL apiUrl) {
+        return new CaptivePortalApi(apiUrl, mConnector, mUserAgent, SOCKET_TIMEOUT_MS);
+    }
+
     @VisibleForTesting
     MyWebViewClient getWebViewClient() {
         return mWebViewClient;
@@ -253,6 +403,14 @@ public class CaptivePortalLoginActivity extends Activity {
     @VisibleForTesting
     void handleCapabilitiesChanged(@NonNull final Network network,
             @NonNull final NetworkCapabilities nc) {
+        if (network.equals(mNetwork)) {
+            // Probe results may not reflect the new state of the network
+            mProbeResultCache.invalidate(network);
+            if (nc.hasCapability(NET_CAPABILITY_VALIDATED)) {
+                // Addresses resolved while captive may have been spoofed by the portal
+                DnsCache.getInstance().flush(network);
+            }
+        }
         if (!isFeatureEnabled(DISMISS_PORTAL_IN_VALIDATED_NETWORK, isDismissPortalEnabled())) {
             return;
         }
@@ -263,6 +421,23 @@ public class CaptivePortalLoginActivity extends Activity {
         }
     }
 
+    /**
+     * Target an intent created by {@link DownloadService} at the service that runs downloads for
+     * this activity, and receive the status of the download it starts, if any.
+     */
+    private Intent toDownloadService(@NonNull Intent intent) {
+        if (mDownloadInSeparateProcess) {
+            intent.setClass(getApplicationContext(), IsolatedDownloadService.class);
+        }
+        // Only read from intents starting a new download
+        intent.putExtra(DownloadService.ARG_STATUS_RECEIVER, mDownloadStatusReceiver);
+        return intent;
+    }
+
+    private boolean isDownloadToDownloadsCollectionEnabled() {
+        return isFeatureEnabled(DOWNLOAD_TO_DOWNLOADS_COLLECTION, false /* defaultEnabled */);
+    }
+
     private boolean isDismissPortalEnabled() {
         return Build.VERSION.SDK_INT > Build.VERSION_CODES.Q
                 || (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q
@@ -304,9 +479,17 @@ public class CaptivePortalLoginActivity extends Activity {
         if (DBG) {
             Log.d(TAG, String.format("Result %s for %s", result.name(), mUrl));
         }
+        if (mProbeScheduler != null) {
+            mProbeScheduler.cancel();
+        }
         logMetricsEvent(result.metricsEvent);
         switch (result) {
             case DISMISSED:
+                // MetricsEvent has no field for durations: the time to dismiss is only kept in
+                // the dump of the activity.
+                final long timeToDismissMs = SystemClock.elapsedRealtime() - mCreateTimeMs;
+                ProbeMetrics.getInstance().recordTimeToDismiss(timeToDismissMs);
+                if (DBG) Log.d(TAG, "Dismissed after " + timeToDismissMs + "ms");
                 mCaptivePortal.reportCaptivePortalDismissed();
                 break;
             case UNWANTED:
@@ -319,9 +502,29 @@ public class CaptivePortalLoginActivity extends Activity {
         finishAndRemoveTask();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(String.format("Portal %s: %s after %dms", sanitizeURL(mUrl),
+                isDone.get() ? "done" : "running", SystemClock.elapsedRealtime() - mCreateTimeMs));
+        ProbeMetrics.getInstance().dump(writer);
+        if (mProbeResultCache != null) {
+            mProbeResultCache.dump(writer);
+        }
+        if (mConnector != null) {
+            mConnector.dump(writer);
+        }
+        DnsCache.getInstance().dump(writer);
+        AppExecutors.getInstance().dump(writer);
+        mDownloadStatusReceiver.dump(writer);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.captive_portal_login, menu);
+        menu.findItem(R.id.action_ask_download_location)
+                .setVisible(isDownloadToDownloadsCollectionEnabled())
+                .setChecked(mAskDownloadLocation);
         return true;
     }
 
@@ -349,6 +552,10 @@ public class CaptivePortalLoginActivity extends Activity {
         } else if (id == R.id.action_do_not_use_network) {
             result = Result.UNWANTED;
             action = "DO_NOT_USE_NETWORK";
+        } else if (id == R.id.action_ask_download_location) {
+            mAskDownloadLocation = !item.isChecked();
+            item.setChecked(mAskDownloadLocation);
+            return true;
         } else {
             return super.onOptionsItemSelected(item);
         }
@@ -359,6 +566,26 @@ public class CaptivePortalLoginActivity extends Activity {
         return true;
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (mProbeScheduler != null && mProbeScheduler.resume()) {
+            // The portal may have let the user in while probes were suspended
+            mProbeResultCache.invalidate(mNetwork);
+            reevaluateNetwork(true /* likelyLogin */);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Nobody looks at the portal: stop spending radio time on probes. The network callback
+        // stays registered, so the activity is still dismissed if the network validates.
+        if (mProbeScheduler != null) {
+            mProbeScheduler.suspend();
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -376,6 +603,17 @@ public class CaptivePortalLoginActivity extends Activity {
             // mNetworkCallback is not null if mUrl is not null.
             mCm.unregisterNetworkCallback(mNetworkCallback);
         }
+        if (mProbeScheduler != null) {
+            mProbeScheduler.cancel();
+        }
+        // Results of pending file creation requests will not be received anymore: discard the
+        // corresponding speculative downloads.
+        synchronized (mDownloadRequests) {
+            for (int i = 0; i < mDownloadRequests.size(); i++) {
+                discardSpeculativeDownload(mDownloadRequests.valueAt(i));
+            }
+            mDownloadRequests.clear();
+        }
         if (mLaunchBrowser) {
             // Give time for this network to become default. After 500ms just proceed.
             for (int i = 0; i < 5; i++) {
@@ -396,9 +634,6 @@ public class CaptivePortalLoginActivity extends Activity {
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode != RESULT_OK || data == null) return;
-
-        // Start download after receiving a created file to download to
         final DownloadRequest pendingRequest;
         synchronized (mDownloadRequests) {
             pendingRequest = mDownloadRequests.get(requestCode);
@@ -409,16 +644,25 @@ public class CaptivePortalLoginActivity extends Activity {
             mDownloadRequests.remove(requestCode);
         }
 
-        final Uri fileUri = data.getData();
+        final Uri fileUri = (resultCode == RESULT_OK && data != null) ? data.getData() : null;
         if (fileUri == null) {
-            Log.e(TAG, "No file received from download file creation result");
+            // File creation was cancelled, or failed
+            if (resultCode == RESULT_OK) {
+                Log.e(TAG, "No file received from download file creation result");
+            }
+            discardSpeculativeDownload(pendingRequest);
             return;
         }
 
-        final Intent downloadIntent = DownloadService.makeDownloadIntent(getApplicationContext(),
-                mNetwork, mUserAgent, pendingRequest.mUrl, pendingRequest.mFilename, fileUri);
+        // Continue the download in the created file
+        final Intent destinationIntent = DownloadService.makeStagedDownloadDestinationIntent(
+                getApplicationContext(), pendingRequest.mStagingId, fileUri);
+        startService(toDownloadService(destinationIntent));
+    }
 
-        startForegroundService(downloadIntent);
+    private void discardSpeculativeDownload(@NonNull DownloadRequest request) {
+        startService(toDownloadService(DownloadService.makeDiscardStagedDownloadIntent(
+                getApplicationContext(), request.mStagingId)));
     }
 
     private URL getUrl() {
@@ -460,12 +704,67 @@ public class CaptivePortalLoginActivity extends Activity {
     }
 
     private void reevaluateNetwork() {
-        if (isFeatureEnabled(DISMISS_PORTAL_IN_VALIDATED_NETWORK, isDismissPortalEnabled())) {
-            // TODO : replace this with an actual call to the method when the network stack
-            // is built against a recent enough SDK.
-            if (callVoidMethodIfExists(mCaptivePortal, "reevaluateNetwork")) return;
+        reevaluateNetwork(false /* likelyLogin */);
+    }
+
+    /**
+     * Check whether the network is still captive after the user did something on the portal.
+     * @param likelyLogin Whether the user likely just attempted to log in, in which case the
+     *                    network is probed right away.
+     */
+    private void reevaluateNetwork(boolean likelyLogin) {
+        if (likelyLogin) {
+            // Portals often resolve names differently once the user is logged in
+            DnsCache.getInstance().flush(mNetwork);
+        }
+        requestReevaluation(likelyLogin);
+    }
+
+    /**
+     * Have NetworkMonitor reevaluate the network when it supports it, or probe the network. The
+     * API of the network, if any, is polled in both cases.
+     * @param immediate Whether to probe right away instead of debouncing with other requests.
+     */
+    private void requestReevaluation(boolean immediate) {
+        mProbeCadence.onUserActivity();
+        // TODO : replace this with an actual call to the method when the network stack
+        // is built against a recent enough SDK.
+        mNetworkMonitorReevaluates =
+                isFeatureEnabled(DISMISS_PORTAL_IN_VALIDATED_NETWORK, isDismissPortalEnabled())
+                && callVoidMethodIfExists(mCaptivePortal, "reevaluateNetwork");
+        // The API of the network is still polled when NetworkMonitor reevaluates it: it tells
+        // that login completed without waiting for NetworkMonitor to validate the network.
+        if (mNetworkMonitorReevaluates && mCaptivePortalApi == null) return;
+        if (immediate) {
+            mProbeScheduler.requestProbe(0 /* delayMs */);
+        } else {
+            testForCaptivePortal();
+        }
+    }
+
+    /**
+     * Called by the JavaScript bridge when the user submits a form, or the page completes a
+     * request, which may be a login attempt that does not navigate.
+     */
+    private void onLoginAction(long delayMs, boolean isFormSubmission) {
+        if (delayMs > 0) {
+            // Delayed reports go through the same path once due, so that they are delegated to
+            // NetworkMonitor like the others.
+            AppExecutors.getInstance().getProbeExecutor().schedule(
+                    () -> onLoginAction(0 /* delayMs */, isFormSubmission),
+                    delayMs, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (isDone.get()) return;
+        // The request may have changed the state of the portal
+        mProbeResultCache.invalidate(mNetwork);
+        if (isFormSubmission) {
+            reevaluateNetwork(true /* likelyLogin */);
+        } else {
+            // Requests of the page are more frequent than logins: they do not flush resolved
+            // names, which would cost new DNS queries to everything on the page.
+            requestReevaluation(true /* immediate */);
         }
-        testForCaptivePortal();
     }
 
     private boolean callVoidMethodIfExists(@NonNull final Object target,
@@ -481,53 +780,99 @@ public class CaptivePortalLoginActivity extends Activity {
 
     private void testForCaptivePortal() {
         // TODO: reuse NetworkMonitor facilities for consistent captive portal detection.
-        new Thread(new Runnable() {
-            public void run() {
-                // Give time for captive portal to open.
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                }
-                HttpURLConnection urlConnection = null;
-                int httpResponseCode = 500;
-                String locationHeader = null;
-                try {
-                    urlConnection = (HttpURLConnection) mNetwork.openConnection(mUrl);
-                    urlConnection.setInstanceFollowRedirects(false);
-                    urlConnection.setConnectTimeout(SOCKET_TIMEOUT_MS);
-                    urlConnection.setReadTimeout(SOCKET_TIMEOUT_MS);
-                    urlConnection.setUseCaches(false);
-                    if (mUserAgent != null) {
-                       urlConnection.setRequestProperty("User-Agent", mUserAgent);
-                    }
-                    // cannot read request header after connection
-                    String requestHeader = urlConnection.getRequestProperties().toString();
-
-                    urlConnection.getInputStream();
-                    httpResponseCode = urlConnection.getResponseCode();
-                    locationHeader = urlConnection.getHeaderField(HTTP_LOCATION_HEADER_NAME);
-                    if (DBG) {
-                        Log.d(TAG, "probe at " + mUrl +
-                                " ret=" + httpResponseCode +
-                                " request=" + requestHeader +
-                                " headers=" + urlConnection.getHeaderFields());
-                    }
-                } catch (IOException e) {
-                } finally {
-                    if (urlConnection != null) urlConnection.disconnect();
-                }
-                if (isDismissed(httpResponseCode, locationHeader, mProbeSpec)) {
-                    done(Result.DISMISSED);
+        mProbeScheduler.requestProbe();
+    }
+
+    private void probeForCaptivePortal() {
+        final CaptivePortalApi.State state =
+                mCaptivePortalApi == null ? null : mCaptivePortalApi.fetchState();
+        if (state != null) {
+            if (!state.mCaptive) {
+                done(Result.DISMISSED);
+                return;
+            }
+        } else if (mNetworkMonitorReevaluates) {
+            // NetworkMonitor probes the network: only its API is polled here
+            if (mCaptivePortalApi == null) return;
+        } else {
+            // The network has no API, or it did not answer: fall back to captive portal probes
+            final ProbeRacer.Result result;
+            try {
+                result = mProbeRacer.race(mProbeEndpoints);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (result == ProbeRacer.Result.SUCCESS) {
+                done(Result.DISMISSED);
+                return;
+            }
+        }
+        // Check again later in case the user stays idle on the page, for example because login
+        // completes in the background.
+        mProbeScheduler.requestProbe(mProbeCadence.nextIdleDelayMs());
+    }
+
+    /**
+     * Get the endpoints to probe: the URL provided by the system first, then the endpoints
+     * configured in DeviceConfig, if any.
+     */
+    private List<ProbeRacer.Endpoint> getProbeEndpoints() {
+        final List<ProbeRacer.Endpoint> endpoints = new ArrayList<>();
+        endpoints.add(new ProbeRacer.Endpoint(mUrl, mProbeSpec));
+        final String httpsUrl = getProbeConfig(CAPTIVE_PORTAL_HTTPS_URL);
+        if (httpsUrl != null) {
+            addProbeEndpoint(endpoints, httpsUrl);
+        }
+        final String fallbackSpecs = getProbeConfig(CAPTIVE_PORTAL_FALLBACK_PROBE_SPECS);
+        if (fallbackSpecs != null) {
+            try {
+                for (CaptivePortalProbeSpec spec :
+                        CaptivePortalProbeSpec.parseCaptivePortalProbeSpecs(fallbackSpecs)) {
+                    endpoints.add(new ProbeRacer.Endpoint(spec.getUrl(), spec));
                 }
+            } catch (Exception e) {
+                // Make extra sure that invalid configurations do not cause crashes
+                Log.e(TAG, "Invalid fallback probe specs " + fallbackSpecs);
             }
-        }).start();
+        }
+        final String fallbackUrls = getProbeConfig(CAPTIVE_PORTAL_OTHER_FALLBACK_URLS);
+        if (fallbackUrls != null) {
+            for (String url : fallbackUrls.split(",")) {
+                addProbeEndpoint(endpoints, url.trim());
+            }
+        }
+        return endpoints.subList(0, Math.min(endpoints.size(), MAX_PROBE_ENDPOINTS));
     }
 
-    private static boolean isDismissed(
-            int httpResponseCode, String locationHeader, CaptivePortalProbeSpec probeSpec) {
-        return (probeSpec != null)
-                ? probeSpec.getResult(httpResponseCode, locationHeader).isSuccessful()
-                : (httpResponseCode == 204);
+    /**
+     * Get the URL of the RFC 8908 Captive Portal API provided by the network, if any.
+     */
+    private URL getCaptivePortalApiUrl() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return null;
+        final LinkProperties lp = mCm.getLinkProperties(mNetwork);
+        final Uri apiUri = lp == null ? null : lp.getCaptivePortalApiUrl();
+        if (apiUri == null) return null;
+        final URL apiUrl = makeURL(apiUri.toString());
+        // RFC 8908 requires the API to be served over HTTPS
+        if (apiUrl == null || !"https".equalsIgnoreCase(apiUrl.getProtocol())) {
+            Log.e(TAG, "Ignoring invalid captive portal API URL");
+            return null;
+        }
+        return apiUrl;
+    }
+
+    private static void addProbeEndpoint(@NonNull List<ProbeRacer.Endpoint> endpoints,
+            @NonNull String url) {
+        final URL probeUrl = makeURL(url);
+        if (probeUrl != null) {
+            endpoints.add(new ProbeRacer.Endpoint(probeUrl, null /* spec */));
+        }
+    }
+
+    private static String getProbeConfig(@NonNull String name) {
+        final String value = DeviceConfig.getString(NAMESPACE_CONNECTIVITY, name,
+                null /* defaultValue */);
+        return TextUtils.isEmpty(value) ? null : value;
     }
 
     @VisibleForTesting
@@ -562,6 +907,8 @@ public class CaptivePortalLoginActivity extends Activity {
                     getResources().getDisplayMetrics());
         private int mPagesLoaded;
         private final ArraySet<String> mMainFrameUrls = new ArraySet<>();
+        // Host of the last main frame request, used to detect redirects away from the portal
+        private volatile String mLastMainFrameHost;
 
         // If we haven't finished cleaning up the history, don't allow going back.
         public boolean allowBack() {
@@ -594,6 +941,15 @@ public class CaptivePortalLoginActivity extends Activity {
                 getActionBar().setSubtitle(subtitle);
             }
             getProgressBar().setVisibility(View.VISIBLE);
+            // Pages start for every main frame URL, including the targets of server redirects
+            // which shouldInterceptRequest does not see, so navigations back to the probe URL
+            // are detected here.
+            if (url != null && !urlString.startsWith(INTERNAL_ASSETS)
+                    && mPassiveLoginDetector.onMainFrameNavigation(url.getHost())) {
+                mProbeResultCache.invalidate(mNetwork);
+                reevaluateNetwork(true /* likelyLogin */);
+                return;
+            }
             reevaluateNetwork();
         }
 
@@ -616,6 +972,11 @@ public class CaptivePortalLoginActivity extends Activity {
                 view.requestFocus();
                 view.clearHistory();
             }
+            final URL pageUrl = makeURL(url);
+            if (pageUrl != null && !url.startsWith(INTERNAL_ASSETS)) {
+                mPassiveLoginDetector.onPageLoaded(pageUrl.getHost());
+            }
+            view.evaluateJavascript(mLoginActionBridge.getHookScript(), null /* callback */);
             reevaluateNetwork();
         }
 
@@ -640,7 +1001,14 @@ public class CaptivePortalLoginActivity extends Activity {
             // Be careful that two shouldOverrideUrlLoading methods are overridden, but
             // shouldOverrideUrlLoading(WebView view, String url) was deprecated in API level 24.
             // TODO: delete deprecated one ??
-            return shouldOverrideUrlLoading(view, url);
+            final boolean override = shouldOverrideUrlLoading(view, url);
+            // Server redirects do not go through shouldInterceptRequest: this is the only place
+            // where they are seen, and where WebResourceRequest#isRedirect is meaningful.
+            if (!override && request.isForMainFrame() && request.isRedirect()) {
+                onMainFrameRequest(request.getMethod(), true /* isRedirect */,
+                        request.getUrl().getHost());
+            }
+            return override;
         }
 
         // Record the initial main frame url. This is only called for the initial resource URL, not
@@ -650,10 +1018,30 @@ public class CaptivePortalLoginActivity extends Activity {
                 WebResourceRequest request) {
             if (request.isForMainFrame()) {
                 mMainFrameUrls.add(request.getUrl().toString());
+                // Requests seen here are never redirects: those are reported to
+                // shouldOverrideUrlLoading.
+                onMainFrameRequest(request.getMethod(), false /* isRedirect */,
+                        request.getUrl().getHost());
             }
             return null;
         }
 
+        /**
+         * Record a request of the main frame, and probe the network right away if it is likely a
+         * login attempt.
+         */
+        private void onMainFrameRequest(@Nullable String method, boolean isRedirect,
+                @Nullable String host) {
+            // A new page, for example after submitting a login form, may change the state of
+            // the portal.
+            mProbeResultCache.invalidate(mNetwork);
+            if (ProbeCadence.isLikelyLogin(method) || (isRedirect
+                    && mPassiveLoginDetector.isLoginRedirect(mLastMainFrameHost, host))) {
+                reevaluateNetwork(true /* likelyLogin */);
+            }
+            mLastMainFrameHost = host;
+        }
+
         // A web page consisting of a large broken lock icon to indicate SSL failure.
         @Override
         public void onReceivedSslError(WebView view, SslErrorHandler handler, SslError error) {
@@ -871,17 +1259,62 @@ public class CaptivePortalLoginActivity extends Activity {
             Log.d(TAG, String.format("Starting download for %s, type %s with display name %s",
                     url, guessedMimetype, displayName));
 
+            if (DataUrl.isDataUrl(url)) {
+                // The URL of a large inline payload does not fit in intent extras: decode it to a
+                // file off the UI thread, and download that file instead.
+                final String mimeType = guessedMimetype;
+                final File inlineDir = DownloadService.getInlineDownloadDir(
+                        getApplicationContext());
+                AppExecutors.getInstance().getProbeExecutor().execute(() -> {
+                    final File file;
+                    try {
+                        file = DataUrl.decodeToFile(url, inlineDir);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not decode inline download " + displayName, e);
+                        return;
+                    }
+                    runOnUiThread(() -> {
+                        if (isFinishing()) {
+                            file.delete();
+                            return;
+                        }
+                        startDownload(Uri.fromFile(file).toString(), displayName, mimeType);
+                    });
+                });
+                return;
+            }
+            startDownload(url, displayName, guessedMimetype);
+        }
+
+        private void startDownload(@NonNull String url, @NonNull String displayName,
+                @NonNull String guessedMimetype) {
+            if (isDownloadToDownloadsCollectionEnabled() && !mAskDownloadLocation) {
+                // Save directly in the Downloads collection, without the file picker round trip
+                startForegroundService(toDownloadService(
+                        DownloadService.makeDownloadsCollectionIntent(getApplicationContext(),
+                                mNetwork, mUserAgent, url, displayName, guessedMimetype)));
+                return;
+            }
+
             final Intent createFileIntent = DownloadService.makeCreateFileIntent(
                     guessedMimetype, displayName);
 
             final int requestId;
+            final DownloadRequest request = new DownloadRequest(url, displayName,
+                    UUID.randomUUID().toString());
             // WebView should call onDownloadStart from the UI thread, but to be extra-safe as
             // that is not documented behavior, access the download requests array with a lock.
             synchronized (mDownloadRequests) {
                 requestId = mNextDownloadRequestId++;
-                mDownloadRequests.put(requestId, new DownloadRequest(url, displayName));
+                mDownloadRequests.put(requestId, request);
             }
 
+            // Start downloading while the user is picking the output file, so the network is not
+            // idle in the meantime.
+            startForegroundService(toDownloadService(
+                    DownloadService.makeSpeculativeDownloadIntent(getApplicationContext(),
+                            mNetwork, mUserAgent, url, displayName, request.mStagingId)));
+
             try {
                 startActivityForResult(createFileIntent, requestId);
             } catch (ActivityNotFoundException e) {
@@ -890,6 +1323,10 @@ public class CaptivePortalLoginActivity extends Activity {
                 // should be rare; the download cannot be started as no writeable file can be
                 // created.
                 Log.e(TAG, "No document provider found to create download file", e);
+                synchronized (mDownloadRequests) {
+                    mDownloadRequests.remove(requestId);
+                }
+                discardSpeculativeDownload(request);
             }
         }
     }
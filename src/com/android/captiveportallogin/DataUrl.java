@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.util.Base64;
+import android.util.Base64InputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Helper for inline "data:" URLs (RFC 2397), which portals use for generated content such as
+ * vouchers or receipts.
+ *
+ * <p>The payload is decoded while it is read from the URL string, so that it is never held in
+ * memory a second time, and no network is involved.
+ */
+class DataUrl {
+    private static final String SCHEME = "data:";
+    private static final String BASE64_PARAM = ";base64";
+
+    private DataUrl() {}
+
+    /**
+     * Indicates whether the URL is an inline URL that must be decoded locally.
+     */
+    static boolean isDataUrl(@Nullable String url) {
+        return url != null && url.regionMatches(true /* ignoreCase */, 0, SCHEME, 0,
+                SCHEME.length());
+    }
+
+    /**
+     * Get the MIME type declared in a data URL, or null if it does not declare any.
+     */
+    @Nullable
+    static String getMimeType(@NonNull String url) {
+        final int comma = url.indexOf(',');
+        if (!isDataUrl(url) || comma < 0) return null;
+        final int end = indexOfOrEnd(url, ';', SCHEME.length(), comma);
+        if (end == SCHEME.length()) return null;
+        return url.substring(SCHEME.length(), end).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Open a stream of the decoded payload of a data URL.
+     * @throws IOException The URL is not a valid data URL.
+     */
+    @NonNull
+    static InputStream openStream(@NonNull String url) throws IOException {
+        final int comma = url.indexOf(',');
+        if (!isDataUrl(url) || comma < 0) {
+            throw new IOException("Invalid data URL");
+        }
+        final boolean base64 = url.regionMatches(true /* ignoreCase */,
+                comma - BASE64_PARAM.length(), BASE64_PARAM, 0, BASE64_PARAM.length());
+        final InputStream payload = new PercentDecodingInputStream(url, comma + 1);
+        return base64 ? new Base64InputStream(payload, Base64.DEFAULT) : payload;
+    }
+
+    /**
+     * Decode the payload of a data URL to a new file in the specified directory.
+     *
+     * <p>This allows passing the payload to another component by the file, as the URL of a large
+     * payload does not fit in intent extras.
+     * @return The file, which the caller must delete once it is not needed anymore.
+     * @throws IOException The URL is not a valid data URL, or the file could not be written.
+     */
+    @NonNull
+    static File decodeToFile(@NonNull String url, @NonNull File dir) throws IOException {
+        dir.mkdirs();
+        final File file = File.createTempFile("inline", null /* suffix */, dir);
+        try (InputStream is = openStream(url); OutputStream os = new FileOutputStream(file)) {
+            final byte[] buffer = new byte[DownloadEngine.DEFAULT_BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                os.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Get an estimate of the size of the decoded payload of a data URL, in bytes. The estimate
+     * ignores percent-escapes and base64 padding.
+     */
+    static long estimateDecodedLength(@NonNull String url) {
+        final int comma = url.indexOf(',');
+        if (comma < 0) return 0;
+        final long encodedLength = url.length() - comma - 1;
+        final boolean base64 = url.regionMatches(true /* ignoreCase */,
+                comma - BASE64_PARAM.length(), BASE64_PARAM, 0, BASE64_PARAM.length());
+        return base64 ? encodedLength * 3 / 4 : encodedLength;
+    }
+
+    private static int indexOfOrEnd(@NonNull String str, char c, int start, int end) {
+        final int index = str.indexOf(c, start);
+        return index < 0 || index > end ? end : index;
+    }
+
+    /**
+     * Stream of the bytes of a URL-encoded string, decoding percent-escapes.
+     */
+    private static class PercentDecodingInputStream extends InputStream {
+        @NonNull
+        private final String mUrl;
+        private int mPos;
+
+        PercentDecodingInputStream(@NonNull String url, int start) {
+            mUrl = url;
+            mPos = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPos >= mUrl.length()) return -1;
+            final char c = mUrl.charAt(mPos);
+            if (c != '%') {
+                mPos++;
+                // Non-ASCII characters are not valid in URLs: keep the low byte like WebView
+                return c & 0xff;
+            }
+            if (mPos + 2 >= mUrl.length()) {
+                throw new IOException("Truncated percent-escape in data URL");
+            }
+            final int high = Character.digit(mUrl.charAt(mPos + 1), 16);
+            final int low = Character.digit(mUrl.charAt(mPos + 2), 16);
+            if (high < 0 || low < 0) {
+                throw new IOException("Invalid percent-escape in data URL");
+            }
+            mPos += 3;
+            return (high << 4) | low;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int count = 0;
+            while (count < len) {
+                final int value = read();
+                if (value < 0) break;
+                b[off + count] = (byte) value;
+                count++;
+            }
+            return count == 0 ? -1 : count;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.Network;
+import android.os.SystemClock;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of host name resolutions on each network, shared by probes and downloads of the process.
+ *
+ * <p>Resolvers of captive networks are often slow proxies run by the portal. The platform does
+ * not expose the TTL of the records it resolves, so entries expire after a short fixed time
+ * instead. Portals commonly answer differently before and after login, so callers flush the
+ * entries of a network when its state changes, and resolve hosts whose answers are likely to
+ * change without the cache.
+ *
+ * <p>This class is thread-safe.
+ */
+class DnsCache {
+    // Short enough for stale answers to be replaced quickly, and long enough to cover the bursts
+    // of connections of a probe or of parallel downloads
+    @VisibleForTesting
+    static final long DEFAULT_TTL_MS = 30_000;
+
+    /**
+     * Resolves host names on a network.
+     */
+    interface Resolver {
+        @NonNull
+        InetAddress[] resolve(@NonNull Network network, @NonNull String host)
+                throws UnknownHostException;
+    }
+
+    @GuardedBy("DnsCache.class")
+    private static DnsCache sInstance;
+
+    @NonNull
+    private final Resolver mResolver;
+    private final long mTtlMs;
+
+    @GuardedBy("this")
+    private final Map<Key, Entry> mEntries = new HashMap<>();
+    @GuardedBy("this")
+    private int mHits = 0;
+    @GuardedBy("this")
+    private int mMisses = 0;
+    @GuardedBy("this")
+    private int mFlushes = 0;
+    @GuardedBy("this")
+    private int mResolutions = 0;
+    @GuardedBy("this")
+    private long mTotalResolutionMs = 0;
+    @GuardedBy("this")
+    private long mMaxResolutionMs = 0;
+
+    private static final class Key {
+        @NonNull
+        final Network mNetwork;
+        @NonNull
+        final String mHost;
+
+        Key(@NonNull Network network, @NonNull String host) {
+            mNetwork = network;
+            mHost = host;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return mNetwork.equals(other.mNetwork) && mHost.equals(other.mHost);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNetwork, mHost);
+        }
+    }
+
+    private static final class Entry {
+        @NonNull
+        final InetAddress[] mAddresses;
+        final long mExpiryMs;
+
+        Entry(@NonNull InetAddress[] addresses, long expiryMs) {
+            mAddresses = addresses;
+            mExpiryMs = expiryMs;
+        }
+    }
+
+    /**
+     * Create a cache.
+     * @param resolver Resolver used on cache misses.
+     * @param ttlMs Time during which a resolution is reused.
+     */
+    @VisibleForTesting
+    DnsCache(@NonNull Resolver resolver, long ttlMs) {
+        mResolver = resolver;
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Get the cache of the current process, creating it if needed.
+     */
+    @NonNull
+    static synchronized DnsCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new DnsCache((network, host) -> network.getAllByName(host),
+                    DEFAULT_TTL_MS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Resolve a host on a network, reusing a recent resolution if possible.
+     * @see Network#getAllByName(String)
+     */
+    @NonNull
+    InetAddress[] getAllByName(@NonNull Network network, @NonNull String host)
+            throws UnknownHostException {
+        final Key key = new Key(network, host);
+        final int flushes;
+        synchronized (this) {
+            final Entry entry = mEntries.get(key);
+            if (entry != null && entry.mExpiryMs > SystemClock.elapsedRealtime()) {
+                mHits++;
+                return entry.mAddresses.clone();
+            }
+            mMisses++;
+            flushes = mFlushes;
+        }
+        // Concurrent misses on the same host each resolve it: lookups are not serialized behind
+        // a slow one.
+        final long startMs = SystemClock.elapsedRealtime();
+        final InetAddress[] addresses = mResolver.resolve(network, host);
+        final long endMs = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mResolutions++;
+            mTotalResolutionMs += endMs - startMs;
+            mMaxResolutionMs = Math.max(mMaxResolutionMs, endMs - startMs);
+            // Answers obtained before a flush may be the stale ones that the flush discarded
+            if (addresses.length > 0 && flushes == mFlushes) {
+                mEntries.put(key, new Entry(addresses.clone(), endMs + mTtlMs));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Resolve a host on a network without reusing or caching the resolution. A resolution cached
+     * for the host is dropped, as the new answer may differ.
+     * @see Network#getAllByName(String)
+     */
+    @NonNull
+    InetAddress[] resolveUncached(@NonNull Network network, @NonNull String host)
+            throws UnknownHostException {
+        synchronized (this) {
+            mEntries.remove(new Key(network, host));
+            mMisses++;
+        }
+        final long startMs = SystemClock.elapsedRealtime();
+        final InetAddress[] addresses = mResolver.resolve(network, host);
+        final long endMs = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mResolutions++;
+            mTotalResolutionMs += endMs - startMs;
+            mMaxResolutionMs = Math.max(mMaxResolutionMs, endMs - startMs);
+        }
+        return addresses;
+    }
+
+    /**
+     * Flush all resolutions cached for a network.
+     */
+    synchronized void flush(@NonNull Network network) {
+        final Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().mNetwork.equals(network)) it.remove();
+        }
+        mFlushes++;
+    }
+
+    /**
+     * Dump the state of the cache for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        final int lookups = mHits + mMisses;
+        writer.println(String.format("DNS cache: TTL %dms, %d entries, hit rate %d%% (%d/%d),"
+                + " %d flushes, resolution avg %dms max %dms", mTtlMs, mEntries.size(),
+                lookups == 0 ? 0 : 100 * mHits / lookups, mHits, lookups, mFlushes,
+                mResolutions == 0 ? 0 : mTotalResolutionMs / mResolutions, mMaxResolutionMs));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Controller for the number of downloads that {@link DownloadService} runs in parallel.
+ *
+ * <p>The controller starts from a concurrency derived from the link bandwidth reported for the
+ * network, then adjusts it with additive increase / multiplicative decrease based on the goodput
+ * estimated by a {@link ThroughputEstimator} at the end of fixed sampling periods: concurrency is
+ * increased by one while that keeps improving goodput and more downloads are waiting, decreased
+ * by one when an increase did not help, and halved when downloads fail or goodput collapses.
+ *
+ * <p>This class is thread-safe.
+ */
+class DownloadConcurrencyController {
+    @VisibleForTesting
+    static final int MAX_CONCURRENCY = 4;
+    @VisibleForTesting
+    static final long SAMPLE_PERIOD_MS = 2_000L;
+    // Link bandwidth that is considered enough to serve one more download in parallel.
+    @VisibleForTesting
+    static final int KBPS_PER_DOWNLOAD = 5_000;
+    // An increase in concurrency is kept only if goodput improves by at least this ratio.
+    private static final double MIN_IMPROVEMENT_RATIO = 1.1;
+    // Goodput dropping below this ratio of the previous period is handled like errors.
+    private static final double COLLAPSE_RATIO = 0.5;
+    // Short enough that the estimate mostly reflects the last sampling period.
+    private static final long GOODPUT_HALF_LIFE_MS = 500L;
+
+    private final ThroughputEstimator mGoodputEstimator =
+            new ThroughputEstimator(GOODPUT_HALF_LIFE_MS);
+
+    @GuardedBy("this")
+    private int mMaxConcurrency = MAX_CONCURRENCY;
+    @GuardedBy("this")
+    private int mTargetConcurrency = 1;
+    @GuardedBy("this")
+    private int mWaitingDownloads = 0;
+
+    @GuardedBy("this")
+    private long mPeriodStartMs = -1L;
+    @GuardedBy("this")
+    private long mPeriodBytes = 0L;
+    @GuardedBy("this")
+    private int mPeriodErrors = 0;
+    @GuardedBy("this")
+    private boolean mPeriodBacklogged = false;
+    // Goodput of the last complete sampling period, in bytes/second.
+    @GuardedBy("this")
+    private double mLastGoodput = 0;
+    // Whether concurrency was increased at the end of the last period, so the current period
+    // measures the effect of that increase.
+    @GuardedBy("this")
+    private boolean mProbingIncrease = false;
+
+    @GuardedBy("this")
+    private int mIncreaseCount = 0;
+    @GuardedBy("this")
+    private int mDecreaseCount = 0;
+
+    /**
+     * Reset the controller for a network, typically when the service starts processing downloads
+     * after being idle.
+     * @param linkDownstreamKbps Downstream bandwidth reported for the network, or 0 if unknown.
+     */
+    synchronized void reset(int linkDownstreamKbps) {
+        if (linkDownstreamKbps > 0) {
+            mMaxConcurrency = Math.max(1,
+                    Math.min(MAX_CONCURRENCY, linkDownstreamKbps / KBPS_PER_DOWNLOAD + 1));
+            // Start halfway to the maximum, and let measurements find the rest.
+            mTargetConcurrency = (mMaxConcurrency + 1) / 2;
+        } else {
+            mMaxConcurrency = MAX_CONCURRENCY;
+            mTargetConcurrency = 1;
+        }
+        mPeriodStartMs = -1L;
+        mPeriodBytes = 0L;
+        mPeriodErrors = 0;
+        mPeriodBacklogged = false;
+        mLastGoodput = 0;
+        mProbingIncrease = false;
+        mGoodputEstimator.reset();
+    }
+
+    /**
+     * Get the number of downloads that should currently run in parallel.
+     */
+    synchronized int getTargetConcurrency() {
+        return mTargetConcurrency;
+    }
+
+    /**
+     * Get the current estimate of the total goodput of downloads, in bytes/second, or
+     * {@link ThroughputEstimator#RATE_UNKNOWN}.
+     */
+    long getEstimatedGoodput() {
+        return mGoodputEstimator.getRate();
+    }
+
+    /**
+     * Update the number of downloads that are queued but not started.
+     */
+    synchronized void setWaitingDownloads(int waitingDownloads) {
+        mWaitingDownloads = waitingDownloads;
+        if (waitingDownloads > 0) mPeriodBacklogged = true;
+    }
+
+    /**
+     * Account for data received by any of the running downloads.
+     * @return True if the target concurrency changed.
+     */
+    synchronized boolean onBytesTransferred(long bytes, long nowMs) {
+        final boolean changed = maybeEndPeriod(nowMs);
+        mPeriodBytes += bytes;
+        mGoodputEstimator.onBytesTransferred(bytes, nowMs);
+        return changed;
+    }
+
+    /**
+     * Account for a download that failed.
+     */
+    synchronized void onDownloadError(long nowMs) {
+        maybeEndPeriod(nowMs);
+        mPeriodErrors++;
+    }
+
+    /**
+     * End the current sampling period if it is long enough, and adjust concurrency.
+     * @return True if the target concurrency changed.
+     */
+    @GuardedBy("this")
+    private boolean maybeEndPeriod(long nowMs) {
+        if (mPeriodStartMs < 0) {
+            mPeriodStartMs = nowMs;
+            return false;
+        }
+        final long elapsedMs = nowMs - mPeriodStartMs;
+        if (elapsedMs < SAMPLE_PERIOD_MS) return false;
+
+        final int previousTarget = mTargetConcurrency;
+        // Close the current estimator window, so the estimate includes the whole period.
+        mGoodputEstimator.onBytesTransferred(0, nowMs);
+        final double goodput = Math.max(0, mGoodputEstimator.getRate());
+        final boolean wasProbing = mProbingIncrease;
+        mProbingIncrease = false;
+        if (mPeriodErrors > 0 || goodput < mLastGoodput * COLLAPSE_RATIO) {
+            // Multiplicative decrease
+            mTargetConcurrency = Math.max(1, mTargetConcurrency / 2);
+            mDecreaseCount++;
+        } else if (wasProbing && goodput < mLastGoodput * MIN_IMPROVEMENT_RATIO) {
+            // The last increase did not help: additive decrease back to where it was
+            mTargetConcurrency = Math.max(1, mTargetConcurrency - 1);
+            mDecreaseCount++;
+        } else if (mPeriodBacklogged && mPeriodBytes > 0
+                && mTargetConcurrency < mMaxConcurrency) {
+            // Downloads are waiting and goodput is stable or improving: additive increase
+            mTargetConcurrency++;
+            mProbingIncrease = true;
+            mIncreaseCount++;
+        }
+
+        mLastGoodput = goodput;
+        mPeriodStartMs = nowMs;
+        mPeriodBytes = 0L;
+        mPeriodErrors = 0;
+        mPeriodBacklogged = mWaitingDownloads > 0;
+        return mTargetConcurrency != previousTarget;
+    }
+
+    /**
+     * Dump the state of the controller for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format("Concurrency: target %d, max %d, waiting %d",
+                mTargetConcurrency, mMaxConcurrency, mWaitingDownloads));
+        writer.println(String.format("Last goodput: %.0f B/s, increases %d, decreases %d",
+                mLastGoodput, mIncreaseCount, mDecreaseCount));
+        writer.println(String.format("Estimated goodput: %d B/s, total %d bytes",
+                mGoodputEstimator.getRate(), mGoodputEstimator.getTotalBytes()));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Engine copying the content of a download from a {@link Source} to a {@link Sink}, with
+ * cancellation, read pacing and rate-limited progress reporting.
+ *
+ * <p>The engine has no Android dependencies, so that it can be tested and benchmarked on a host:
+ * {@link DownloadService} adapts it to connections, output files and notifications.
+ *
+ * <p>Instances have no mutable state and can be shared by all downloads.
+ */
+class DownloadEngine {
+    @VisibleForTesting
+    static final int DEFAULT_BUFFER_SIZE = 1500;
+    // NotificationManager starts ignoring notifications from a process that updates them too
+    // fast, so intermediate progress is reported at most this often.
+    @VisibleForTesting
+    static final long MAX_PROGRESS_UPDATE_RATE_MS = 500L;
+    static final long CONTENT_LENGTH_UNKNOWN = -1L;
+    static final long RATE_UNLIMITED = 0L;
+
+    /**
+     * Source of the content of a download.
+     */
+    interface Source {
+        /**
+         * Read decoded content, like {@link InputStream#read(byte[], int, int)}.
+         * @return The number of bytes read, or -1 at the end of the content.
+         */
+        int read(@NonNull byte[] buffer, int offset, int count) throws IOException;
+
+        /**
+         * Get the number of bytes transferred so far, which the content length refers to.
+         */
+        long getTransferredBytes();
+
+        /**
+         * Indicates whether the content length limits the number of bytes returned by
+         * {@link #read}, which is not the case if the transferred bytes are decoded.
+         */
+        boolean isLengthLimited();
+    }
+
+    /**
+     * Destination of the content of a download.
+     */
+    interface Sink {
+        void write(@NonNull byte[] buffer, int offset, int count) throws IOException;
+    }
+
+    /**
+     * Listener for the progress of a download, which also controls its cancellation and pacing.
+     *
+     * <p>Methods are called on the thread running the download.
+     */
+    interface Progress {
+        /**
+         * Indicates whether the download was cancelled. This is checked before each read.
+         */
+        boolean isCancelled();
+
+        /**
+         * Called after each read with the number of bytes transferred since the last call.
+         * @param nowMs Current time, from the clock of the engine.
+         */
+        void onBytesTransferred(long bytes, long nowMs);
+
+        /**
+         * Get the maximum read rate in bytes/second, or {@link #RATE_UNLIMITED}. This is checked
+         * after each read, so the limit can change during the download.
+         */
+        long getMaxReadRate();
+
+        /**
+         * Called when progress should be shown, at most every
+         * {@link #MAX_PROGRESS_UPDATE_RATE_MS} except for the first and last updates.
+         * @param progress Progress in percent, or null if the content length is unknown.
+         */
+        void onProgress(@Nullable Integer progress);
+    }
+
+    @NonNull
+    private final LongSupplier mClock;
+    private final int mBufferSize;
+
+    /**
+     * Create an engine.
+     * @param clock Monotonic clock in milliseconds.
+     */
+    DownloadEngine(@NonNull LongSupplier clock) {
+        this(clock, DEFAULT_BUFFER_SIZE);
+    }
+
+    @VisibleForTesting
+    DownloadEngine(@NonNull LongSupplier clock, int bufferSize) {
+        mClock = clock;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Create a source reading an {@link InputStream} that returns the transferred bytes directly.
+     */
+    @NonNull
+    static Source streamSource(@NonNull InputStream is) {
+        return new Source() {
+            private long mRead = 0L;
+
+            @Override
+            public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+                final int read = is.read(buffer, offset, count);
+                if (read > 0) mRead += read;
+                return read;
+            }
+
+            @Override
+            public long getTransferredBytes() {
+                return mRead;
+            }
+
+            @Override
+            public boolean isLengthLimited() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Create a source reading an {@link InputStream} that decodes the transferred bytes.
+     * @param wireStream Stream of the transferred bytes, which {@code decoded} reads from.
+     */
+    @NonNull
+    static Source decodingSource(@NonNull InputStream decoded,
+            @NonNull CountingInputStream wireStream) {
+        return new Source() {
+            @Override
+            public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+                return decoded.read(buffer, offset, count);
+            }
+
+            @Override
+            public long getTransferredBytes() {
+                return wireStream.getCount();
+            }
+
+            @Override
+            public boolean isLengthLimited() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Copy the content of a download from its source to its sink.
+     * @param contentLength Number of bytes to transfer, or {@link #CONTENT_LENGTH_UNKNOWN}.
+     * @return True if the download is completed, false if cancelled.
+     */
+    boolean transfer(@NonNull Source source, @NonNull Sink sink, long contentLength,
+            @NonNull Progress progress) throws IOException {
+        final byte[] buffer = new byte[mBufferSize];
+        long allRead = 0;
+        long lastTransferred = 0;
+        // Read rate limit currently applied, and the bytes transferred since it was applied
+        long paceRate = RATE_UNLIMITED;
+        long paceStartMs = 0L;
+        long pacedBytes = 0L;
+        final long maxRead = contentLength == CONTENT_LENGTH_UNKNOWN || !source.isLengthLimited()
+                ? Long.MAX_VALUE : contentLength;
+        int lastProgress = -1;
+        long lastUpdateTime = -1L;
+        while (allRead < maxRead) {
+            if (progress.isCancelled()) {
+                return false;
+            }
+
+            final int read = source.read(buffer, 0, (int) Math.min(buffer.length,
+                    maxRead - allRead));
+            if (read < 0) {
+                // End of stream
+                break;
+            }
+
+            allRead += read;
+            sink.write(buffer, 0, read);
+            final long transferred = source.getTransferredBytes();
+            final long delta = transferred - lastTransferred;
+            lastTransferred = transferred;
+            final long now = mClock.getAsLong();
+            progress.onBytesTransferred(delta, now);
+
+            final long maxRate = progress.getMaxReadRate();
+            if (maxRate != paceRate) {
+                paceRate = maxRate;
+                paceStartMs = now;
+                pacedBytes = 0L;
+            } else if (maxRate != RATE_UNLIMITED) {
+                // Wait until the data read so far would have been read at the maximum rate
+                pacedBytes += delta;
+                final long delayMs = paceStartMs + pacedBytes * 1000 / maxRate - now;
+                if (delayMs > 0) {
+                    try {
+                        Thread.sleep(delayMs);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Throttled download aborted");
+                    }
+                }
+            }
+
+            final Integer percent = getProgress(contentLength, transferred);
+            if (percent == null) {
+                // Without a known length, show the transferred size and rate periodically.
+                if (lastUpdateTime >= 0 && now - lastUpdateTime < MAX_PROGRESS_UPDATE_RATE_MS) {
+                    continue;
+                }
+                progress.onProgress(null);
+                lastUpdateTime = now;
+                continue;
+            }
+            if (percent == lastProgress) continue;
+
+            if (lastProgress > 0 && percent < 100 && lastUpdateTime > 0
+                    && now - lastUpdateTime < MAX_PROGRESS_UPDATE_RATE_MS) {
+                // Rate-limit intermediate progress updates. The shown progress will not "lag
+                // behind" much in most cases. An alternative would be to delay the progress update
+                // to rate-limit, but this would bring synchronization problems.
+                lastProgress = percent;
+                continue;
+            }
+            progress.onProgress(percent);
+            lastUpdateTime = now;
+            lastProgress = percent;
+        }
+        return true;
+    }
+
+    @Nullable
+    private static Integer getProgress(long contentLength, long totalRead) {
+        if (contentLength == CONTENT_LENGTH_UNKNOWN || contentLength == 0) return null;
+        return (int) (totalRead * 100 / contentLength);
+    }
+}
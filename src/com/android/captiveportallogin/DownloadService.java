@@ -16,23 +16,36 @@
 
 package com.android.captiveportallogin;
 
-import static java.lang.Math.min;
-
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.graphics.drawable.Icon;
 import android.icu.text.NumberFormat;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.LinkProperties;
 import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 
 import androidx.annotation.GuardedBy;
@@ -40,22 +53,47 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Foreground {@link Service} that can be used to download files from a specific {@link Network}.
  *
  * If the network is or becomes unusable, the download will fail: the service will not attempt
- * downloading from other networks on the device.
+ * downloading from other networks on the device. Downloads are aborted as soon as their network is
+ * lost, instead of waiting for the connection to time out. Inline "data:" URLs are decoded locally
+ * and do not use the network; large ones are decoded by the caller to a file in
+ * {@link #getInlineDownloadDir}, and downloaded from its "file:" URL.
+ *
+ * Downloads are processed in one lane per network, so that downloads on different networks do
+ * not delay each other. Each lane has its own worker threads, the number of which is adjusted by
+ * a {@link DownloadConcurrencyController} according to the goodput measured on its network.
  */
 public class DownloadService extends Service {
     private static final String TAG = DownloadService.class.getSimpleName();
@@ -70,31 +108,120 @@ public class DownloadService extends Service {
     static final String ARG_DISPLAY_NAME = "displayname";
     @VisibleForTesting
     static final String ARG_OUTFILE = "outfile";
+    @VisibleForTesting
+    static final String ARG_STAGING_ID = "stagingid";
+    @VisibleForTesting
+    static final String ARG_DISCARD_STAGED = "discardstaged";
+    @VisibleForTesting
+    static final String ARG_MIMETYPE = "mimetype";
+    @VisibleForTesting
+    static final String ARG_SAVE_TO_DOWNLOADS = "savetodownloads";
+
+    /**
+     * Optional {@link ResultReceiver} extra of new download intents, which receives the status of
+     * the download. Together with intents to start and cancel downloads, this is the whole
+     * interface of the service, so that it can run in another process than its clients.
+     */
+    public static final String ARG_STATUS_RECEIVER = "statusreceiver";
+    // Status codes sent to the status receiver. The data always has EXTRA_DOWNLOAD_ID;
+    // STATUS_PROGRESS also has EXTRA_BYTES_TRANSFERRED and EXTRA_CONTENT_LENGTH.
+    public static final int STATUS_QUEUED = 1;
+    public static final int STATUS_PROGRESS = 2;
+    public static final int STATUS_COMPLETED = 3;
+    public static final int STATUS_FAILED = 4;
+    public static final int STATUS_CANCELLED = 5;
+    public static final String EXTRA_DOWNLOAD_ID = "downloadid";
+    public static final String EXTRA_BYTES_TRANSFERRED = "bytestransferred";
+    public static final String EXTRA_CONTENT_LENGTH = "contentlength";
 
     private static final String ARG_CANCEL = "cancel";
 
     private static final String CHANNEL_DOWNLOADS = "downloads";
     private static final String CHANNEL_DOWNLOAD_PROGRESS = "downloads_progress";
+    // Notification IDs of this class. Subclasses running in another process use their own IDs,
+    // so that the notifications of both services do not replace each other.
     private static final int NOTE_DOWNLOAD_PROGRESS = 1;
     private static final int NOTE_DOWNLOAD_DONE = 2;
+    // NotificationManager drops updates from a package beyond 5 per second. Progress of parallel
+    // downloads is updated less often, so that all downloads stay below 4 updates per second and
+    // done or error notifications still get through.
+    private static final long PROGRESS_NOTIFICATION_INTERVAL_MS = 250L;
 
     private static final int CONNECTION_TIMEOUT_MS = 30_000;
-    // Update download progress up to twice/sec.
-    private static final long MAX_PROGRESS_UPDATE_RATE_MS = 500L;
-    private static final long CONTENT_LENGTH_UNKNOWN = -1L;
+    // Same limit as the platform when it follows redirects by itself
+    private static final int MAX_REDIRECTS = 20;
+    // Not defined in HttpURLConnection
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    private static final long CONTENT_LENGTH_UNKNOWN = DownloadEngine.CONTENT_LENGTH_UNKNOWN;
+    // Long enough for the ETA not to jump around with short variations in throughput.
+    private static final long TASK_THROUGHPUT_HALF_LIFE_MS = 3_000L;
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_IDENTITY = "identity";
+    // Types not listed here, like images, audio, video or archives, are generally already
+    // compressed, so compressing them again would only waste server time.
+    private static final String[] COMPRESSIBLE_TYPE_PREFIXES = new String[] {
+            "text/", "application/json", "application/xml", "application/javascript",
+            "application/ecmascript", "application/xhtml+xml", "application/rss+xml",
+            "application/atom+xml", "application/x-javascript", "image/svg+xml",
+            "image/bmp", "application/pdf" };
+    private static final String[] COMPRESSIBLE_TYPE_SUFFIXES = new String[] {
+            "+xml", "+json" };
 
-    // All download job IDs <= this value should be cancelled
-    private volatile int mMaxCancelDownloadId;
+    // Directory in the app cache where speculative downloads are written until their destination
+    // is known. Each service class has its own, as services in different processes may run at
+    // the same time and clean up their directory when created.
+    private static final String STAGING_DIR_NAME = "download_staging";
+    private static final String INLINE_DIR_NAME = "inline_downloads";
+    private static final String FILE_SCHEME = "file:";
 
-    @GuardedBy("mQueue")
-    private final Queue<DownloadTask> mQueue = new ArrayDeque<>(1);
-    @GuardedBy("mQueue")
-    private boolean mProcessing = false;
+    // IDs of the running downloads that should be cancelled. Downloads run in parallel, so the
+    // cancel button of one download must not affect the others.
+    private final Set<Integer> mCancelledDownloadIds = ConcurrentHashMap.newKeySet();
+
+    // Downloads are processed in one lane per network, so that downloads on a network that went
+    // bad do not delay downloads on other networks. The map is also the lock for the state of all
+    // lanes and tasks.
+    @GuardedBy("mLanes")
+    private final Map<Network, DownloadLane> mLanes = new HashMap<>();
+    // Download using the foreground service notification to show its progress, or null if there
+    // is none. Other downloads running in parallel use their own notification.
+    @GuardedBy("mLanes")
+    @Nullable
+    private DownloadTask mForegroundNotificationTask = null;
+    // Lowest round-trip time measured on each network, used to tune download connections
+    private final Map<Network, Long> mNetworkMinRttMs = new ConcurrentHashMap<>();
+    // Connectors racing IPv6 and IPv4 on each network, which remember the family that works
+    private final Map<Network, DualStackConnector> mConnectors = new ConcurrentHashMap<>();
+    private final DownloadThrottlePolicy mThrottlePolicy = new DownloadThrottlePolicy();
+    private final DownloadEngine mEngine = new DownloadEngine(SystemClock::elapsedRealtime);
+    private final AppExecutors mExecutors = AppExecutors.getInstance();
+    private final PowerManager.OnThermalStatusChangedListener mThermalStatusListener =
+            status -> {
+                if (mThrottlePolicy.setThermalStatus(status, SystemClock.elapsedRealtime())) {
+                    onThrottleLevelChanged();
+                }
+            };
+    private final BroadcastReceiver mPowerSaveModeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final boolean powerSaveMode = getSystemService(PowerManager.class).isPowerSaveMode();
+            if (mThrottlePolicy.setPowerSaveMode(powerSaveMode, SystemClock.elapsedRealtime())) {
+                onThrottleLevelChanged();
+            }
+        }
+    };
+    // Speculative downloads that were started before their destination was known, keyed by the
+    // staging ID given by the caller. Tasks stay here while queued, while being downloaded and
+    // after they have been fully staged, until the destination is received or the download is
+    // discarded.
+    @GuardedBy("mLanes")
+    private final Map<String, DownloadTask> mStagedTasks = new HashMap<>();
+
+    private File mStagingDir;
 
     // Tracker for the ID to assign to the next download. The service startId is not used because it
-    // is not guaranteed to be monotonically increasing; increasing download IDs are convenient to
-    // allow cancelling current downloads when the user tapped the cancel button, but not subsequent
-    // download jobs.
+    // is not guaranteed to be unique across the downloads of the service.
     private final AtomicInteger mNextDownloadId = new AtomicInteger(1);
 
     private static class DownloadTask {
@@ -103,21 +230,71 @@ public class DownloadService extends Service {
         private final String mUserAgent;
         private final String mUrl;
         private final String mDisplayName;
-        private final Uri mOutFile;
+        @Nullable
+        private final String mMimeType;
+        // Whether the output file is to be created by the service in MediaStore.Downloads
+        private final boolean mSaveToDownloads;
+        // File the download is written to until its destination is known, or null if the
+        // destination was already known when the download was started.
+        @Nullable
+        private final File mStagingFile;
+        // Output file of the download. For speculative downloads this is null until the user has
+        // picked the destination, and for downloads saved to MediaStore.Downloads it is null until
+        // the service has created the entry. It never changes once set.
+        @Nullable
+        private volatile Uri mOutFile;
+        // Set when a speculative download is not wanted anymore (the file picker was cancelled).
+        private volatile boolean mDiscarded;
+        // Set when a speculative download has been fully written to the staging file, but the
+        // destination is not known yet. Only changed with the mLanes lock held.
+        private volatile boolean mStagingComplete;
+        // Tag of the progress notification of the download while it is running, or null if it is
+        // using the foreground service notification. Only accessed by the worker running it.
+        @Nullable
+        private String mProgressNotificationTag;
+        // Time at which the progress notification of the download was last updated. Only
+        // accessed by the worker running it.
+        private long mLastProgressNotificationMs;
+        // Connection and worker thread of the download while it is running, so that it can be
+        // aborted from other threads. Only changed with the mLanes lock held.
+        @Nullable
+        private volatile URLConnection mConnection;
+        @Nullable
+        private volatile Thread mWorkerThread;
+        // Set when the network of the download was lost
+        private volatile boolean mNetworkLost;
+        // Length of the content being transferred, as announced by the server
+        private volatile long mContentLength = CONTENT_LENGTH_UNKNOWN;
+        // Throughput of the download, fed by the worker running it
+        @NonNull
+        private final ThroughputEstimator mThroughput =
+                new ThroughputEstimator(TASK_THROUGHPUT_HALF_LIFE_MS);
+
+        // Receiver of the status of the download, possibly in another process
+        @Nullable
+        private final ResultReceiver mStatusReceiver;
 
         private final Notification.Builder mCachedNotificationBuilder;
 
         private DownloadTask(int id, Network network, String userAgent, String url,
-                String displayName, Uri outFile, Context context) {
+                String displayName, @Nullable String mimeType, boolean saveToDownloads,
+                @Nullable Uri outFile, @Nullable File stagingFile,
+                @Nullable ResultReceiver statusReceiver, Context context) {
             this.mId = id;
             this.mNetwork = network;
             this.mUserAgent = userAgent;
             this.mUrl = url;
             this.mDisplayName = displayName;
+            this.mMimeType = mimeType != null || !DataUrl.isDataUrl(url)
+                    ? mimeType : DataUrl.getMimeType(url);
+            this.mSaveToDownloads = saveToDownloads;
             this.mOutFile = outFile;
+            this.mStagingFile = stagingFile;
+            this.mStatusReceiver = statusReceiver;
 
             final Resources res = context.getResources();
-            final Intent cancelIntent = new Intent(context, DownloadService.class)
+            // The service may be a subclass running in another process
+            final Intent cancelIntent = new Intent(context, context.getClass())
                     .putExtra(ARG_CANCEL, mId)
                     .setIdentifier(String.valueOf(mId));
 
@@ -134,6 +311,76 @@ public class DownloadService extends Service {
                     .setOnlyAlertOnce(true)
                     .addAction(cancelAction);
         }
+
+        /**
+         * Indicates whether the content of the download is inline in its URL, so that it does not
+         * depend on its network.
+         */
+        private boolean isInline() {
+            return DataUrl.isDataUrl(mUrl) || isFileUrl(mUrl);
+        }
+
+        /**
+         * Indicates whether the download still needs its network. Inline downloads, and
+         * speculative downloads fully staged before their destination was known, only copy local
+         * data.
+         */
+        @GuardedBy("mLanes")
+        private boolean usesNetwork() {
+            return !isInline() && !mStagingComplete;
+        }
+    }
+
+    /**
+     * Get the ID of the progress notifications of this service, including the foreground service
+     * notification.
+     */
+    int getProgressNotificationId() {
+        return NOTE_DOWNLOAD_PROGRESS;
+    }
+
+    /**
+     * Get the ID of the notifications of finished downloads of this service.
+     */
+    int getDoneNotificationId() {
+        return NOTE_DOWNLOAD_DONE;
+    }
+
+    /**
+     * Get the directory where callers decode inline downloads, which are then downloaded from
+     * their "file:" URL and deleted.
+     */
+    @NonNull
+    public static File getInlineDownloadDir(@NonNull Context context) {
+        return new File(context.getCacheDir(), INLINE_DIR_NAME);
+    }
+
+    private static boolean isFileUrl(@NonNull String url) {
+        return url.regionMatches(true /* ignoreCase */, 0, FILE_SCHEME, 0, FILE_SCHEME.length());
+    }
+
+    /**
+     * Get the file of an inline download decoded by the caller, or null if the URL is not the
+     * URL of such a file.
+     */
+    @Nullable
+    private File getInlineDownloadFile(@NonNull String url) {
+        if (!isFileUrl(url)) return null;
+        final String path = Uri.parse(url).getPath();
+        if (path == null) return null;
+        final File file = new File(path);
+        // Only files in the inline download directory can be downloaded
+        return getInlineDownloadDir(this).equals(file.getParentFile()) ? file : null;
+    }
+
+    /**
+     * Create an intent to cancel a download.
+     * @param downloadId ID of the download, as received in {@link #EXTRA_DOWNLOAD_ID}.
+     */
+    public static Intent makeCancelIntent(Context packageContext, int downloadId) {
+        final Intent intent = new Intent(packageContext, DownloadService.class);
+        intent.putExtra(ARG_CANCEL, downloadId);
+        return intent;
     }
 
     /**
@@ -160,6 +407,76 @@ public class DownloadService extends Service {
         return intent;
     }
 
+    /**
+     * Create an intent to be used to start a download to a new file in the shared Downloads
+     * collection, without asking the user to pick an output file.
+     *
+     * <p>The service creates a pending {@link MediaStore.Downloads} entry for the file, which is
+     * published once the download completes, or deleted if it fails. The intent can then be used
+     * with {@link Context#startForegroundService(Intent)}.
+     * @param mimeType MIME type of the file to create.
+     * @see #makeDownloadIntent(Context, Network, String, String, String, Uri)
+     */
+    public static Intent makeDownloadsCollectionIntent(Context packageContext, Network network,
+            String userAgent, String url, String displayName, String mimeType) {
+        final Intent intent = new Intent(packageContext, DownloadService.class);
+        intent.putExtra(ARG_NETWORK, network);
+        intent.putExtra(ARG_USERAGENT, userAgent);
+        intent.putExtra(ARG_URL, url);
+        intent.putExtra(ARG_DISPLAY_NAME, displayName);
+        intent.putExtra(ARG_MIMETYPE, mimeType);
+        intent.putExtra(ARG_SAVE_TO_DOWNLOADS, true);
+        return intent;
+    }
+
+    /**
+     * Create an intent to be used to start a download before its output file is known.
+     *
+     * <p>The download is written to a private staging file until
+     * {@link #makeStagedDownloadDestinationIntent} provides the output file, or
+     * {@link #makeDiscardStagedDownloadIntent} discards it. This allows the download to progress
+     * while the user is picking the output file. The intent can then be used with
+     * {@link Context#startForegroundService(Intent)}.
+     * @param stagingId Unique ID used to refer to the download once its output file is known.
+     * @see #makeDownloadIntent(Context, Network, String, String, String, Uri)
+     */
+    public static Intent makeSpeculativeDownloadIntent(Context packageContext, Network network,
+            String userAgent, String url, String displayName, String stagingId) {
+        final Intent intent = new Intent(packageContext, DownloadService.class);
+        intent.putExtra(ARG_NETWORK, network);
+        intent.putExtra(ARG_USERAGENT, userAgent);
+        intent.putExtra(ARG_URL, url);
+        intent.putExtra(ARG_DISPLAY_NAME, displayName);
+        intent.putExtra(ARG_STAGING_ID, stagingId);
+        return intent;
+    }
+
+    /**
+     * Create an intent providing the output file of a download started with
+     * {@link #makeSpeculativeDownloadIntent}.
+     *
+     * <p>Data already downloaded is moved to the output file, and the rest of the download
+     * continues there.
+     */
+    public static Intent makeStagedDownloadDestinationIntent(Context packageContext,
+            String stagingId, Uri outFile) {
+        final Intent intent = new Intent(packageContext, DownloadService.class);
+        intent.putExtra(ARG_STAGING_ID, stagingId);
+        intent.putExtra(ARG_OUTFILE, outFile);
+        return intent;
+    }
+
+    /**
+     * Create an intent to stop a download started with {@link #makeSpeculativeDownloadIntent},
+     * and delete any data already downloaded.
+     */
+    public static Intent makeDiscardStagedDownloadIntent(Context packageContext,
+            String stagingId) {
+        final Intent intent = new Intent(packageContext, DownloadService.class);
+        intent.putExtra(ARG_DISCARD_STAGED, stagingId);
+        return intent;
+    }
+
     /**
      * Create an intent to be used via {android.app.Activity#startActivityForResult} to create
      * an output file that can be used to start a download.
@@ -179,17 +496,60 @@ public class DownloadService extends Service {
     @Override
     public void onCreate() {
         createNotificationChannels();
+        mStagingDir = new File(getCacheDir(),
+                STAGING_DIR_NAME + "-" + getClass().getSimpleName());
+        // Staged downloads cannot be resumed by a new service instance: clean up any leftovers.
+        final File[] leftovers = mStagingDir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+        mStagingDir.mkdirs();
+
+        final PowerManager pm = getSystemService(PowerManager.class);
+        final long now = SystemClock.elapsedRealtime();
+        mThrottlePolicy.setThermalStatus(pm.getCurrentThermalStatus(), now);
+        mThrottlePolicy.setPowerSaveMode(pm.isPowerSaveMode(), now);
+        pm.addThermalStatusListener(getMainExecutor(), mThermalStatusListener);
+        registerReceiver(mPowerSaveModeReceiver,
+                new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+    }
+
+    @Override
+    public void onDestroy() {
+        getSystemService(PowerManager.class).removeThermalStatusListener(mThermalStatusListener);
+        unregisterReceiver(mPowerSaveModeReceiver);
+        super.onDestroy();
+    }
+
+    private void onThrottleLevelChanged() {
+        Log.i(TAG, String.format("Download throttling changed: max concurrency %d, "
+                + "max read rate %d B/s", mThrottlePolicy.getMaxConcurrency(),
+                mThrottlePolicy.getMaxReadRate()));
+        // Workers above a lower target exit after their current download; a higher target needs
+        // new workers to be started.
+        synchronized (mLanes) {
+            for (DownloadLane lane : mLanes.values()) {
+                lane.maybeStartWorkers();
+            }
+        }
     }
 
     /**
      * Called when the service needs to process a new command:
-     *  - If the intent has ARG_CANCEL extra, all downloads with a download ID <= that argument
-     *    should be cancelled.
+     *  - If the intent has ARG_CANCEL extra, the running download with that download ID should be
+     *    cancelled.
+     *  - If the intent has ARG_DISCARD_STAGED extra, the speculative download with that staging ID
+     *    should be discarded.
+     *  - If the intent has ARG_STAGING_ID and ARG_OUTFILE extras but no url, it provides the
+     *    output file of a speculative download.
      *  - Otherwise the intent indicates a new download (with network, useragent, url... args).
      *
      * This method may be called multiple times if the user selects multiple files to download.
-     * Files will be queued to be downloaded one by one; if the user cancels the current file, this
-     * will not affect the next files that are queued.
+     * Files will be queued and downloaded by a number of parallel workers for each network that
+     * depends on the measured goodput; if the user cancels one file, this will not affect the
+     * other files.
      */
     @Override
     public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
@@ -198,7 +558,13 @@ public class DownloadService extends Service {
         }
         final int cancelDownloadId = intent.getIntExtra(ARG_CANCEL, -1);
         if (cancelDownloadId != -1) {
-            mMaxCancelDownloadId = cancelDownloadId;
+            mCancelledDownloadIds.add(cancelDownloadId);
+            return START_NOT_STICKY;
+        }
+
+        final String discardStagingId = intent.getStringExtra(ARG_DISCARD_STAGED);
+        if (discardStagingId != null) {
+            discardStagedDownload(discardStagingId);
             return START_NOT_STICKY;
         }
 
@@ -207,24 +573,40 @@ public class DownloadService extends Service {
         final String url = intent.getStringExtra(ARG_URL);
         final String filename = intent.getStringExtra(ARG_DISPLAY_NAME);
         final Uri outFile = intent.getParcelableExtra(ARG_OUTFILE);
+        final String stagingId = intent.getStringExtra(ARG_STAGING_ID);
+        final String mimeType = intent.getStringExtra(ARG_MIMETYPE);
+        final boolean saveToDownloads = intent.getBooleanExtra(ARG_SAVE_TO_DOWNLOADS, false);
+        final ResultReceiver statusReceiver = intent.getParcelableExtra(ARG_STATUS_RECEIVER);
+
+        if (url == null && stagingId != null && outFile != null) {
+            setStagedDownloadDestination(stagingId, outFile);
+            return START_NOT_STICKY;
+        }
 
         if (network == null || userAgent == null || url == null || filename == null
-                || outFile == null) {
+                || (outFile == null && stagingId == null && !saveToDownloads)) {
             Log.e(TAG, String.format("Missing parameters; network: %s, userAgent: %s, url: %s, "
-                    + "filename: %s, outFile: %s", network, userAgent, url, filename, outFile));
+                    + "filename: %s, outFile: %s, stagingId: %s", network, userAgent, url,
+                    filename, outFile, stagingId));
+            return START_NOT_STICKY;
+        }
+        if (isFileUrl(url) && getInlineDownloadFile(url) == null) {
+            Log.e(TAG, "Not an inline download file: " + url);
             return START_NOT_STICKY;
         }
 
-        synchronized (mQueue) {
-            final DownloadTask task = new DownloadTask(mNextDownloadId.getAndIncrement(),
-                    network.getPrivateDnsBypassingCopy(), userAgent, url, filename, outFile, this);
-            mQueue.add(task);
-            if (!mProcessing) {
-                startForeground(NOTE_DOWNLOAD_PROGRESS, makeProgressNotification(task,
-                        null /* progress */));
-                new Thread(new ProcessingRunnable()).start();
+        synchronized (mLanes) {
+            final int id = mNextDownloadId.getAndIncrement();
+            final File stagingFile = stagingId == null
+                    ? null : new File(mStagingDir, "download-" + id);
+            final DownloadTask task = new DownloadTask(id, network.getPrivateDnsBypassingCopy(),
+                    userAgent, url, filename, mimeType, saveToDownloads, outFile, stagingFile,
+                    statusReceiver, this);
+            if (stagingId != null) {
+                mStagedTasks.put(stagingId, task);
             }
-            mProcessing = true;
+            enqueueTask(task);
+            reportStatus(task, STATUS_QUEUED);
         }
 
         // If the service is killed the download is lost, which is fine because it is unlikely for a
@@ -233,6 +615,306 @@ public class DownloadService extends Service {
         return START_NOT_STICKY;
     }
 
+    @GuardedBy("mLanes")
+    private void enqueueTask(@NonNull DownloadTask task) {
+        DownloadLane lane = mLanes.get(task.mNetwork);
+        if (lane == null) {
+            if (mLanes.isEmpty()) {
+                startForeground(getProgressNotificationId(), makeProgressNotification(task,
+                        null /* progress */));
+            }
+            lane = new DownloadLane(task.mNetwork);
+            mLanes.put(task.mNetwork, lane);
+            mExecutors.setDownloadLanes(mLanes.size());
+        }
+        lane.mQueue.add(task);
+        lane.mConcurrencyController.setWaitingDownloads(lane.mQueue.size());
+        lane.maybeStartWorkers();
+    }
+
+    @GuardedBy("mLanes")
+    private int getRunningDownloadCount() {
+        int count = 0;
+        for (DownloadLane lane : mLanes.values()) {
+            count += lane.mRunningTasks.size();
+        }
+        return count;
+    }
+
+    /**
+     * Remove a lane that has no more workers, and stop the foreground service if it was the last.
+     */
+    @GuardedBy("mLanes")
+    private void removeLane(@NonNull DownloadLane lane) {
+        mLanes.remove(lane.mNetwork);
+        mExecutors.setDownloadLanes(mLanes.size());
+        getSystemService(ConnectivityManager.class).unregisterNetworkCallback(
+                lane.mLossCallback);
+        if (mLanes.isEmpty()) {
+            stopForeground(true /* removeNotification */);
+        }
+    }
+
+    /**
+     * Queue, workers and state of the downloads on one network.
+     *
+     * <p>Each lane adapts its own concurrency to the goodput of its network, and tracks the
+     * health of the network: after repeated failures, the lane runs a single download at a time
+     * until one succeeds. A lane exists while it has workers, which is whenever it has queued or
+     * running downloads.
+     */
+    private class DownloadLane {
+        // Consecutive failures after which the network is considered unhealthy
+        private static final int UNHEALTHY_FAILURES = 2;
+
+        @NonNull
+        private final Network mNetwork;
+        @GuardedBy("mLanes")
+        private final Queue<DownloadTask> mQueue = new ArrayDeque<>(1);
+        // Downloads currently being processed by workers
+        @GuardedBy("mLanes")
+        private final Set<DownloadTask> mRunningTasks = new HashSet<>();
+        // Number of worker threads processing the queue, and how many of them are running a
+        // download
+        @GuardedBy("mLanes")
+        private int mWorkers = 0;
+        @GuardedBy("mLanes")
+        private int mBusyWorkers = 0;
+        // Downloads on the network that failed without getting a response since the last one
+        // that got one, excluding failures caused by the loss of the network
+        @GuardedBy("mLanes")
+        private int mConsecutiveFailures = 0;
+        @GuardedBy("mLanes")
+        private int mTotalFailures = 0;
+        private final DownloadConcurrencyController mConcurrencyController =
+                new DownloadConcurrencyController();
+        // Tunes the sockets of HTTPS downloads on the network. It is shared by the downloads of
+        // the lane so that they can reuse pooled connections.
+        private final DownloadSocketFactory mSocketFactory = new DownloadSocketFactory(
+                HttpsURLConnection.getDefaultSSLSocketFactory(), CONNECTION_TIMEOUT_MS);
+        // Callback for the loss of the network, to fail its downloads without waiting for
+        // connection timeouts
+        private final NetworkCallback mLossCallback = new NetworkCallback() {
+            // Whether the network was validated, to flush the DNS cache once it becomes so
+            private boolean mValidated = false;
+
+            @Override
+            public void onLost(Network network) {
+                if (mNetwork.equals(network)) {
+                    onNetworkLost(DownloadLane.this);
+                }
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
+                if (!mNetwork.equals(network)) return;
+                final boolean validated = nc.hasCapability(
+                        NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+                // Addresses resolved while the network was captive may have been spoofed
+                if (validated && !mValidated) DnsCache.getInstance().flush(network);
+                mValidated = validated;
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties lp) {
+                if (mNetwork.equals(network)) DnsCache.getInstance().flush(network);
+            }
+        };
+
+        DownloadLane(@NonNull Network network) {
+            mNetwork = network;
+            mConcurrencyController.reset(getLinkDownstreamKbps(network));
+            getSystemService(ConnectivityManager.class).registerNetworkCallback(
+                    new NetworkRequest.Builder().build(), mLossCallback);
+        }
+
+        @GuardedBy("mLanes")
+        private boolean isHealthy() {
+            return mConsecutiveFailures < UNHEALTHY_FAILURES;
+        }
+
+        @GuardedBy("mLanes")
+        private int getTargetConcurrency() {
+            final int target = isHealthy() ? mConcurrencyController.getTargetConcurrency() : 1;
+            return Math.min(target, mThrottlePolicy.getMaxConcurrency());
+        }
+
+        /**
+         * Start new workers if there are queued downloads and fewer workers than the target
+         * concurrency.
+         */
+        @GuardedBy("mLanes")
+        private void maybeStartWorkers() {
+            final int target = getTargetConcurrency();
+            // Idle workers will pick up queued downloads by themselves
+            while (mWorkers < target && mWorkers - mBusyWorkers < mQueue.size()) {
+                mWorkers++;
+                mExecutors.getDownloadExecutor().execute(new ProcessingRunnable(this));
+            }
+        }
+
+        @GuardedBy("mLanes")
+        private void onResponseReceived() {
+            mConsecutiveFailures = 0;
+        }
+
+        @GuardedBy("mLanes")
+        private void onNetworkFailure() {
+            mConsecutiveFailures++;
+            mTotalFailures++;
+        }
+
+        @GuardedBy("mLanes")
+        private void dump(@NonNull PrintWriter writer) {
+            writer.println(String.format("Network %s: queued %d, workers %d, busy %d, %s, "
+                    + "failures %d (consecutive %d)", mNetwork, mQueue.size(), mWorkers,
+                    mBusyWorkers, isHealthy() ? "healthy" : "unhealthy", mTotalFailures,
+                    mConsecutiveFailures));
+            for (DownloadTask task : mRunningTasks) {
+                final long transferred = task.mThroughput.getTotalBytes();
+                writer.println(String.format(
+                        "  Download %d: %d/%d bytes, rate %d B/s, remaining %d ms",
+                        task.mId, transferred, task.mContentLength, task.mThroughput.getRate(),
+                        task.mContentLength == CONTENT_LENGTH_UNKNOWN
+                                ? ThroughputEstimator.RATE_UNKNOWN
+                                : task.mThroughput.estimateRemainingMs(
+                                        task.mContentLength - transferred)));
+            }
+            // Connections are pooled and share the socket factory of the lane, so the sockets
+            // of downloads are not known: only the last one tuned on the lane is.
+            final String socketParams = mSocketFactory.getAppliedParams();
+            if (socketParams != null) {
+                writer.println("  Last tuned socket: " + socketParams);
+            }
+            mConcurrencyController.dump(writer);
+        }
+    }
+
+    /**
+     * Fail all downloads in the lane of a network that was lost.
+     *
+     * <p>Running downloads are aborted by closing their connection, so that they do not block a
+     * worker until the connection times out, and queued downloads fail immediately. Downloads on
+     * other networks run in their own lanes and are not affected, and neither are downloads that
+     * do not use the network anymore.
+     */
+    private void onNetworkLost(@NonNull DownloadLane lane) {
+        mNetworkMinRttMs.remove(lane.mNetwork);
+        mConnectors.remove(lane.mNetwork);
+        DnsCache.getInstance().flush(lane.mNetwork);
+        final List<DownloadTask> failedTasks = new ArrayList<>();
+        synchronized (mLanes) {
+            for (DownloadTask task : lane.mRunningTasks) {
+                if (task.usesNetwork()) {
+                    abortTask(task);
+                }
+            }
+            final Iterator<DownloadTask> it = lane.mQueue.iterator();
+            while (it.hasNext()) {
+                final DownloadTask task = it.next();
+                if (task.usesNetwork()) {
+                    it.remove();
+                    task.mNetworkLost = true;
+                    failedTasks.add(task);
+                }
+            }
+            lane.mConcurrencyController.setWaitingDownloads(lane.mQueue.size());
+        }
+
+        final NotificationManager nm = getSystemService(NotificationManager.class);
+        for (DownloadTask task : failedTasks) {
+            Log.e(TAG, "Network lost before download " + task.mId + " could start");
+            nm.notify(getDoneNotificationId(), makeErrorNotification(task.mDisplayName));
+            deleteTaskOutput(task);
+            reportStatus(task, STATUS_FAILED);
+        }
+    }
+
+    @GuardedBy("mLanes")
+    private void abortTask(@NonNull DownloadTask task) {
+        task.mNetworkLost = true;
+        final URLConnection connection = task.mConnection;
+        if (connection instanceof HttpURLConnection) {
+            // Closes the socket, so that any blocking read fails immediately.
+            ((HttpURLConnection) connection).disconnect();
+        }
+        final Thread worker = task.mWorkerThread;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private int getLinkDownstreamKbps(@NonNull Network network) {
+        final NetworkCapabilities nc = getSystemService(ConnectivityManager.class)
+                .getNetworkCapabilities(network);
+        return nc == null ? 0 : nc.getLinkDownstreamBandwidthKbps();
+    }
+
+    /**
+     * Get the best known bandwidth of the network of a lane, in bytes/second, or
+     * {@link DownloadSocketFactory#UNKNOWN}.
+     */
+    private long getPathBandwidth(@NonNull DownloadLane lane) {
+        final long linkBandwidth = getLinkDownstreamKbps(lane.mNetwork) * 1000L / 8;
+        final long measuredGoodput = lane.mConcurrencyController.getEstimatedGoodput();
+        final long bandwidth = Math.max(linkBandwidth, measuredGoodput);
+        return bandwidth > 0 ? bandwidth : DownloadSocketFactory.UNKNOWN;
+    }
+
+    private void setStagedDownloadDestination(@NonNull String stagingId, @NonNull Uri outFile) {
+        synchronized (mLanes) {
+            final DownloadTask task = mStagedTasks.remove(stagingId);
+            if (task != null) {
+                task.mOutFile = outFile;
+                // If the task is queued or being downloaded, it will pick up the destination by
+                // itself. Otherwise only the copy from the staging file remains to be done.
+                if (task.mStagingComplete) {
+                    enqueueTask(task);
+                }
+                return;
+            }
+        }
+        // The download already failed or was cancelled: the created file is not useful.
+        Log.e(TAG, "No staged download found for " + stagingId);
+        tryDeleteFile(outFile);
+    }
+
+    private void discardStagedDownload(@NonNull String stagingId) {
+        final DownloadTask task;
+        synchronized (mLanes) {
+            task = mStagedTasks.remove(stagingId);
+            if (task == null) return;
+            task.mDiscarded = true;
+            // If the task is being downloaded, it will clean up the staging file by itself when
+            // noticing mDiscarded.
+            final DownloadLane lane = mLanes.get(task.mNetwork);
+            final boolean wasQueued = lane != null && lane.mQueue.remove(task);
+            if (wasQueued) {
+                lane.mConcurrencyController.setWaitingDownloads(lane.mQueue.size());
+            } else if (!task.mStagingComplete) {
+                return;
+            }
+        }
+        task.mStagingFile.delete();
+        final File inlineFile = getInlineDownloadFile(task.mUrl);
+        if (inlineFile != null) inlineFile.delete();
+        reportStatus(task, STATUS_CANCELLED);
+    }
+
+    /**
+     * Send the status of a download to its status receiver, if any.
+     */
+    private void reportStatus(@NonNull DownloadTask task, int status) {
+        if (task.mStatusReceiver == null) return;
+        final Bundle data = new Bundle();
+        data.putInt(EXTRA_DOWNLOAD_ID, task.mId);
+        if (status == STATUS_PROGRESS) {
+            data.putLong(EXTRA_BYTES_TRANSFERRED, task.mThroughput.getTotalBytes());
+            data.putLong(EXTRA_CONTENT_LENGTH, task.mContentLength);
+        }
+        task.mStatusReceiver.send(status, data);
+    }
+
     private void createNotificationChannels() {
         final NotificationManager nm = getSystemService(NotificationManager.class);
         final Resources res = getResources();
@@ -256,154 +938,577 @@ public class DownloadService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (mLanes) {
+            writer.println(String.format("Download lanes: %d, staged downloads: %d",
+                    mLanes.size(), mStagedTasks.size()));
+            for (DownloadLane lane : mLanes.values()) {
+                lane.dump(writer);
+            }
+        }
+        mThrottlePolicy.dump(writer);
+        for (Map.Entry<Network, Long> rtt : mNetworkMinRttMs.entrySet()) {
+            writer.println(String.format("Network %s: min RTT %d ms", rtt.getKey(),
+                    rtt.getValue()));
+        }
+        for (Map.Entry<Network, DualStackConnector> connector : mConnectors.entrySet()) {
+            writer.print(String.format("Network %s: ", connector.getKey()));
+            connector.getValue().dump(writer);
+        }
+        DnsCache.getInstance().dump(writer);
+        mExecutors.dump(writer);
+    }
+
+    /**
+     * Get the target of a redirect response, or null if the response is not a redirect that can
+     * be followed. Like the platform, redirects to another protocol are not followed.
+     */
+    @Nullable
+    private static URL getRedirectLocation(@NonNull HttpURLConnection connection,
+            @NonNull URL url) throws IOException {
+        switch (connection.getResponseCode()) {
+            case HttpURLConnection.HTTP_MULT_CHOICE:
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case HTTP_TEMPORARY_REDIRECT:
+            case HTTP_PERMANENT_REDIRECT:
+                break;
+            default:
+                return null;
+        }
+        final String location = connection.getHeaderField("Location");
+        if (location == null) return null;
+        final URL target = new URL(url, location);
+        return target.getProtocol().equals(url.getProtocol()) ? target : null;
+    }
+
     private class ProcessingRunnable implements Runnable {
+        @NonNull
+        private final DownloadLane mLane;
+
+        ProcessingRunnable(@NonNull DownloadLane lane) {
+            mLane = lane;
+        }
+
         @Override
         public void run() {
+            final NotificationManager nm = getSystemService(NotificationManager.class);
             while (true) {
                 final DownloadTask task;
-                synchronized (mQueue) {
-                    task = mQueue.poll();
-                    if (task == null)  {
-                        mProcessing = false;
-                        stopForeground(true /* removeNotification */);
+                synchronized (mLanes) {
+                    // Exit if there is nothing to do, or if there are too many workers after the
+                    // target concurrency was reduced. The target is always at least 1, so the last
+                    // worker only exits when the queue is empty.
+                    if (mLane.mQueue.isEmpty()
+                            || mLane.mWorkers > mLane.getTargetConcurrency()) {
+                        mLane.mWorkers--;
+                        if (mLane.mWorkers == 0) {
+                            removeLane(mLane);
+                        }
                         return;
                     }
+                    task = mLane.mQueue.poll();
+                    mLane.mRunningTasks.add(task);
+                    task.mWorkerThread = Thread.currentThread();
+                    mLane.mBusyWorkers++;
+                    mLane.mConcurrencyController.setWaitingDownloads(mLane.mQueue.size());
+                    if (mForegroundNotificationTask != null) {
+                        task.mProgressNotificationTag = "download-" + task.mId;
+                    } else {
+                        mForegroundNotificationTask = task;
+                        task.mProgressNotificationTag = null;
+                    }
                 }
 
                 processDownload(task);
+                mCancelledDownloadIds.remove(task.mId);
+
+                synchronized (mLanes) {
+                    mLane.mRunningTasks.remove(task);
+                    task.mWorkerThread = null;
+                    task.mConnection = null;
+                    // Clear any interruption from abortTask, which must not affect the next task
+                    Thread.interrupted();
+                    mLane.mBusyWorkers--;
+                    if (task.mProgressNotificationTag == null) {
+                        // Don't clear the foreground notification: it will be removed when the
+                        // service stops, or taken over by a download that is still running or by
+                        // the next one.
+                        mForegroundNotificationTask = null;
+                    } else {
+                        nm.cancel(task.mProgressNotificationTag, getProgressNotificationId());
+                    }
+                    mLane.maybeStartWorkers();
+                }
             }
         }
 
         private void processDownload(@NonNull final DownloadTask task) {
             final NotificationManager nm = getSystemService(NotificationManager.class);
+            if (task.mStagingComplete) {
+                // Speculative download that was fully staged before its destination was known
+                finishStagedDownload(task, nm);
+                return;
+            }
             // Start by showing an indeterminate progress notification
-            nm.notify(NOTE_DOWNLOAD_PROGRESS, makeProgressNotification(task, null /* progress */));
+            nm.notify(task.mProgressNotificationTag, getProgressNotificationId(),
+                    makeProgressNotification(task, null /* progress */));
+            task.mLastProgressNotificationMs = SystemClock.elapsedRealtime();
             URLConnection connection = null;
+            boolean responseReceived = false;
             try {
-                final URL url = new URL(task.mUrl);
-
-                // This may fail if the network is not usable anymore, which is the expected
-                // behavior: the download should fail if it cannot be completed on the assigned
-                // network.
-                connection = task.mNetwork.openConnection(url);
-                connection.setConnectTimeout(CONNECTION_TIMEOUT_MS);
-                connection.setReadTimeout(CONNECTION_TIMEOUT_MS);
-                connection.setRequestProperty("User-Agent", task.mUserAgent);
+                if (task.isInline()) {
+                    // Inline content is decoded locally: there is nothing to fetch.
+                    processInlineDownload(task, nm);
+                    return;
+                }
+                URL url = new URL(task.mUrl);
+                final long rttMs = mNetworkMinRttMs.getOrDefault(task.mNetwork,
+                        DownloadSocketFactory.UNKNOWN);
+                final DualStackConnector connector = mConnectors.computeIfAbsent(task.mNetwork,
+                        network -> DualStackConnector.forNetwork(mExecutors.getConnectExecutor(),
+                                getSystemService(ConnectivityManager.class), network,
+                                CONNECTION_TIMEOUT_MS));
 
                 long contentLength = CONTENT_LENGTH_UNKNOWN;
-                if (connection instanceof HttpURLConnection) {
+                for (int redirects = 0; ; redirects++) {
+                    // This may fail if the network is not usable anymore, which is the expected
+                    // behavior: the download should fail if it cannot be completed on the
+                    // assigned network.
+                    connection = connector.openConnection(url);
+                    synchronized (mLanes) {
+                        if (task.mNetworkLost) {
+                            throw new IOException("Network lost");
+                        }
+                        task.mConnection = connection;
+                    }
+                    final DownloadSocketFactory socketFactory =
+                            setUpConnection(task, connection, rttMs);
+                    if (!(connection instanceof HttpURLConnection)) break;
+
                     final HttpURLConnection httpConn = (HttpURLConnection) connection;
+                    // Follow redirects here, so that the connector also races the connections to
+                    // redirect targets.
+                    httpConn.setInstanceFollowRedirects(false);
+                    final long requestStartMs = SystemClock.elapsedRealtime();
                     final int responseCode = httpConn.getResponseCode();
+                    updateNetworkRtt(task, socketFactory,
+                            SystemClock.elapsedRealtime() - requestStartMs);
+                    responseReceived = true;
+                    synchronized (mLanes) {
+                        mLane.onResponseReceived();
+                    }
+                    final URL location = getRedirectLocation(httpConn, url);
+                    if (location != null) {
+                        if (redirects >= MAX_REDIRECTS) {
+                            throw new IOException("Download error: too many redirects");
+                        }
+                        httpConn.disconnect();
+                        url = location;
+                        continue;
+                    }
                     if (responseCode < 200 || responseCode > 299) {
                         throw new IOException("Download error: response code " + responseCode);
                     }
 
                     contentLength = httpConn.getContentLengthLong();
+                    break;
                 }
 
-                try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(
-                        task.mOutFile, "rwt");
-                     FileOutputStream fop = new FileOutputStream(pfd.getFileDescriptor())) {
-                    final InputStream is = connection.getInputStream();
+                if (ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                    // Progress is tracked against the compressed bytes, which Content-Length
+                    // refers to.
+                    final CountingInputStream wireStream =
+                            new CountingInputStream(connection.getInputStream());
+                    writeDownload(task, DownloadEngine.decodingSource(
+                            new GZIPInputStream(wireStream), wireStream), contentLength, nm);
+                } else {
+                    writeDownload(task, DownloadEngine.streamSource(connection.getInputStream()),
+                            contentLength, nm);
+                }
+            } catch (IOException e) {
+                Log.e(DownloadService.class.getSimpleName(), "Download error", e);
+                if (!task.mNetworkLost) {
+                    // Network loss is not a sign of congestion, nor of a bad network
+                    mLane.mConcurrencyController.onDownloadError(SystemClock.elapsedRealtime());
+                    if (!responseReceived) {
+                        synchronized (mLanes) {
+                            mLane.onNetworkFailure();
+                        }
+                    }
+                }
+                nm.notify(getDoneNotificationId(), makeErrorNotification(task.mDisplayName));
+                deleteTaskOutput(task);
+                reportStatus(task, STATUS_FAILED);
+            } finally {
+                if (connection instanceof HttpURLConnection) {
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        }
+
+        /**
+         * Set the timeouts, socket tuning and headers of a download connection.
+         * @return The socket factory tuning the connection, or null for plain HTTP.
+         */
+        @Nullable
+        private DownloadSocketFactory setUpConnection(@NonNull DownloadTask task,
+                @NonNull URLConnection connection, long rttMs) {
+            connection.setConnectTimeout(DownloadSocketFactory.computeConnectTimeoutMs(
+                    rttMs, CONNECTION_TIMEOUT_MS));
+            connection.setReadTimeout(CONNECTION_TIMEOUT_MS);
+            // Sockets of HTTPS connections can be tuned when TLS is layered on top of them;
+            // there is no such hook for plain HTTP, which only gets the timeouts.
+            DownloadSocketFactory socketFactory = null;
+            if (connection instanceof HttpsURLConnection) {
+                socketFactory = mLane.mSocketFactory;
+                socketFactory.setReceiveBufferSize(mThrottlePolicy.allowsReceiveBufferGrowth()
+                        ? DownloadSocketFactory.computeReceiveBufferSize(
+                                getPathBandwidth(mLane), rttMs)
+                        : 0);
+                ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+            }
+            connection.setRequestProperty("User-Agent", task.mUserAgent);
+            // Setting Accept-Encoding disables transparent decompression by the platform,
+            // which would hide the Content-Length and prevent showing progress. Request
+            // compression only for content that benefits from it, and decode it here.
+            connection.setRequestProperty("Accept-Encoding",
+                    isCompressible(task) ? ENCODING_GZIP : ENCODING_IDENTITY);
+            return socketFactory;
+        }
+
+        /**
+         * Update the round-trip time measured on the network of a task.
+         * @param responseMs Time it took to receive the response headers.
+         */
+        private void updateNetworkRtt(@NonNull DownloadTask task,
+                @Nullable DownloadSocketFactory socketFactory, long responseMs) {
+            // The TLS handshake takes one or two round trips. When no handshake happened on the
+            // network, because the connections are not encrypted, the time to receive response
+            // headers is a coarser upper bound.
+            final long handshakeMs = socketFactory == null
+                    ? DownloadSocketFactory.UNKNOWN : socketFactory.getHandshakeMs();
+            final long sampleMs = handshakeMs > 0 ? handshakeMs : responseMs;
+            if (sampleMs > 0) {
+                mNetworkMinRttMs.merge(task.mNetwork, sampleMs, Math::min);
+            }
+        }
+
+        /**
+         * Decode an inline (data:) download into its output, or copy the file it was decoded to,
+         * without using the network.
+         */
+        private void processInlineDownload(@NonNull DownloadTask task,
+                @NonNull NotificationManager nm) throws IOException {
+            final File file = getInlineDownloadFile(task.mUrl);
+            if (file == null) {
+                try (InputStream is = DataUrl.openStream(task.mUrl)) {
+                    writeDownload(task, DownloadEngine.streamSource(is),
+                            DataUrl.estimateDecodedLength(task.mUrl), nm);
+                }
+                return;
+            }
+            try (InputStream is = new FileInputStream(file)) {
+                writeDownload(task, DownloadEngine.streamSource(is), file.length(), nm);
+            } finally {
+                file.delete();
+            }
+        }
+
+        /**
+         * Write the content of a download to its output and notify the user when it is done.
+         */
+        private void writeDownload(@NonNull DownloadTask task,
+                @NonNull DownloadEngine.Source source, long contentLength,
+                @NonNull NotificationManager nm) throws IOException {
+            if (task.mSaveToDownloads) {
+                task.mOutFile = insertPendingDownload(task);
+            }
+
+            try (DownloadOutput output = new DownloadOutput(task)) {
+                if (!downloadToFile(source, output, contentLength, task, nm)) {
+                    // Download cancelled
+                    deleteTaskOutput(task);
+                    reportStatus(task, STATUS_CANCELLED);
+                    // Don't clear the notification: this will be done when the service stops
+                    // (foreground service notifications cannot be cleared).
+                    return;
+                }
 
-                    if (!downloadToFile(is, fop, contentLength, task, nm)) {
-                        // Download cancelled
-                        tryDeleteFile(task.mOutFile);
-                        // Don't clear the notification: this will be done when the service stops
-                        // (foreground service notifications cannot be cleared).
+                synchronized (mLanes) {
+                    if (task.mDiscarded) {
+                        task.mStagingFile.delete();
+                        reportStatus(task, STATUS_CANCELLED);
+                        return;
+                    }
+                    if (task.mOutFile == null) {
+                        // The destination is not known yet: the task will be queued again
+                        // when it is.
+                        task.mStagingComplete = true;
                         return;
                     }
                 }
+                output.maybeMoveToDestination();
+            }
 
-                nm.notify(NOTE_DOWNLOAD_DONE,
+            if (task.mSaveToDownloads) {
+                publishPendingDownload(task.mOutFile);
+            }
+            nm.notify(getDoneNotificationId(),
+                    makeDoneNotification(task.mId, task.mDisplayName, task.mOutFile));
+            reportStatus(task, STATUS_COMPLETED);
+        }
+
+        /**
+         * Copy a fully staged speculative download to its destination.
+         */
+        private void finishStagedDownload(@NonNull DownloadTask task,
+                @NonNull NotificationManager nm) {
+            try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(
+                    task.mOutFile, "rwt");
+                 FileOutputStream fop = new FileOutputStream(pfd.getFileDescriptor());
+                 FileInputStream staged = new FileInputStream(task.mStagingFile)) {
+                transferAll(staged.getChannel(), fop.getChannel());
+                nm.notify(getDoneNotificationId(),
                         makeDoneNotification(task.mId, task.mDisplayName, task.mOutFile));
+                reportStatus(task, STATUS_COMPLETED);
             } catch (IOException e) {
-                Log.e(DownloadService.class.getSimpleName(), "Download error", e);
-                nm.notify(NOTE_DOWNLOAD_DONE, makeErrorNotification(task.mDisplayName));
+                Log.e(TAG, "Error moving staged download", e);
+                nm.notify(getDoneNotificationId(), makeErrorNotification(task.mDisplayName));
                 tryDeleteFile(task.mOutFile);
+                reportStatus(task, STATUS_FAILED);
             } finally {
-                if (connection instanceof HttpURLConnection) {
-                    ((HttpURLConnection) connection).disconnect();
-                }
+                task.mStagingFile.delete();
+            }
+        }
+
+        /**
+         * Create the pending MediaStore.Downloads entry that a download will be written to.
+         */
+        @NonNull
+        private Uri insertPendingDownload(@NonNull DownloadTask task) throws IOException {
+            final ContentValues values = new ContentValues();
+            values.put(MediaStore.Downloads.DISPLAY_NAME, task.mDisplayName);
+            if (task.mMimeType != null) {
+                values.put(MediaStore.Downloads.MIME_TYPE, task.mMimeType);
+            }
+            // Pending entries are not visible to other apps until published
+            values.put(MediaStore.Downloads.IS_PENDING, 1);
+            final Uri uri = getContentResolver().insert(
+                    MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY),
+                    values);
+            if (uri == null) {
+                throw new IOException("Could not create download entry for " + task.mDisplayName);
             }
+            return uri;
+        }
+
+        private void publishPendingDownload(@NonNull Uri outFile) {
+            final ContentValues values = new ContentValues();
+            values.put(MediaStore.Downloads.IS_PENDING, 0);
+            getContentResolver().update(outFile, values, null /* where */,
+                    null /* selectionArgs */);
         }
 
         /**
-         * Download the contents of an {@link InputStream} to a {@link FileOutputStream}, and
-         * updates the progress notification.
+         * Download the content of a {@link DownloadEngine.Source} to a {@link DownloadOutput},
+         * and update the progress notification.
          * @return True if download is completed, false if cancelled
          */
-        private boolean downloadToFile(@NonNull InputStream is, @NonNull FileOutputStream fop,
-                long contentLength, @NonNull DownloadTask task,
+        private boolean downloadToFile(@NonNull DownloadEngine.Source source,
+                @NonNull DownloadOutput output, long contentLength, @NonNull DownloadTask task,
                 @NonNull NotificationManager nm) throws IOException {
-            final byte[] buffer = new byte[1500];
-            int allRead = 0;
-            final long maxRead = contentLength == CONTENT_LENGTH_UNKNOWN
-                    ? Long.MAX_VALUE : contentLength;
-            int lastProgress = -1;
-            long lastUpdateTime = -1L;
-            while (allRead < maxRead) {
-                if (task.mId <= mMaxCancelDownloadId) {
-                    return false;
+            task.mContentLength = contentLength;
+            final DownloadEngine.Progress progress = new DownloadEngine.Progress() {
+                @Override
+                public boolean isCancelled() {
+                    return mCancelledDownloadIds.contains(task.mId) || task.mDiscarded;
                 }
 
-                final int read = is.read(buffer, 0, (int) min(buffer.length, maxRead - allRead));
-                if (read < 0) {
-                    // End of stream
-                    break;
+                @Override
+                public void onBytesTransferred(long bytes, long nowMs) {
+                    task.mThroughput.onBytesTransferred(bytes, nowMs);
+                    if (mLane.mConcurrencyController.onBytesTransferred(bytes, nowMs)) {
+                        synchronized (mLanes) {
+                            mLane.maybeStartWorkers();
+                        }
+                    }
                 }
 
-                allRead += read;
-                fop.write(buffer, 0, read);
+                @Override
+                public long getMaxReadRate() {
+                    return mThrottlePolicy.getMaxReadRate();
+                }
 
-                final Integer progress = getProgress(contentLength, allRead);
-                if (progress == null || progress.equals(lastProgress)) continue;
+                @Override
+                public void onProgress(@Nullable Integer progress) {
+                    maybeNotifyProgress(task, progress, nm);
+                    reportStatus(task, STATUS_PROGRESS);
+                }
+            };
+            if (!mEngine.transfer(source, output, contentLength, progress)) return false;
+            // The length may have been estimated, as for inline downloads: report the transferred
+            // length as the length of the completed download.
+            task.mContentLength = task.mThroughput.getTotalBytes();
+            return true;
+        }
 
-                final long now = System.currentTimeMillis();
-                if (maybeNotifyProgress(progress, lastProgress, now, lastUpdateTime, task, nm)) {
-                    lastUpdateTime = now;
+        /**
+         * Update the progress notification of a download, unless the number of parallel
+         * downloads requires updating it less often.
+         */
+        private void maybeNotifyProgress(@NonNull DownloadTask task, @Nullable Integer progress,
+                @NonNull NotificationManager nm) {
+            final long nowMs = SystemClock.elapsedRealtime();
+            synchronized (mLanes) {
+                if (mForegroundNotificationTask == null) {
+                    // The download shown in the foreground notification is done: show this one,
+                    // which is still running, instead of its own notification.
+                    nm.cancel(task.mProgressNotificationTag, getProgressNotificationId());
+                    task.mProgressNotificationTag = null;
+                    mForegroundNotificationTask = task;
+                } else if (nowMs - task.mLastProgressNotificationMs
+                        < PROGRESS_NOTIFICATION_INTERVAL_MS * getRunningDownloadCount()) {
+                    return;
                 }
-                lastProgress = progress;
             }
-            return true;
+            task.mLastProgressNotificationMs = nowMs;
+            nm.notify(task.mProgressNotificationTag, getProgressNotificationId(),
+                    makeProgressNotification(task, progress));
         }
+    }
 
-        private void tryDeleteFile(@NonNull Uri file) {
-            try {
-                // The file was not created by the DownloadService, however because the service
-                // is only usable from this application, and the file should be created from this
-                // same application, the content resolver should be the same.
-                DocumentsContract.deleteDocument(getContentResolver(), file);
-            } catch (FileNotFoundException e) {
-                // Nothing to delete
+    /**
+     * Output of a download.
+     *
+     * <p>Speculative downloads are written to their staging file until the destination is known,
+     * after which the data written so far is moved to the destination and the download continues
+     * there. Other downloads are written to their destination directly.
+     */
+    private class DownloadOutput implements DownloadEngine.Sink, Closeable {
+        @NonNull
+        private final DownloadTask mTask;
+        @Nullable
+        private FileOutputStream mStagingStream;
+        @Nullable
+        private ParcelFileDescriptor mOutPfd;
+        @Nullable
+        private FileOutputStream mOutStream;
+
+        DownloadOutput(@NonNull DownloadTask task) throws IOException {
+            mTask = task;
+            final Uri outFile = task.mOutFile;
+            if (outFile != null) {
+                openDestination(outFile);
+            } else {
+                mStagingStream = new FileOutputStream(task.mStagingFile);
             }
         }
 
-        private Integer getProgress(long contentLength, long totalRead) {
-            if (contentLength == CONTENT_LENGTH_UNKNOWN || contentLength == 0) return null;
-            return (int) (totalRead * 100 / contentLength);
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            if (mOutStream == null) {
+                maybeMoveToDestination();
+            }
+            (mOutStream != null ? mOutStream : mStagingStream).write(buffer, offset, count);
         }
 
         /**
-         * Update the progress notification, if it was not updated recently.
-         * @return True if progress was updated.
+         * Move the data staged so far to the destination of the download, if it is known.
          */
-        private boolean maybeNotifyProgress(int progress, int lastProgress, long now,
-                long lastProgressUpdateTimeMs, @NonNull DownloadTask task,
-                @NonNull NotificationManager nm) {
-            if (lastProgress > 0 && progress < 100
-                    && lastProgressUpdateTimeMs > 0
-                    && now - lastProgressUpdateTimeMs < MAX_PROGRESS_UPDATE_RATE_MS) {
-                // Rate-limit intermediate progress updates: NotificationManager will start ignoring
-                // notifications from the current process if too many updates are posted too fast.
-                // The shown progress will not "lag behind" much in most cases. An alternative
-                // would be to delay the progress update to rate-limit, but this would bring
-                // synchronization problems.
-                return false;
-            }
-            final Notification note = makeProgressNotification(task, progress);
-            nm.notify(NOTE_DOWNLOAD_PROGRESS, note);
-            return true;
+        void maybeMoveToDestination() throws IOException {
+            final Uri outFile = mTask.mOutFile;
+            if (mOutStream != null || outFile == null) return;
+
+            openDestination(outFile);
+            mStagingStream.close();
+            mStagingStream = null;
+            try (FileInputStream staged = new FileInputStream(mTask.mStagingFile)) {
+                transferAll(staged.getChannel(), mOutStream.getChannel());
+            }
+            mTask.mStagingFile.delete();
+        }
+
+        private void openDestination(@NonNull Uri outFile) throws IOException {
+            mOutPfd = getContentResolver().openFileDescriptor(outFile, "rwt");
+            if (mOutPfd == null) {
+                throw new FileNotFoundException("Could not open " + outFile);
+            }
+            mOutStream = new FileOutputStream(mOutPfd.getFileDescriptor());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mStagingStream != null) mStagingStream.close();
+            if (mOutStream != null) mOutStream.close();
+            if (mOutPfd != null) mOutPfd.close();
+        }
+    }
+
+    /**
+     * Indicates whether the content of a download is worth transferring compressed.
+     *
+     * <p>Downloads are always complete transfers (no range requests), so compression does not
+     * interfere with resuming.
+     */
+    private static boolean isCompressible(@NonNull DownloadTask task) {
+        String mimeType = task.mMimeType;
+        if (mimeType == null) {
+            mimeType = URLConnection.guessContentTypeFromName(task.mDisplayName);
+        }
+        if (mimeType == null) return false;
+        mimeType = mimeType.toLowerCase(Locale.ROOT);
+        for (String prefix : COMPRESSIBLE_TYPE_PREFIXES) {
+            if (mimeType.startsWith(prefix)) return true;
+        }
+        for (String suffix : COMPRESSIBLE_TYPE_SUFFIXES) {
+            if (mimeType.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copy the whole contents of a file to another, using the kernel to move the data where
+     * possible.
+     */
+    private static void transferAll(@NonNull FileChannel source, @NonNull FileChannel target)
+            throws IOException {
+        final long size = source.size();
+        long position = 0;
+        while (position < size) {
+            position += source.transferTo(position, size - position, target);
+        }
+    }
+
+    /**
+     * Delete the partial output of a failed or cancelled download.
+     */
+    private void deleteTaskOutput(@NonNull DownloadTask task) {
+        if (task.mStagingFile != null) {
+            synchronized (mLanes) {
+                mStagedTasks.values().remove(task);
+            }
+            task.mStagingFile.delete();
+        }
+        final Uri outFile = task.mOutFile;
+        if (outFile == null) return;
+        if (task.mSaveToDownloads) {
+            getContentResolver().delete(outFile, null /* where */, null /* selectionArgs */);
+        } else {
+            tryDeleteFile(outFile);
+        }
+    }
+
+    private void tryDeleteFile(@NonNull Uri file) {
+        try {
+            // The file was not created by the DownloadService, however because the service
+            // is only usable from this application, and the file should be created from this
+            // same application, the content resolver should be the same.
+            DocumentsContract.deleteDocument(getContentResolver(), file);
+        } catch (FileNotFoundException e) {
+            // Nothing to delete
         }
     }
 
@@ -411,15 +1516,43 @@ public class DownloadService extends Service {
     private Notification makeProgressNotification(@NonNull DownloadTask task,
             @Nullable Integer progress) {
         return task.mCachedNotificationBuilder
-                .setContentText(progress == null
-                        ? null
-                        : NumberFormat.getPercentInstance().format(progress.floatValue() / 100))
+                .setContentText(getProgressText(task, progress))
                 .setProgress(100,
                         progress == null ? 0 : progress,
                         progress == null /* indeterminate */)
                 .build();
     }
 
+    /**
+     * Get the text describing the progress of a download: percentage or transferred size, then
+     * current rate and remaining time when they can be estimated.
+     */
+    @Nullable
+    private String getProgressText(@NonNull DownloadTask task, @Nullable Integer progress) {
+        final long transferred = task.mThroughput.getTotalBytes();
+        final String amount;
+        if (progress != null) {
+            amount = NumberFormat.getPercentInstance().format(progress.floatValue() / 100);
+        } else if (transferred > 0) {
+            amount = Formatter.formatShortFileSize(this, transferred);
+        } else {
+            return null;
+        }
+
+        final long rate = task.mThroughput.getRate();
+        if (rate == ThroughputEstimator.RATE_UNKNOWN) return amount;
+        final String rateText = getString(R.string.download_rate,
+                Formatter.formatShortFileSize(this, rate));
+        final long remainingMs = progress == null
+                ? ThroughputEstimator.RATE_UNKNOWN
+                : task.mThroughput.estimateRemainingMs(task.mContentLength - transferred);
+        if (remainingMs == ThroughputEstimator.RATE_UNKNOWN) {
+            return getString(R.string.download_progress_rate, amount, rateText);
+        }
+        return getString(R.string.download_progress_rate_remaining, amount, rateText,
+                DateUtils.formatElapsedTime(remainingMs / DateUtils.SECOND_IN_MILLIS));
+    }
+
     @NonNull
     private Notification makeDoneNotification(int taskId, @NonNull String displayName,
             @NonNull Uri outFile) {
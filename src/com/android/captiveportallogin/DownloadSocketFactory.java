@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link SSLSocketFactory} for download connections, which tunes the sockets that the platform
+ * creates on the download network before TLS is layered on top of them.
+ *
+ * <p>The receive buffer is sized from the bandwidth-delay product of the path, so that a single
+ * flow can fill long fat links such as satellite or in-flight connections. As setting the buffer
+ * size disables receive buffer autotuning and locks the window at that size, it is only done when
+ * the buffer needs to be larger than what autotuning can reach, as configured by the tcp_rmem
+ * sysctl.
+ * The factory also measures the duration of TLS handshakes, which gives an upper bound of the
+ * round-trip time of the path.
+ *
+ * <p>The platform only reuses pooled connections created with the same socket factory, so a
+ * single factory is used for all downloads on a network, and its parameters are updated as the
+ * path is measured. Updates apply to sockets created afterwards.
+ */
+class DownloadSocketFactory extends SSLSocketFactory {
+    private static final String TAG = DownloadSocketFactory.class.getSimpleName();
+
+    static final long UNKNOWN = -1L;
+    @VisibleForTesting
+    static final int MIN_RECEIVE_BUFFER_SIZE = 256 * 1024;
+    @VisibleForTesting
+    static final int MAX_RECEIVE_BUFFER_SIZE = 8 * 1024 * 1024;
+    @VisibleForTesting
+    static final int MIN_CONNECT_TIMEOUT_MS = 10_000;
+    // Connection establishment may need a few round trips, each of which may need retransmits.
+    private static final int CONNECT_TIMEOUT_RTTS = 20;
+    // Minimum, default and maximum sizes of TCP receive buffers, autotuning growing them up to
+    // the maximum
+    private static final String TCP_RMEM_PATH = "/proc/sys/net/ipv4/tcp_rmem";
+
+    @NonNull
+    private final SSLSocketFactory mBase;
+    private final int mSoTimeoutMs;
+    // Maximum receive buffer size reached by autotuning, or UNKNOWN
+    private final long mAutotuningMaxBufferSize;
+
+    private volatile int mReceiveBufferSize = 0;
+    @Nullable
+    private volatile String mAppliedParams;
+    @GuardedBy("this")
+    private long mHandshakeMs = UNKNOWN;
+
+    /**
+     * Create a socket factory.
+     * @param base Factory used to create TLS sockets over the tuned sockets.
+     * @param soTimeoutMs Read timeout to set on the sockets.
+     */
+    DownloadSocketFactory(@NonNull SSLSocketFactory base, int soTimeoutMs) {
+        this(base, soTimeoutMs, readAutotuningMaxBufferSize());
+    }
+
+    /**
+     * Create a socket factory.
+     * @param autotuningMaxBufferSize Maximum receive buffer size reached by autotuning, or
+     *                                {@link #UNKNOWN} to never set the buffer size.
+     */
+    @VisibleForTesting
+    DownloadSocketFactory(@NonNull SSLSocketFactory base, int soTimeoutMs,
+            long autotuningMaxBufferSize) {
+        mBase = base;
+        mSoTimeoutMs = soTimeoutMs;
+        mAutotuningMaxBufferSize = autotuningMaxBufferSize;
+    }
+
+    /**
+     * Parse the maximum buffer size from the value of the tcp_rmem sysctl.
+     * @return The size in bytes, or {@link #UNKNOWN} if the value is invalid.
+     */
+    @VisibleForTesting
+    static long parseTcpRmemMax(@Nullable String tcpRmem) {
+        if (tcpRmem == null) return UNKNOWN;
+        final String[] sizes = tcpRmem.trim().split("\\s+");
+        if (sizes.length != 3) return UNKNOWN;
+        try {
+            final long max = Long.parseLong(sizes[2]);
+            return max > 0 ? max : UNKNOWN;
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static long readAutotuningMaxBufferSize() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(TCP_RMEM_PATH))) {
+            return parseTcpRmemMax(reader.readLine());
+        } catch (IOException | SecurityException e) {
+            // Without knowing what autotuning reaches, buffers are left to it.
+            Log.w(TAG, "Could not read " + TCP_RMEM_PATH + ": " + e.getMessage());
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Set the receive buffer size of the sockets created from now on.
+     * @param receiveBufferSize Receive buffer size to use if autotuning cannot reach it, or 0 to
+     *                          keep the default.
+     */
+    void setReceiveBufferSize(int receiveBufferSize) {
+        mReceiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Compute the receive buffer size for a path.
+     * @param bandwidthBytesPerSec Bandwidth of the path, or {@link #UNKNOWN}.
+     * @param rttMs Round-trip time of the path, or {@link #UNKNOWN}.
+     * @return The buffer size in bytes, or 0 if the default should be kept.
+     */
+    static int computeReceiveBufferSize(long bandwidthBytesPerSec, long rttMs) {
+        if (bandwidthBytesPerSec <= 0 || rttMs <= 0) return 0;
+        // Twice the bandwidth-delay product leaves room for the application not reading
+        // immediately, without causing the sender to stall.
+        final long size = 2 * bandwidthBytesPerSec * rttMs / 1000;
+        if (size < MIN_RECEIVE_BUFFER_SIZE) return 0;
+        return (int) Math.min(size, MAX_RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Compute the connect timeout for a path.
+     * @param rttMs Round-trip time of the path, or {@link #UNKNOWN}.
+     * @param maxTimeoutMs Timeout to use if the round-trip time is unknown, and maximum timeout.
+     */
+    static int computeConnectTimeoutMs(long rttMs, int maxTimeoutMs) {
+        if (rttMs <= 0) return maxTimeoutMs;
+        final long timeout = Math.max(MIN_CONNECT_TIMEOUT_MS, rttMs * CONNECT_TIMEOUT_RTTS);
+        return (int) Math.min(timeout, maxTimeoutMs);
+    }
+
+    /**
+     * Get a description of the parameters applied to the last socket, or null if no socket was
+     * created.
+     */
+    @Nullable
+    String getAppliedParams() {
+        return mAppliedParams;
+    }
+
+    /**
+     * Get the duration of the shortest TLS handshake, or {@link #UNKNOWN} if none completed.
+     */
+    synchronized long getHandshakeMs() {
+        return mHandshakeMs;
+    }
+
+    private synchronized void onHandshakeCompleted(long handshakeMs) {
+        mHandshakeMs = mHandshakeMs == UNKNOWN ? handshakeMs : Math.min(mHandshakeMs, handshakeMs);
+    }
+
+    @VisibleForTesting
+    void tuneSocket(@NonNull Socket socket) {
+        final int receiveBufferSize = mReceiveBufferSize;
+        try {
+            // The current size of the buffer is only where autotuning starts: compare with
+            // where it can grow instead.
+            final boolean setBufferSize = mAutotuningMaxBufferSize != UNKNOWN
+                    && receiveBufferSize > mAutotuningMaxBufferSize;
+            if (setBufferSize) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(mSoTimeoutMs);
+            mAppliedParams = String.format("rcvbuf %s (requested %d, autotuning max %d), "
+                    + "keepalive %b, timeout %d ms",
+                    setBufferSize ? socket.getReceiveBufferSize() : "autotuned",
+                    receiveBufferSize, mAutotuningMaxBufferSize, socket.getKeepAlive(),
+                    socket.getSoTimeout());
+        } catch (SocketException e) {
+            // Tuning is best-effort: the socket is still usable with default parameters.
+            Log.w(TAG, "Could not tune download socket", e);
+        }
+    }
+
+    @NonNull
+    private Socket onTlsSocketCreated(@NonNull Socket socket) {
+        if (socket instanceof SSLSocket) {
+            final long startMs = SystemClock.elapsedRealtime();
+            ((SSLSocket) socket).addHandshakeCompletedListener(
+                    event -> onHandshakeCompleted(SystemClock.elapsedRealtime() - startMs));
+        }
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+            throws IOException {
+        // This is the method used to layer TLS over the network-bound socket, which may be the
+        // socket that won a connection race.
+        final Socket socket = SocketHandover.unwrap(s);
+        tuneSocket(socket);
+        return onTlsSocketCreated(mBase.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        final Socket socket = mBase.createSocket(host, port);
+        tuneSocket(socket);
+        return onTlsSocketCreated(socket);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        final Socket socket = mBase.createSocket(host, port, localHost, localPort);
+        tuneSocket(socket);
+        return onTlsSocketCreated(socket);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        final Socket socket = mBase.createSocket(host, port);
+        tuneSocket(socket);
+        return onTlsSocketCreated(socket);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+            int localPort) throws IOException {
+        final Socket socket = mBase.createSocket(address, port, localAddress, localPort);
+        tuneSocket(socket);
+        return onTlsSocketCreated(socket);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mBase.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mBase.getSupportedCipherSuites();
+    }
+}
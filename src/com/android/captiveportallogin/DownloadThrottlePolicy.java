@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import static android.os.PowerManager.THERMAL_STATUS_CRITICAL;
+import static android.os.PowerManager.THERMAL_STATUS_MODERATE;
+import static android.os.PowerManager.THERMAL_STATUS_NONE;
+import static android.os.PowerManager.THERMAL_STATUS_SEVERE;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Policy throttling downloads according to the thermal status of the device and battery saver.
+ *
+ * <p>As the throttling level escalates, the policy first caps the number of parallel downloads
+ * and stops growing socket receive buffers beyond their default, then limits the read rate of each
+ * download. Limits are lifted as soon as the conditions improve.
+ *
+ * <p>This class is thread-safe.
+ */
+class DownloadThrottlePolicy {
+    @VisibleForTesting
+    static final int LEVEL_NONE = 0;
+    // Battery saver, or moderate thermal status
+    @VisibleForTesting
+    static final int LEVEL_LIGHT = 1;
+    @VisibleForTesting
+    static final int LEVEL_SEVERE = 2;
+    @VisibleForTesting
+    static final int LEVEL_CRITICAL = 3;
+
+    static final long RATE_UNLIMITED = DownloadEngine.RATE_UNLIMITED;
+    private static final int[] MAX_CONCURRENCY = new int[] {
+            DownloadConcurrencyController.MAX_CONCURRENCY, 2, 1, 1 };
+    // Read rate limit per download, in bytes/second
+    private static final long[] MAX_READ_RATE = new long[] {
+            RATE_UNLIMITED, RATE_UNLIMITED, 1_000_000L, 250_000L };
+    // Number of throttle decisions kept for debugging
+    private static final int MAX_DECISIONS = 20;
+
+    @GuardedBy("this")
+    private int mThermalStatus = THERMAL_STATUS_NONE;
+    @GuardedBy("this")
+    private boolean mPowerSaveMode = false;
+    @GuardedBy("this")
+    private int mLevel = LEVEL_NONE;
+    @GuardedBy("this")
+    private final ArrayDeque<String> mDecisions = new ArrayDeque<>(MAX_DECISIONS);
+
+    /**
+     * Update the thermal status of the device.
+     * @param thermalStatus One of the PowerManager.THERMAL_STATUS_* constants.
+     * @return True if the throttling level changed.
+     */
+    synchronized boolean setThermalStatus(int thermalStatus, long nowMs) {
+        mThermalStatus = thermalStatus;
+        return updateLevel(nowMs);
+    }
+
+    /**
+     * Update whether battery saver is enabled.
+     * @return True if the throttling level changed.
+     */
+    synchronized boolean setPowerSaveMode(boolean powerSaveMode, long nowMs) {
+        mPowerSaveMode = powerSaveMode;
+        return updateLevel(nowMs);
+    }
+
+    @GuardedBy("this")
+    private boolean updateLevel(long nowMs) {
+        final int level;
+        if (mThermalStatus >= THERMAL_STATUS_CRITICAL) {
+            level = LEVEL_CRITICAL;
+        } else if (mThermalStatus >= THERMAL_STATUS_SEVERE) {
+            level = LEVEL_SEVERE;
+        } else if (mThermalStatus >= THERMAL_STATUS_MODERATE || mPowerSaveMode) {
+            level = LEVEL_LIGHT;
+        } else {
+            level = LEVEL_NONE;
+        }
+        if (level == mLevel) return false;
+
+        if (mDecisions.size() >= MAX_DECISIONS) {
+            mDecisions.removeFirst();
+        }
+        mDecisions.addLast(String.format("%d: level %d -> %d (thermal status %d, power save %b)",
+                nowMs, mLevel, level, mThermalStatus, mPowerSaveMode));
+        mLevel = level;
+        return true;
+    }
+
+    @VisibleForTesting
+    synchronized int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Get the maximum number of downloads that should run in parallel on each network.
+     */
+    synchronized int getMaxConcurrency() {
+        return MAX_CONCURRENCY[mLevel];
+    }
+
+    /**
+     * Indicates whether socket receive buffers may be grown beyond their default size.
+     */
+    synchronized boolean allowsReceiveBufferGrowth() {
+        return mLevel == LEVEL_NONE;
+    }
+
+    /**
+     * Get the maximum read rate of each download in bytes/second, or {@link #RATE_UNLIMITED}.
+     */
+    synchronized long getMaxReadRate() {
+        return MAX_READ_RATE[mLevel];
+    }
+
+    /**
+     * Dump the state of the policy and its last decisions for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format("Throttle level %d: thermal status %d, power save %b, "
+                + "max concurrency %d, max read rate %d B/s", mLevel, mThermalStatus,
+                mPowerSaveMode, getMaxConcurrency(), getMaxReadRate()));
+        for (String decision : mDecisions) {
+            writer.println("  " + decision);
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens connections on a network after racing IPv6 and IPv4 connection attempts, following the
+ * Happy Eyeballs algorithm (RFC 8305).
+ *
+ * <p>The platform tries the resolved addresses of a host one after the other, so on networks with
+ * broken IPv6 every connection stalls until the IPv6 attempt times out. This connector starts an
+ * attempt to each address, alternating families and staggering the starts, and connects to the
+ * first address that accepts the connection. The family that won last on the network is tried
+ * first.
+ *
+ * <p>The winning socket is handed over to the returned connection: connections are opened on a
+ * copy of the network that creates sockets with a {@link SocketHandover}, so the connection
+ * adopts the winning socket instead of connecting again, and resolves the host to the addresses
+ * of the race with the winning one first. HTTPS connections keep the host name for SNI and
+ * hostname verification, and layer TLS directly over the winning socket. When every attempt of a
+ * race fails, the connection fails: connecting again to each address in turn would only wait for
+ * the same timeouts a second time.
+ *
+ * <p>Hosts with a single address are not raced, and connections through a proxy must let the
+ * proxy resolve the host: both are connected by the platform directly.
+ */
+class DualStackConnector implements ProbeRacer.Connector {
+    private static final String TAG = DualStackConnector.class.getSimpleName();
+    private static final boolean DBG = true;
+
+    // Recommended value of the Connection Attempt Delay in RFC 8305
+    @VisibleForTesting
+    static final long CONNECTION_ATTEMPT_DELAY_MS = 250;
+
+    /**
+     * Resolves host names, typically on the network to connect to.
+     */
+    interface Resolver {
+        @NonNull
+        InetAddress[] getAllByName(@NonNull String host) throws UnknownHostException;
+    }
+
+    /**
+     * Tells whether connections go through an HTTP proxy, typically configured on the network.
+     */
+    interface ProxyChecker {
+        boolean hasProxy();
+    }
+
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final Resolver mResolver;
+    @NonNull
+    private final SocketFactory mSocketFactory;
+    @NonNull
+    private final SocketHandover mHandover;
+    @NonNull
+    private final SSLSocketFactory mSslSocketFactory;
+    @NonNull
+    private final ProbeRacer.Connector mPlatformConnector;
+    @NonNull
+    private final ProxyChecker mProxyChecker;
+    private final int mConnectTimeoutMs;
+
+    // Whether IPv6 won the last race, so that it is tried first in the next one
+    @GuardedBy("this")
+    private boolean mPreferIpv6 = true;
+    @GuardedBy("this")
+    private int mIpv6Wins = 0;
+    @GuardedBy("this")
+    private int mIpv6Losses = 0;
+    @GuardedBy("this")
+    private int mIpv4Wins = 0;
+    @GuardedBy("this")
+    private int mIpv4Losses = 0;
+    // Races that no attempt won, failing the connection
+    @GuardedBy("this")
+    private int mFailedRaces = 0;
+
+    /**
+     * Create a connector.
+     * @param executor Executor running connection attempts. Attempts block until they connect or
+     *                 time out, so it must not be the executor of the callers.
+     * @param resolver Resolver for the addresses of hosts.
+     * @param socketFactory Factory for the sockets of connection attempts.
+     * @param handover Handover of the winning sockets, used as the socket factory of the URL
+     *                 connections.
+     * @param platformConnector Connector opening the URL connections.
+     * @param proxyChecker Checker for a proxy, in which case connections are not raced.
+     * @param connectTimeoutMs Timeout of each connection attempt.
+     */
+    DualStackConnector(@NonNull Executor executor, @NonNull Resolver resolver,
+            @NonNull SocketFactory socketFactory, @NonNull SocketHandover handover,
+            @NonNull ProbeRacer.Connector platformConnector, @NonNull ProxyChecker proxyChecker,
+            int connectTimeoutMs) {
+        mExecutor = executor;
+        mResolver = resolver;
+        mSocketFactory = socketFactory;
+        mHandover = handover;
+        // A single factory for all connections, as the platform only reuses pooled connections
+        // created with the same one
+        mSslSocketFactory = new HandoverSslSocketFactory(
+                HttpsURLConnection.getDefaultSSLSocketFactory());
+        mPlatformConnector = platformConnector;
+        mProxyChecker = proxyChecker;
+        mConnectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Create a connector for the specified network.
+     */
+    @NonNull
+    static DualStackConnector forNetwork(@NonNull Executor executor,
+            @NonNull ConnectivityManager cm, @NonNull Network network, int connectTimeoutMs) {
+        return forNetwork(executor, cm, network, connectTimeoutMs, Collections.emptySet());
+    }
+
+    /**
+     * Create a connector for the specified network.
+     * @param uncachedHosts Lower case hosts that are resolved again for each connection, as their
+     *                      answers may change at any time.
+     */
+    @NonNull
+    static DualStackConnector forNetwork(@NonNull Executor executor,
+            @NonNull ConnectivityManager cm, @NonNull Network network, int connectTimeoutMs,
+            @NonNull Set<String> uncachedHosts) {
+        final Resolver resolver = makeResolver(DnsCache.getInstance(), network, uncachedHosts);
+        final SocketHandover handover = new SocketHandover(network.getSocketFactory(),
+                connectTimeoutMs);
+        // Subclasses of Network, such as test networks, open their own connections: they can only
+        // be used as they are, without handover.
+        final Network platformNetwork = network.getClass() == Network.class
+                ? new HandoverNetwork(network, resolver, handover) : network;
+        return new DualStackConnector(executor, resolver, network.getSocketFactory(), handover,
+                platformNetwork::openConnection, () -> {
+                    // The proxy may be configured or removed while the network is connected
+                    final LinkProperties lp = cm.getLinkProperties(network);
+                    return lp != null && lp.getHttpProxy() != null;
+                }, connectTimeoutMs);
+    }
+
+    /**
+     * Make a resolver using the cache, except for the specified hosts.
+     */
+    @VisibleForTesting
+    @NonNull
+    static Resolver makeResolver(@NonNull DnsCache dnsCache, @NonNull Network network,
+            @NonNull Set<String> uncachedHosts) {
+        return host -> uncachedHosts.contains(host.toLowerCase(Locale.ROOT))
+                ? dnsCache.resolveUncached(network, host)
+                : dnsCache.getAllByName(network, host);
+    }
+
+    @Override
+    @NonNull
+    public URLConnection openConnection(@NonNull URL url) throws IOException {
+        if (!mProxyChecker.hasProxy()) raceToHandover(url);
+        final URLConnection connection = mPlatformConnector.openConnection(url);
+        if (connection instanceof HttpsURLConnection) {
+            // TLS must be layered over the adopted socket, not over the socket of the handover
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+        }
+        return connection;
+    }
+
+    /**
+     * Race connection attempts to the host of a URL if it has several addresses, and offer the
+     * winning socket to the connection.
+     */
+    private void raceToHandover(@NonNull URL url) throws IOException {
+        final String host = url.getHost();
+        final List<InetAddress> addresses = getRaceAddresses(host);
+        // Let the platform report resolution errors, and connect to single addresses
+        if (addresses == null || addresses.size() == 1) return;
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        final Socket winner;
+        try {
+            winner = race(addresses, port);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + host);
+        }
+        if (winner == null) {
+            throw new ConnectException("Failed to connect to " + host + ":" + port + " on any of "
+                    + addresses.size() + " addresses");
+        }
+        if (DBG) Log.d(TAG, "Connected to " + host + " at " + winner.getInetAddress());
+        mHandover.offer(host, addresses, winner);
+    }
+
+    /**
+     * Get the addresses of a host in the order of connection attempts, or null if it cannot be
+     * resolved.
+     */
+    @Nullable
+    private List<InetAddress> getRaceAddresses(@NonNull String host) {
+        // Literals have a single address, and are returned by the resolver without a lookup
+        final InetAddress[] resolved;
+        try {
+            resolved = mResolver.getAllByName(host);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+        final boolean preferIpv6;
+        synchronized (this) {
+            preferIpv6 = mPreferIpv6;
+        }
+        return interleaveFamilies(resolved, preferIpv6);
+    }
+
+    /**
+     * Order addresses for connection attempts, alternating families and starting with the
+     * preferred one, as the resolver orders addresses by family.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<InetAddress> interleaveFamilies(@NonNull InetAddress[] addresses,
+            boolean preferIpv6) {
+        final List<InetAddress> preferred = new ArrayList<>();
+        final List<InetAddress> other = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == preferIpv6 ? preferred : other).add(address);
+        }
+        final List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) ordered.add(preferred.get(i));
+            if (i < other.size()) ordered.add(other.get(i));
+        }
+        return ordered;
+    }
+
+    /**
+     * Race connection attempts to the addresses, starting them in order, each one when the
+     * previous one failed or after {@link #CONNECTION_ATTEMPT_DELAY_MS}.
+     * @return The socket of the first successful attempt, or null if all of them failed.
+     */
+    @Nullable
+    private Socket race(@NonNull List<InetAddress> addresses, int port)
+            throws InterruptedException {
+        final CompletionService<Socket> completion = new ExecutorCompletionService<>(mExecutor);
+        final List<Attempt> attempts = new ArrayList<>(addresses.size());
+        final List<Future<Socket>> futures = new ArrayList<>(addresses.size());
+        Socket winner = null;
+        try {
+            int finished = 0;
+            while (finished < addresses.size()) {
+                if (attempts.isEmpty()) {
+                    startAttempt(addresses.get(0), port, completion, attempts, futures);
+                }
+                final boolean allStarted = attempts.size() == addresses.size();
+                final Future<Socket> done = allStarted
+                        ? completion.poll(mConnectTimeoutMs, TimeUnit.MILLISECONDS)
+                        : completion.poll(CONNECTION_ATTEMPT_DELAY_MS, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (allStarted) break;
+                    startAttempt(addresses.get(attempts.size()), port, completion, attempts,
+                            futures);
+                    continue;
+                }
+                finished++;
+                try {
+                    winner = done.get();
+                    break;
+                } catch (ExecutionException e) {
+                    // Failed attempts do not delay the next one
+                    if (!allStarted) {
+                        startAttempt(addresses.get(attempts.size()), port, completion, attempts,
+                                futures);
+                    }
+                }
+            }
+        } finally {
+            for (Attempt attempt : attempts) {
+                if (attempt.mSocket != winner) attempt.abort();
+            }
+            for (Future<Socket> future : futures) {
+                future.cancel(true /* mayInterruptIfRunning */);
+            }
+        }
+        recordRace(attempts, winner == null ? null : winner.getInetAddress());
+        return winner;
+    }
+
+    private void startAttempt(@NonNull InetAddress address, int port,
+            @NonNull CompletionService<Socket> completion, @NonNull List<Attempt> attempts,
+            @NonNull List<Future<Socket>> futures) {
+        final Attempt attempt = new Attempt(address, port);
+        attempts.add(attempt);
+        futures.add(completion.submit(attempt::connect));
+    }
+
+    private synchronized void recordRace(@NonNull List<Attempt> attempts,
+            @Nullable InetAddress winner) {
+        if (winner == null) {
+            mFailedRaces++;
+            return;
+        }
+        final boolean ipv6Won = winner instanceof Inet6Address;
+        mPreferIpv6 = ipv6Won;
+        if (ipv6Won) {
+            mIpv6Wins++;
+        } else {
+            mIpv4Wins++;
+        }
+        // Attempts to the other family that were started lost the race
+        for (Attempt attempt : attempts) {
+            if ((attempt.mAddress instanceof Inet6Address) == ipv6Won) continue;
+            if (ipv6Won) {
+                mIpv4Losses++;
+            } else {
+                mIpv6Losses++;
+            }
+        }
+    }
+
+    /**
+     * Dump the race statistics for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format("Dual stack: prefer %s, IPv6 wins %d losses %d, IPv4 wins %d"
+                + " losses %d, failed races %d", mPreferIpv6 ? "IPv6" : "IPv4", mIpv6Wins,
+                mIpv6Losses, mIpv4Wins, mIpv4Losses, mFailedRaces));
+        mHandover.dump(writer);
+    }
+
+    private class Attempt {
+        @NonNull
+        final InetAddress mAddress;
+        private final int mPort;
+        @Nullable
+        volatile Socket mSocket;
+        private volatile boolean mAborted = false;
+
+        Attempt(@NonNull InetAddress address, int port) {
+            mAddress = address;
+            mPort = port;
+        }
+
+        @NonNull
+        Socket connect() throws IOException {
+            final Socket socket = mSocketFactory.createSocket();
+            mSocket = socket;
+            try {
+                if (mAborted) throw new IOException("Attempt aborted");
+                socket.connect(new InetSocketAddress(mAddress, mPort), mConnectTimeoutMs);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Abort the attempt if it is still connecting, and close its socket.
+         */
+        void abort() {
+            mAborted = true;
+            final Socket socket = mSocket;
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do: the socket is not used anymore
+            }
+        }
+    }
+
+    /**
+     * Copy of a network connecting with the sockets of a handover, and resolving hosts to the
+     * addresses of their race.
+     */
+    @VisibleForTesting
+    static class HandoverNetwork extends Network {
+        @NonNull
+        private final Resolver mResolver;
+        @NonNull
+        private final SocketHandover mHandover;
+
+        HandoverNetwork(@NonNull Network network, @NonNull Resolver resolver,
+                @NonNull SocketHandover handover) {
+            super(network);
+            mResolver = resolver;
+            mHandover = handover;
+        }
+
+        @Override
+        public InetAddress[] getAllByName(String host) throws UnknownHostException {
+            final List<InetAddress> raced = mHandover.getAddresses(host);
+            return raced != null ? raced.toArray(new InetAddress[0]) : mResolver.getAllByName(host);
+        }
+
+        @Override
+        public SocketFactory getSocketFactory() {
+            return mHandover;
+        }
+    }
+
+    /**
+     * {@link SSLSocketFactory} layering TLS over the socket adopted by a socket of the handover.
+     */
+    private static class HandoverSslSocketFactory extends SSLSocketFactory {
+        @NonNull
+        private final SSLSocketFactory mBase;
+
+        HandoverSslSocketFactory(@NonNull SSLSocketFactory base) {
+            mBase = base;
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return mBase.createSocket(SocketHandover.unwrap(s), host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return mBase.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return mBase.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return mBase.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return mBase.createSocket(address, port, localAddress, localPort);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mBase.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mBase.getSupportedCipherSuites();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.SystemClock;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor with named threads, recording queue depth and task latency.
+ *
+ * <p>The latency of a task is the time between the moment it was due, which is when it was
+ * submitted for tasks without delay, and the moment it started running. Idle threads exit after a
+ * timeout, so that the executor does not hold threads when the app is idle.
+ *
+ * <p>This class is thread-safe.
+ */
+class InstrumentedExecutor extends ScheduledThreadPoolExecutor {
+    private static final long KEEP_ALIVE_MS = 10_000L;
+
+    @NonNull
+    private final String mName;
+    private final ThreadLocal<Long> mTaskStartMs = new ThreadLocal<>();
+
+    @GuardedBy("this")
+    private long mStartedTasks = 0L;
+    @GuardedBy("this")
+    private long mTotalLatencyMs = 0L;
+    @GuardedBy("this")
+    private long mMaxLatencyMs = 0L;
+    @GuardedBy("this")
+    private long mTotalRunTimeMs = 0L;
+    @GuardedBy("this")
+    private long mMaxRunTimeMs = 0L;
+    @GuardedBy("this")
+    private int mMaxQueueDepth = 0;
+
+    /**
+     * Create an executor.
+     * @param name Name of the executor, used as prefix for the name of its threads.
+     * @param maxThreads Maximum number of threads running tasks in parallel.
+     */
+    InstrumentedExecutor(@NonNull String name, int maxThreads) {
+        super(maxThreads, new NamedThreadFactory(name));
+        mName = name;
+        setKeepAliveTime(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        allowCoreThreadTimeOut(true);
+        setRemoveOnCancelPolicy(true);
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        @NonNull
+        private final String mPrefix;
+        private final AtomicInteger mNextId = new AtomicInteger(1);
+
+        NamedThreadFactory(@NonNull String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, mPrefix + "-" + mNextId.getAndIncrement());
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        // Negative delay of the task is how late it starts compared to when it was due
+        final long latencyMs = r instanceof RunnableScheduledFuture
+                ? Math.max(0, -((RunnableScheduledFuture<?>) r).getDelay(TimeUnit.MILLISECONDS))
+                : 0L;
+        final int queueDepth = getQueue().size();
+        synchronized (this) {
+            mStartedTasks++;
+            mTotalLatencyMs += latencyMs;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, queueDepth);
+        }
+        mTaskStartMs.set(SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        final Long startMs = mTaskStartMs.get();
+        if (startMs == null) return;
+        mTaskStartMs.remove();
+        final long runTimeMs = SystemClock.elapsedRealtime() - startMs;
+        synchronized (this) {
+            mTotalRunTimeMs += runTimeMs;
+            mMaxRunTimeMs = Math.max(mMaxRunTimeMs, runTimeMs);
+        }
+    }
+
+    /**
+     * Dump the metrics of the executor for debugging.
+     */
+    void dump(@NonNull PrintWriter writer) {
+        final int activeThreads = getActiveCount();
+        final int poolSize = getPoolSize();
+        final int queueDepth = getQueue().size();
+        synchronized (this) {
+            writer.println(String.format("%s: %d/%d threads active, max %d, queue depth %d"
+                    + " (max %d)", mName, activeThreads, poolSize, getCorePoolSize(), queueDepth,
+                    mMaxQueueDepth));
+            final long avgLatencyMs = mStartedTasks == 0 ? 0 : mTotalLatencyMs / mStartedTasks;
+            final long avgRunTimeMs = mStartedTasks == 0 ? 0 : mTotalRunTimeMs / mStartedTasks;
+            writer.println(String.format("  %d tasks, latency avg %dms max %dms,"
+                    + " run time avg %dms max %dms", mStartedTasks, avgLatencyMs, mMaxLatencyMs,
+                    avgRunTimeMs, mMaxRunTimeMs));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+/**
+ * {@link DownloadService} running in a dedicated ":download" process (see AndroidManifest.xml).
+ *
+ * <p>Downloads then do not share the heap of the process that renders the portal in a WebView,
+ * and are not interrupted if the WebView crashes. Clients use the intents created by
+ * {@link DownloadService}, targeted at this class with {@link android.content.Intent#setClass};
+ * status is reported through {@link DownloadService#ARG_STATUS_RECEIVER}. Output files picked by
+ * the user are granted to the app, so this process can write them like the main one.
+ */
+public class IsolatedDownloadService extends DownloadService {
+    // Notification IDs different from those of DownloadService, which may run at the same time
+    private static final int NOTE_DOWNLOAD_PROGRESS = 3;
+    private static final int NOTE_DOWNLOAD_DONE = 4;
+
+    @Override
+    int getProgressNotificationId() {
+        return NOTE_DOWNLOAD_PROGRESS;
+    }
+
+    @Override
+    int getDoneNotificationId() {
+        return NOTE_DOWNLOAD_DONE;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.SystemClock;
+import android.webkit.JavascriptInterface;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Random;
+
+/**
+ * JavaScript interface notified when the user likely attempts to log in on the portal.
+ *
+ * <p>Portals that log in with AJAX requests do not navigate when the user presses "Connect". A
+ * script injected in the main frame reports form submissions and completed XMLHttpRequest and
+ * fetch requests to this interface instead. Only POST and PUT requests to the origin of the page
+ * are reported: background requests of the page, like analytics or polling, are not login
+ * attempts.
+ *
+ * <p>The interface is reachable by any frame that knows its name, so the name is random and the
+ * exposed methods carry no data. Reports are throttled, so that pages posting to their server
+ * repeatedly do not cause continuous probes.
+ */
+class LoginActionBridge {
+    @VisibleForTesting
+    static final long MIN_REPORT_INTERVAL_MS = 1000;
+
+    /**
+     * Listener notified of login actions.
+     */
+    interface Listener {
+        /**
+         * Called when the user likely attempted to log in.
+         * @param delayMs Delay after which the network should be probed, as earlier reports were
+         *                received too recently.
+         * @param isFormSubmission Whether the user submitted a form, as opposed to the page
+         *                         completing a request.
+         */
+        void onLoginAction(long delayMs, boolean isFormSubmission);
+    }
+
+    @NonNull
+    private final Listener mListener;
+    @NonNull
+    private final String mName = "captivePortalLogin" + Long.toHexString(new Random().nextLong());
+
+    // Time of the last report to the listener, including the delay if any
+    @GuardedBy("this")
+    private long mLastReportMs = -MIN_REPORT_INTERVAL_MS;
+
+    LoginActionBridge(@NonNull Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Get the name under which the interface is added to the WebView.
+     */
+    @NonNull
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the script installing the hooks, to evaluate in the main frame once a page is loaded.
+     * Evaluating it several times on the same page has no effect.
+     */
+    @NonNull
+    String getHookScript() {
+        return "(function() {"
+                + "var bridge = window['" + mName + "'];"
+                + "if (!bridge || window['" + mName + "Hooked']) return;"
+                + "window['" + mName + "Hooked'] = true;"
+                + "var isLoginRequest = function(method, url) {"
+                + "  try {"
+                + "    return /^(POST|PUT)$/i.test(method || 'GET')"
+                + "        && new URL(url, location.href).origin === location.origin;"
+                + "  } catch (e) { return false; }"
+                + "};"
+                + "var reportRequest = function() {"
+                + "  try { bridge.onRequestCompleted(); } catch (e) {}"
+                + "};"
+                + "document.addEventListener('submit', function() {"
+                + "  try { bridge.onFormSubmitted(); } catch (e) {}"
+                + "}, true);"
+                + "if (window.XMLHttpRequest) {"
+                + "  var open = XMLHttpRequest.prototype.open;"
+                // Requests may be opened again with another method or URL
+                + "  XMLHttpRequest.prototype.open = function(method, url) {"
+                + "    if (isLoginRequest(method, url)) {"
+                + "      this.addEventListener('loadend', reportRequest);"
+                + "    } else {"
+                + "      this.removeEventListener('loadend', reportRequest);"
+                + "    }"
+                + "    return open.apply(this, arguments);"
+                + "  };"
+                + "}"
+                + "if (window.fetch) {"
+                + "  var fetch = window.fetch;"
+                + "  window.fetch = function(input, init) {"
+                + "    var result = fetch.apply(this, arguments);"
+                + "    var method = (init && init.method) || (input && input.method);"
+                + "    if (isLoginRequest(method, (input && input.url) || input)) {"
+                + "      result.then(reportRequest, reportRequest);"
+                + "    }"
+                + "    return result;"
+                + "  };"
+                + "}"
+                + "})();";
+    }
+
+    /**
+     * Called by the injected script when the user submits a form.
+     */
+    @JavascriptInterface
+    public void onFormSubmitted() {
+        report(true /* isFormSubmission */);
+    }
+
+    /**
+     * Called by the injected script when a POST or PUT request to the origin of the page
+     * completes.
+     */
+    @JavascriptInterface
+    public void onRequestCompleted() {
+        report(false /* isFormSubmission */);
+    }
+
+    /**
+     * Report a login action. Reports are throttled to one every {@link #MIN_REPORT_INTERVAL_MS}:
+     * a report received too early is delayed, and dropped if a delayed report is already pending.
+     */
+    private void report(boolean isFormSubmission) {
+        final long delayMs;
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            if (mLastReportMs > now) return;
+            mLastReportMs = Math.max(now, mLastReportMs + MIN_REPORT_INTERVAL_MS);
+            delayMs = mLastReportMs - now;
+        }
+        mListener.onLoginAction(delayMs, isFormSubmission);
+    }
+}
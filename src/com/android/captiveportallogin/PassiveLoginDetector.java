@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Detects navigations suggesting that the user just logged in, from the traffic of the WebView.
+ *
+ * <p>Once login succeeds, many portals send the browser back to the URL it originally tried to
+ * reach, which is the URL of a captive portal probe. A main frame navigation to the host of a
+ * probe endpoint, after the WebView went to the portal, is a hint that the network should be
+ * probed right away. The hint is only confirmed by the probe.
+ *
+ * <p>Portals also often redirect users to another site once they log in. Redirects are only
+ * considered as login hints when they leave a portal page that already loaded for a host
+ * outside the portal: the redirect from the probe URL to the portal, and redirects between the
+ * hosts of the portal while it loads, happen before any login.
+ *
+ * <p>This class is thread-safe.
+ */
+class PassiveLoginDetector {
+    @NonNull
+    private final Set<String> mProbeHosts;
+
+    // Whether the WebView navigated away from the probe hosts, typically to the portal
+    @GuardedBy("this")
+    private boolean mVisitedPortal = false;
+    // Hosts of the pages of the portal that finished loading, excluding the probe hosts
+    @GuardedBy("this")
+    private final Set<String> mPortalHosts = new HashSet<>();
+
+    /**
+     * Create a detector.
+     * @param endpoints Endpoints used to probe the network.
+     */
+    PassiveLoginDetector(@NonNull List<ProbeRacer.Endpoint> endpoints) {
+        mProbeHosts = ProbeRacer.Endpoint.getHosts(endpoints);
+    }
+
+    /**
+     * Record a main frame navigation.
+     * @param host Host of the navigation.
+     * @return Whether the navigation suggests that login completed.
+     */
+    synchronized boolean onMainFrameNavigation(@Nullable String host) {
+        if (host == null) return false;
+        if (!mProbeHosts.contains(host.toLowerCase(Locale.ROOT))) {
+            mVisitedPortal = true;
+            return false;
+        }
+        // The first navigations to the probe URL are the initial load of the portal
+        return mVisitedPortal;
+    }
+
+    /**
+     * Record a main frame page that finished loading.
+     * @param host Host of the page.
+     */
+    synchronized void onPageLoaded(@Nullable String host) {
+        if (host == null) return;
+        final String lowerCaseHost = host.toLowerCase(Locale.ROOT);
+        if (!mProbeHosts.contains(lowerCaseHost)) mPortalHosts.add(lowerCaseHost);
+    }
+
+    /**
+     * Indicates whether a main frame redirect suggests that login completed.
+     * @param fromHost Host of the request that was redirected.
+     * @param toHost Host that the request was redirected to.
+     */
+    synchronized boolean isLoginRedirect(@Nullable String fromHost, @Nullable String toHost) {
+        if (fromHost == null || toHost == null) return false;
+        // Probe hosts are never portal hosts, so redirects from the probe URL are ignored
+        return mPortalHosts.contains(fromHost.toLowerCase(Locale.ROOT))
+                && !mPortalHosts.contains(toHost.toLowerCase(Locale.ROOT));
+    }
+}
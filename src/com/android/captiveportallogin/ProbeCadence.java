@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * Policy deciding when to probe for a captive portal, depending on what the user is doing.
+ *
+ * <p>Navigations that likely follow a login attempt are probed right away. While the user stays
+ * idle on a page, the portal is probed again with exponentially increasing delays, and the delay
+ * goes back to its minimum on the next navigation.
+ *
+ * <p>This class is thread-safe.
+ */
+class ProbeCadence {
+    private final long mMinIdleDelayMs;
+    private final long mMaxIdleDelayMs;
+
+    @GuardedBy("this")
+    private long mNextIdleDelayMs;
+
+    /**
+     * Create a policy.
+     * @param minIdleDelayMs Delay before the first probe after the user became idle.
+     * @param maxIdleDelayMs Maximum delay between probes while the user is idle.
+     */
+    ProbeCadence(long minIdleDelayMs, long maxIdleDelayMs) {
+        mMinIdleDelayMs = minIdleDelayMs;
+        mMaxIdleDelayMs = Math.max(minIdleDelayMs, maxIdleDelayMs);
+        mNextIdleDelayMs = minIdleDelayMs;
+    }
+
+    /**
+     * Indicates whether a main frame request is likely a login attempt: a form submission.
+     * Redirects following a login are detected by {@link PassiveLoginDetector}, which knows the
+     * hosts of the portal.
+     * @param method HTTP method of the request.
+     */
+    static boolean isLikelyLogin(@Nullable String method) {
+        return "POST".equalsIgnoreCase(method);
+    }
+
+    /**
+     * Reset the idle delay, when the user does something on the portal.
+     */
+    synchronized void onUserActivity() {
+        mNextIdleDelayMs = mMinIdleDelayMs;
+    }
+
+    /**
+     * Get the delay before the next probe while the user is idle, and back off for the
+     * following one.
+     */
+    synchronized long nextIdleDelayMs() {
+        final long delayMs = mNextIdleDelayMs;
+        mNextIdleDelayMs = Math.min(mMaxIdleDelayMs, mNextIdleDelayMs * 2);
+        return delayMs;
+    }
+}
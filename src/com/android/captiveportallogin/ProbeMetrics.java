@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency histograms and outcome counters of captive portal probes for each endpoint, and
+ * histogram of the time it takes for users to get through the portal.
+ *
+ * <p>Metrics are kept for the lifetime of the process, so that they cover all portals that the
+ * user went through.
+ *
+ * <p>This class is thread-safe.
+ */
+class ProbeMetrics {
+    enum Outcome {
+        // The network is not captive anymore
+        SUCCESS,
+        // A portal intercepted the probe
+        PORTAL,
+        // The probe did not get a response before its timeout
+        TIMEOUT,
+        // The probe failed for another reason, like a refused connection
+        ERROR
+    }
+
+    // Upper bounds of the histogram buckets, the last bucket counting longer durations
+    @VisibleForTesting
+    static final long[] PROBE_LATENCY_BUCKETS_MS = {
+            50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000 };
+    @VisibleForTesting
+    static final long[] TIME_TO_DISMISS_BUCKETS_MS = {
+            5_000, 10_000, 30_000, 60_000, 120_000, 300_000, 600_000 };
+
+    @GuardedBy("ProbeMetrics.class")
+    private static ProbeMetrics sInstance;
+
+    // Metrics of each endpoint, in the order in which they were first probed
+    @GuardedBy("this")
+    private final Map<String, EndpointMetrics> mEndpoints = new LinkedHashMap<>();
+    @GuardedBy("this")
+    private final Histogram mTimeToDismiss = new Histogram(TIME_TO_DISMISS_BUCKETS_MS);
+
+    /**
+     * Histogram with fixed buckets.
+     */
+    @VisibleForTesting
+    static final class Histogram {
+        @NonNull
+        private final long[] mBounds;
+        @NonNull
+        private final int[] mCounts;
+        private int mTotalCount = 0;
+        private long mTotalMs = 0;
+
+        Histogram(@NonNull long[] bounds) {
+            mBounds = bounds;
+            mCounts = new int[bounds.length + 1];
+        }
+
+        void add(long valueMs) {
+            int bucket = 0;
+            while (bucket < mBounds.length && valueMs > mBounds[bucket]) bucket++;
+            mCounts[bucket]++;
+            mTotalCount++;
+            mTotalMs += valueMs;
+        }
+
+        int getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("count %d, avg %dms:", mTotalCount,
+                    mTotalCount == 0 ? 0 : mTotalMs / mTotalCount));
+            for (int i = 0; i < mCounts.length; i++) {
+                sb.append(i < mBounds.length
+                        ? String.format(" <=%d:%d", mBounds[i], mCounts[i])
+                        : String.format(" >%d:%d", mBounds[i - 1], mCounts[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class EndpointMetrics {
+        final int[] mOutcomes = new int[Outcome.values().length];
+        final Histogram mLatency = new Histogram(PROBE_LATENCY_BUCKETS_MS);
+    }
+
+    @VisibleForTesting
+    ProbeMetrics() {}
+
+    /**
+     * Get the metrics of the current process, creating them if needed.
+     */
+    @NonNull
+    static synchronized ProbeMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProbeMetrics();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Record the outcome of a probe that completed. Probes aborted because another endpoint
+     * answered first are not recorded.
+     * @param endpoint Description of the probed endpoint.
+     * @param latencyMs Time from the start of the probe to its outcome.
+     */
+    synchronized void recordProbe(@NonNull String endpoint, @NonNull Outcome outcome,
+            long latencyMs) {
+        final EndpointMetrics metrics =
+                mEndpoints.computeIfAbsent(endpoint, e -> new EndpointMetrics());
+        metrics.mOutcomes[outcome.ordinal()]++;
+        metrics.mLatency.add(latencyMs);
+    }
+
+    /**
+     * Record the time from the start of the login activity to the dismissal of the portal.
+     */
+    synchronized void recordTimeToDismiss(long timeMs) {
+        mTimeToDismiss.add(timeMs);
+    }
+
+    /**
+     * Get the number of probes of an endpoint with the specified outcome.
+     */
+    @VisibleForTesting
+    synchronized int getOutcomeCount(@NonNull String endpoint, @NonNull Outcome outcome) {
+        final EndpointMetrics metrics = mEndpoints.get(endpoint);
+        return metrics == null ? 0 : metrics.mOutcomes[outcome.ordinal()];
+    }
+
+    /**
+     * Dump the metrics for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println("Time to dismiss: " + mTimeToDismiss);
+        for (Map.Entry<String, EndpointMetrics> endpoint : mEndpoints.entrySet()) {
+            final EndpointMetrics metrics = endpoint.getValue();
+            final StringBuilder outcomes = new StringBuilder();
+            for (Outcome outcome : Outcome.values()) {
+                outcomes.append(String.format(" %s %d", outcome.name().toLowerCase(Locale.ROOT),
+                        metrics.mOutcomes[outcome.ordinal()]));
+            }
+            writer.println("Probes of " + endpoint.getKey() + ":" + outcomes);
+            writer.println("  Latency: " + metrics.mLatency);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.Network;
+import android.net.captiveportal.CaptivePortalProbeSpec;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs captive portal probes against several endpoints in parallel, and returns the first
+ * conclusive result.
+ *
+ * <p>A probe is conclusive when it receives a response: the response either shows that the
+ * network is not captive anymore, or that a portal is still intercepting requests. Probes that
+ * fail to connect, for example because the endpoint is slow or blocked by the portal, are
+ * inconclusive. Once a result is accepted, the other probes are aborted.
+ *
+ * <p>Conclusive results are recorded in a {@link ProbeResultCache}, and an endpoint with a
+ * recent result in the cache is not probed again. The outcome and latency of probes that complete
+ * are recorded in {@link ProbeMetrics}.
+ */
+class ProbeRacer {
+    private static final String TAG = ProbeRacer.class.getSimpleName();
+    private static final boolean DBG = true;
+
+    enum Result {
+        // The network is not captive anymore
+        SUCCESS,
+        // A portal intercepted the probe
+        PORTAL,
+        // No probe received a response
+        FAILED
+    }
+
+    /**
+     * Endpoint to probe, and the spec used to interpret its responses.
+     */
+    static final class Endpoint {
+        @NonNull
+        final URL mUrl;
+        // Spec to interpret responses, or null to expect a 204 response.
+        @Nullable
+        final CaptivePortalProbeSpec mSpec;
+
+        Endpoint(@NonNull URL url, @Nullable CaptivePortalProbeSpec spec) {
+            mUrl = url;
+            mSpec = spec;
+        }
+
+        @Override
+        public String toString() {
+            return mUrl.toString();
+        }
+
+        /**
+         * Get the lower case hosts of endpoints.
+         */
+        @NonNull
+        static Set<String> getHosts(@NonNull List<Endpoint> endpoints) {
+            final Set<String> hosts = new HashSet<>();
+            for (Endpoint endpoint : endpoints) {
+                hosts.add(endpoint.mUrl.getHost().toLowerCase(Locale.ROOT));
+            }
+            return hosts;
+        }
+    }
+
+    /**
+     * Opens connections for probes, typically on the network being probed.
+     */
+    interface Connector {
+        @NonNull
+        URLConnection openConnection(@NonNull URL url) throws IOException;
+    }
+
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final Network mNetwork;
+    @NonNull
+    private final Connector mConnector;
+    @NonNull
+    private final ProbeResultCache mCache;
+    @NonNull
+    private final ProbeMetrics mMetrics;
+    @Nullable
+    private final String mUserAgent;
+    private final int mTimeoutMs;
+
+    /**
+     * Create a racer.
+     * @param executor Executor running the probes of endpoints. It needs a thread for each
+     *                 endpoint raced in parallel, and must not be the executor of the callers,
+     *                 which block until the race completes.
+     * @param network Network that is probed, used as key for cached results.
+     * @param connector Connector opening connections on the network.
+     */
+    ProbeRacer(@NonNull Executor executor, @NonNull Network network,
+            @NonNull Connector connector, @NonNull ProbeResultCache cache,
+            @NonNull ProbeMetrics metrics, @Nullable String userAgent, int timeoutMs) {
+        mExecutor = executor;
+        mNetwork = network;
+        mConnector = connector;
+        mCache = cache;
+        mMetrics = metrics;
+        mUserAgent = userAgent;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Probe all endpoints in parallel, and wait for the first conclusive result.
+     * @return The first conclusive result, or {@link Result#FAILED} if all probes failed.
+     */
+    @NonNull
+    Result race(@NonNull List<Endpoint> endpoints) throws InterruptedException {
+        for (Endpoint endpoint : endpoints) {
+            final Result cached = mCache.get(mNetwork, endpoint);
+            if (cached != null) {
+                if (DBG) Log.d(TAG, "cached probe result at " + endpoint + ": " + cached);
+                return cached;
+            }
+        }
+        final CompletionService<Result> completion = new ExecutorCompletionService<>(mExecutor);
+        final List<Probe> probes = new ArrayList<>(endpoints.size());
+        final List<Future<Result>> futures = new ArrayList<>(endpoints.size());
+        try {
+            for (Endpoint endpoint : endpoints) {
+                final Probe probe = new Probe(endpoint);
+                probes.add(probe);
+                futures.add(completion.submit(probe));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                final Result result;
+                try {
+                    result = completion.take().get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Unexpected probe error", e);
+                    continue;
+                }
+                if (result != Result.FAILED) return result;
+            }
+            return Result.FAILED;
+        } finally {
+            for (Probe probe : probes) {
+                probe.abort();
+            }
+            for (Future<Result> future : futures) {
+                future.cancel(true /* mayInterruptIfRunning */);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static boolean isDismissed(int httpResponseCode, @Nullable String locationHeader,
+            @Nullable CaptivePortalProbeSpec probeSpec) {
+        return (probeSpec != null)
+                ? probeSpec.getResult(httpResponseCode, locationHeader).isSuccessful()
+                : (httpResponseCode == 204);
+    }
+
+    private class Probe implements Callable<Result> {
+        @NonNull
+        private final Endpoint mEndpoint;
+        @Nullable
+        private volatile HttpURLConnection mConnection;
+        private volatile boolean mAborted = false;
+
+        Probe(@NonNull Endpoint endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        /**
+         * Abort the probe if it is still running, by closing its connection.
+         */
+        void abort() {
+            mAborted = true;
+            final HttpURLConnection connection = mConnection;
+            if (connection != null) connection.disconnect();
+        }
+
+        @Override
+        public Result call() {
+            final long startMs = SystemClock.elapsedRealtime();
+            HttpURLConnection urlConnection = null;
+            try {
+                urlConnection = (HttpURLConnection) mConnector.openConnection(mEndpoint.mUrl);
+                mConnection = urlConnection;
+                if (mAborted) return Result.FAILED;
+                urlConnection.setInstanceFollowRedirects(false);
+                urlConnection.setConnectTimeout(mTimeoutMs);
+                urlConnection.setReadTimeout(mTimeoutMs);
+                urlConnection.setUseCaches(false);
+                if (mUserAgent != null) {
+                    urlConnection.setRequestProperty("User-Agent", mUserAgent);
+                }
+                // cannot read request header after connection
+                final String requestHeader = urlConnection.getRequestProperties().toString();
+
+                final int httpResponseCode = urlConnection.getResponseCode();
+                final String locationHeader = urlConnection.getHeaderField(
+                        CaptivePortalLoginActivity.HTTP_LOCATION_HEADER_NAME);
+                if (DBG) {
+                    Log.d(TAG, "probe at " + mEndpoint +
+                            " ret=" + httpResponseCode +
+                            " request=" + requestHeader +
+                            " headers=" + urlConnection.getHeaderFields());
+                }
+                final Result result = isDismissed(httpResponseCode, locationHeader,
+                        mEndpoint.mSpec) ? Result.SUCCESS : Result.PORTAL;
+                mCache.put(mNetwork, mEndpoint, result);
+                mMetrics.recordProbe(mEndpoint.toString(), result == Result.SUCCESS
+                        ? ProbeMetrics.Outcome.SUCCESS : ProbeMetrics.Outcome.PORTAL,
+                        SystemClock.elapsedRealtime() - startMs);
+                return result;
+            } catch (IOException | ClassCastException e) {
+                // Aborted probes lost the race: their outcome says nothing about the endpoint
+                if (!mAborted) {
+                    if (DBG) Log.d(TAG, "probe at " + mEndpoint + " failed: " + e);
+                    mMetrics.recordProbe(mEndpoint.toString(), e instanceof SocketTimeoutException
+                            ? ProbeMetrics.Outcome.TIMEOUT : ProbeMetrics.Outcome.ERROR,
+                            SystemClock.elapsedRealtime() - startMs);
+                }
+                return Result.FAILED;
+            } finally {
+                if (urlConnection != null) urlConnection.disconnect();
+            }
+        }
+    }
+}
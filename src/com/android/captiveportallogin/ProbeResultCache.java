@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.Network;
+import android.os.SystemClock;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of recent conclusive probe results, keyed by network, URL and probe spec.
+ *
+ * <p>Results expire after a short TTL, and are invalidated when the state of the network may
+ * have changed, so that bursts of probe requests reuse a recent answer instead of adding load to
+ * the portal gateway.
+ *
+ * <p>This class is thread-safe.
+ */
+class ProbeResultCache {
+    private final long mTtlMs;
+
+    @GuardedBy("this")
+    private final Map<Key, Entry> mEntries = new HashMap<>();
+    @GuardedBy("this")
+    private int mHits = 0;
+    @GuardedBy("this")
+    private int mMisses = 0;
+    @GuardedBy("this")
+    private int mInvalidations = 0;
+
+    private static final class Key {
+        @NonNull
+        final Network mNetwork;
+        @NonNull
+        final String mUrl;
+        @Nullable
+        final String mSpec;
+
+        Key(@NonNull Network network, @NonNull ProbeRacer.Endpoint endpoint) {
+            mNetwork = network;
+            // URL#equals resolves host names: compare the string representation instead
+            mUrl = endpoint.mUrl.toString();
+            mSpec = endpoint.mSpec == null ? null : endpoint.mSpec.getEncodedSpec();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return mNetwork.equals(other.mNetwork) && mUrl.equals(other.mUrl)
+                    && Objects.equals(mSpec, other.mSpec);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNetwork, mUrl, mSpec);
+        }
+    }
+
+    private static final class Entry {
+        @NonNull
+        final ProbeRacer.Result mResult;
+        final long mExpiryMs;
+
+        Entry(@NonNull ProbeRacer.Result result, long expiryMs) {
+            mResult = result;
+            mExpiryMs = expiryMs;
+        }
+    }
+
+    /**
+     * Create a cache.
+     * @param ttlMs Time during which a result can be reused. 0 disables the cache.
+     */
+    ProbeResultCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Get the cached result of probing an endpoint on a network.
+     * @return The result, or null if there is no valid result in the cache.
+     */
+    @Nullable
+    synchronized ProbeRacer.Result get(@NonNull Network network,
+            @NonNull ProbeRacer.Endpoint endpoint) {
+        final Key key = new Key(network, endpoint);
+        final Entry entry = mEntries.get(key);
+        if (entry == null || entry.mExpiryMs <= SystemClock.elapsedRealtime()) {
+            if (entry != null) mEntries.remove(key);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mResult;
+    }
+
+    /**
+     * Record the conclusive result of probing an endpoint on a network.
+     */
+    synchronized void put(@NonNull Network network, @NonNull ProbeRacer.Endpoint endpoint,
+            @NonNull ProbeRacer.Result result) {
+        if (mTtlMs <= 0 || result == ProbeRacer.Result.FAILED) return;
+        mEntries.put(new Key(network, endpoint),
+                new Entry(result, SystemClock.elapsedRealtime() + mTtlMs));
+    }
+
+    /**
+     * Invalidate all results cached for a network.
+     */
+    synchronized void invalidate(@NonNull Network network) {
+        final Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().mNetwork.equals(network)) {
+                it.remove();
+                mInvalidations++;
+            }
+        }
+    }
+
+    /**
+     * Dump the state of the cache for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format("Probe cache: TTL %dms, %d entries, %d hits, %d misses,"
+                + " %d invalidations", mTtlMs, mEntries.size(), mHits, mMisses, mInvalidations));
+    }
+}
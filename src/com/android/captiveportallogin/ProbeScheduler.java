@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.SystemClock;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler for captive portal probes, collapsing bursts of probe requests.
+ *
+ * <p>A probe runs some time after it is requested, and requests received in the meantime are
+ * debounced into the same probe, up to a maximum delay after the first request. Requests can also
+ * specify their own delay, in which case they are not debounced: the pending probe runs no later
+ * than the requested delay. At most one probe is in flight at any time: a probe that becomes due
+ * while another one is running waits for it to complete, and further requests are merged into it.
+ *
+ * <p>Probes can be suspended, for example while the user is not looking at the portal: pending
+ * probes are dropped and requests are ignored until probes are resumed.
+ *
+ * <p>This class is thread-safe.
+ */
+class ProbeScheduler {
+    @NonNull
+    private final ScheduledExecutorService mExecutor;
+    @NonNull
+    private final Runnable mProbe;
+    private final long mDebounceMs;
+    private final long mMaxDelayMs;
+
+    // Probe waiting for its delay to elapse, or null
+    @GuardedBy("this")
+    @Nullable
+    private ScheduledFuture<?> mPending;
+    // Generation of the pending probe, so that a probe that was rescheduled does not run
+    @GuardedBy("this")
+    private int mGeneration = 0;
+    // Time at which the pending probe is due
+    @GuardedBy("this")
+    private long mDueMs;
+    // Time after which debounced requests cannot delay the pending probe
+    @GuardedBy("this")
+    private long mDeadlineMs;
+    // Whether the pending probe became due while another probe was in flight
+    @GuardedBy("this")
+    private boolean mPendingDue = false;
+    @GuardedBy("this")
+    private boolean mInFlight = false;
+    @GuardedBy("this")
+    private boolean mSuspended = false;
+    @GuardedBy("this")
+    private boolean mCancelled = false;
+
+    /**
+     * Create a scheduler.
+     * @param executor Executor running the probes.
+     * @param probe Probe to run. It is never run concurrently with itself.
+     * @param debounceMs Delay between the last request and the probe.
+     * @param maxDelayMs Maximum delay between the first request and the probe.
+     */
+    ProbeScheduler(@NonNull ScheduledExecutorService executor, @NonNull Runnable probe,
+            long debounceMs, long maxDelayMs) {
+        mExecutor = executor;
+        mProbe = probe;
+        mDebounceMs = debounceMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Request a probe, debounced with other requests.
+     */
+    synchronized void requestProbe() {
+        scheduleProbe(mDebounceMs, true /* debounce */);
+    }
+
+    /**
+     * Request a probe that runs after the specified delay at the latest.
+     */
+    synchronized void requestProbe(long delayMs) {
+        scheduleProbe(delayMs, false /* debounce */);
+    }
+
+    @GuardedBy("this")
+    private void scheduleProbe(long delayMs, boolean debounce) {
+        if (mCancelled || mSuspended || mPendingDue) return;
+        final long now = SystemClock.elapsedRealtime();
+        final long dueMs;
+        if (debounce) {
+            if (mPending == null) mDeadlineMs = now + mMaxDelayMs;
+            dueMs = Math.min(now + delayMs, mDeadlineMs);
+        } else {
+            dueMs = mPending == null ? now + delayMs : Math.min(mDueMs, now + delayMs);
+            mDeadlineMs = mPending == null ? dueMs : Math.min(mDeadlineMs, dueMs);
+        }
+        if (mPending != null) {
+            if (dueMs == mDueMs) return;
+            if (!mPending.cancel(false /* mayInterruptIfRunning */)) {
+                // The pending probe is starting: it will see the state as of this request.
+                return;
+            }
+        }
+        mDueMs = dueMs;
+        final int generation = ++mGeneration;
+        mPending = mExecutor.schedule(() -> onProbeDue(generation), Math.max(0, dueMs - now),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the pending probe, and ignore further requests. A probe that is in flight is not
+     * interrupted.
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+        dropPending();
+    }
+
+    /**
+     * Drop the pending probe, and ignore requests until {@link #resume()} is called. A probe that
+     * is in flight is not interrupted.
+     */
+    synchronized void suspend() {
+        mSuspended = true;
+        dropPending();
+    }
+
+    /**
+     * Accept requests again after {@link #suspend()}.
+     * @return Whether probes were suspended. Requests received in the meantime were ignored, so
+     *         callers typically request a probe to catch up.
+     */
+    synchronized boolean resume() {
+        final boolean wasSuspended = mSuspended;
+        mSuspended = false;
+        return wasSuspended;
+    }
+
+    @GuardedBy("this")
+    private void dropPending() {
+        mPendingDue = false;
+        // A probe that is already starting must not run
+        mGeneration++;
+        if (mPending != null) {
+            mPending.cancel(false /* mayInterruptIfRunning */);
+            mPending = null;
+        }
+    }
+
+    private void onProbeDue(int generation) {
+        synchronized (this) {
+            if (mCancelled || mSuspended || generation != mGeneration) return;
+            mPending = null;
+            if (mInFlight) {
+                mPendingDue = true;
+                return;
+            }
+            mInFlight = true;
+        }
+        runProbe();
+    }
+
+    private void runProbe() {
+        try {
+            mProbe.run();
+        } finally {
+            synchronized (this) {
+                mInFlight = false;
+                if (mPendingDue && !mCancelled && !mSuspended) {
+                    mPendingDue = false;
+                    mInFlight = true;
+                    mExecutor.execute(this::runProbe);
+                }
+            }
+        }
+    }
+}
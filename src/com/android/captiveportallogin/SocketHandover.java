@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.SystemClock;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.net.SocketFactory;
+
+/**
+ * {@link SocketFactory} handing the sockets connected by {@link DualStackConnector} races over to
+ * the URL connections opened after them.
+ *
+ * <p>URL connections cannot be given a connected socket, but they create their sockets with the
+ * socket factory of their network and then connect them. The sockets of this factory adopt a
+ * socket connected to the same address when they are asked to connect, instead of connecting
+ * again. TLS is layered over the adopted socket by socket factories that {@link #unwrap} it.
+ *
+ * <p>Sockets that no connection adopts, for example because the connection reused a pooled
+ * connection, are closed when they expire.
+ */
+class SocketHandover extends SocketFactory {
+    @NonNull
+    private final SocketFactory mSocketFactory;
+    private final long mExpiryMs;
+
+    @GuardedBy("this")
+    private final List<Pending> mPending = new ArrayList<>();
+    @GuardedBy("this")
+    private int mAdopted = 0;
+    @GuardedBy("this")
+    private int mExpired = 0;
+
+    private static class Pending {
+        @NonNull
+        final String mHost;
+        @NonNull
+        final List<InetAddress> mAddresses;
+        @NonNull
+        final Socket mSocket;
+        final long mExpiryTimeMs;
+
+        Pending(@NonNull String host, @NonNull List<InetAddress> addresses,
+                @NonNull Socket socket, long expiryTimeMs) {
+            mHost = host;
+            mAddresses = addresses;
+            mSocket = socket;
+            mExpiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    /**
+     * Create a handover.
+     * @param socketFactory Factory for the sockets that do not adopt a pending socket.
+     * @param expiryMs Time after which a socket that no connection adopted is closed.
+     */
+    SocketHandover(@NonNull SocketFactory socketFactory, long expiryMs) {
+        mSocketFactory = socketFactory;
+        mExpiryMs = expiryMs;
+    }
+
+    /**
+     * Offer a connected socket to the next connection to its address.
+     * @param host The host that the socket was connected for.
+     * @param addresses The addresses of the host, in the order of connection attempts.
+     */
+    synchronized void offer(@NonNull String host, @NonNull List<InetAddress> addresses,
+            @NonNull Socket socket) {
+        expirePending();
+        // Connections try the addresses in order: the address of the socket goes first
+        final List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        ordered.add(socket.getInetAddress());
+        for (InetAddress address : addresses) {
+            if (!address.equals(socket.getInetAddress())) ordered.add(address);
+        }
+        mPending.add(new Pending(host.toLowerCase(Locale.ROOT), ordered, socket,
+                SystemClock.elapsedRealtime() + mExpiryMs));
+    }
+
+    /**
+     * Get the addresses of a host with a pending socket, the address of the socket first.
+     * @return The addresses, or null if there is no pending socket for the host.
+     */
+    @Nullable
+    synchronized List<InetAddress> getAddresses(@NonNull String host) {
+        expirePending();
+        final String lowerCaseHost = host.toLowerCase(Locale.ROOT);
+        // The latest race has the freshest answer
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            if (mPending.get(i).mHost.equals(lowerCaseHost)) return mPending.get(i).mAddresses;
+        }
+        return null;
+    }
+
+    /**
+     * Take a pending socket connected to the specified address.
+     * @return The socket, or null if there is none.
+     */
+    @VisibleForTesting
+    @Nullable
+    synchronized Socket take(@NonNull InetSocketAddress address) {
+        expirePending();
+        for (Iterator<Pending> it = mPending.iterator(); it.hasNext(); ) {
+            final Socket socket = it.next().mSocket;
+            if (address.equals(socket.getRemoteSocketAddress())) {
+                it.remove();
+                mAdopted++;
+                return socket;
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    private void expirePending() {
+        final long now = SystemClock.elapsedRealtime();
+        for (Iterator<Pending> it = mPending.iterator(); it.hasNext(); ) {
+            final Pending pending = it.next();
+            if (pending.mExpiryTimeMs > now && !pending.mSocket.isClosed()) continue;
+            it.remove();
+            mExpired++;
+            closeQuietly(pending.mSocket);
+        }
+    }
+
+    /**
+     * Get the socket that a socket of this factory adopted or connected, so that TLS can be
+     * layered over it directly.
+     */
+    @NonNull
+    static Socket unwrap(@NonNull Socket socket) {
+        return socket instanceof HandoverSocket ? ((HandoverSocket) socket).mDelegate : socket;
+    }
+
+    private static void closeQuietly(@NonNull Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do: the socket is not used anymore
+        }
+    }
+
+    /**
+     * Dump the handover statistics for debugging.
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format("Socket handover: %d pending, %d adopted, %d expired",
+                mPending.size(), mAdopted, mExpired));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return new HandoverSocket(mSocketFactory.createSocket());
+    }
+
+    // Sockets connected on creation have nothing to adopt
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return mSocketFactory.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return mSocketFactory.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return mSocketFactory.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+            int localPort) throws IOException {
+        return mSocketFactory.createSocket(address, port, localAddress, localPort);
+    }
+
+    /**
+     * Socket delegating to a socket of the network, or to the pending socket that it adopted when
+     * connecting.
+     */
+    private class HandoverSocket extends Socket {
+        @NonNull
+        private volatile Socket mDelegate;
+
+        HandoverSocket(@NonNull Socket delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0 /* timeout */);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            final Socket adopted = !mDelegate.isClosed() && endpoint instanceof InetSocketAddress
+                    ? take((InetSocketAddress) endpoint) : null;
+            if (adopted == null) {
+                mDelegate.connect(endpoint, timeout);
+                return;
+            }
+            // Options set before connecting apply to the adopted socket
+            adopted.setSoTimeout(mDelegate.getSoTimeout());
+            closeQuietly(mDelegate);
+            mDelegate = adopted;
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            mDelegate.bind(bindpoint);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return mDelegate.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return mDelegate.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return mDelegate.getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return mDelegate.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return mDelegate.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return mDelegate.getLocalSocketAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mDelegate.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mDelegate.getOutputStream();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            mDelegate.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return mDelegate.getTcpNoDelay();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            mDelegate.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return mDelegate.getSoLinger();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            mDelegate.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return mDelegate.getSoTimeout();
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            mDelegate.setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return mDelegate.getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            mDelegate.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return mDelegate.getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            mDelegate.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return mDelegate.getKeepAlive();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDelegate.close();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            mDelegate.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            mDelegate.shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mDelegate.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return mDelegate.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mDelegate.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return mDelegate.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return mDelegate.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            return mDelegate.toString();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Estimator of the throughput of a transfer, as an exponentially weighted moving average of the
+ * rate measured over short sampling windows.
+ *
+ * <p>The weight of each sample depends on the duration of its window, so that the estimate decays
+ * by half over the configured half-life regardless of how often data is received.
+ *
+ * <p>This class is thread-safe.
+ */
+class ThroughputEstimator {
+    // Shorter windows would mostly measure the burstiness of reads.
+    @VisibleForTesting
+    static final long MIN_WINDOW_MS = 250L;
+    static final long RATE_UNKNOWN = -1L;
+
+    private final long mHalfLifeMs;
+
+    @GuardedBy("this")
+    private long mWindowStartMs = -1L;
+    @GuardedBy("this")
+    private long mWindowBytes = 0L;
+    @GuardedBy("this")
+    private long mTotalBytes = 0L;
+    // Estimated rate in bytes/second, or negative if no window completed yet.
+    @GuardedBy("this")
+    private double mRate = RATE_UNKNOWN;
+
+    /**
+     * Create an estimator.
+     * @param halfLifeMs Time after which the weight of a sample in the estimate is halved.
+     */
+    ThroughputEstimator(long halfLifeMs) {
+        mHalfLifeMs = halfLifeMs;
+    }
+
+    /**
+     * Reset the estimator to its initial state.
+     */
+    synchronized void reset() {
+        mWindowStartMs = -1L;
+        mWindowBytes = 0L;
+        mTotalBytes = 0L;
+        mRate = RATE_UNKNOWN;
+    }
+
+    /**
+     * Account for transferred bytes. This can be called with 0 bytes to close the current window
+     * when no data was received.
+     * @param bytes Number of bytes transferred since the last call.
+     * @param nowMs Current time, from a monotonic clock.
+     */
+    synchronized void onBytesTransferred(long bytes, long nowMs) {
+        if (mWindowStartMs < 0) {
+            mWindowStartMs = nowMs;
+        }
+        mWindowBytes += bytes;
+        mTotalBytes += bytes;
+
+        final long elapsedMs = nowMs - mWindowStartMs;
+        if (elapsedMs < MIN_WINDOW_MS) return;
+        final double sample = mWindowBytes * 1000.0 / elapsedMs;
+        if (mRate < 0) {
+            mRate = sample;
+        } else {
+            final double weight = 1 - Math.pow(2, -(double) elapsedMs / mHalfLifeMs);
+            mRate += weight * (sample - mRate);
+        }
+        mWindowStartMs = nowMs;
+        mWindowBytes = 0L;
+    }
+
+    /**
+     * Get the estimated throughput in bytes/second, or {@link #RATE_UNKNOWN} if not enough data
+     * was transferred yet.
+     */
+    synchronized long getRate() {
+        return mRate < 0 ? RATE_UNKNOWN : Math.round(mRate);
+    }
+
+    /**
+     * Get the total number of bytes transferred since the estimator was created or reset.
+     */
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Estimate the time needed to transfer the specified number of bytes at the current rate.
+     * @return The estimated time in milliseconds, or {@link #RATE_UNKNOWN} if the rate is unknown
+     *         or zero.
+     */
+    synchronized long estimateRemainingMs(long remainingBytes) {
+        if (mRate <= 0) return RATE_UNKNOWN;
+        return Math.round(Math.max(0, remainingBytes) * 1000.0 / mRate);
+    }
+}
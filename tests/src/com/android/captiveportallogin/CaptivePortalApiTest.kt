@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import fi.iki.elonen.NanoHTTPD
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.ServerSocket
+import java.net.URL
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+private const val TEST_TIMEOUT_MS = 10_000
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class CaptivePortalApiTest {
+    private lateinit var server: ApiServer
+
+    /**
+     * Server answering API requests with a configurable state.
+     */
+    private class ApiServer : NanoHTTPD("localhost", 0) {
+        private val socket = ServerSocket()
+        @Volatile
+        var status: Response.IStatus = Response.Status.OK
+        @Volatile
+        var state = """{"captive": true}"""
+        @Volatile
+        var acceptHeader: String? = null
+
+        init {
+            setServerSocketFactory { socket }
+        }
+
+        fun url() = URL("http://localhost:${socket.localPort}/api")
+
+        override fun serve(session: IHTTPSession): Response {
+            acceptHeader = session.headers["accept"]
+            return newFixedLengthResponse(status, CaptivePortalApi.CAPTIVE_JSON_MEDIA_TYPE, state)
+        }
+    }
+
+    @Before
+    fun setUp() {
+        server = ApiServer()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stop()
+    }
+
+    private fun fetchState() = CaptivePortalApi(server.url(), { url -> url.openConnection() },
+            "Test UserAgent", TEST_TIMEOUT_MS).fetchState()
+
+    @Test
+    fun testFetchState() {
+        val captive = fetchState()
+        assertNotNull(captive)
+        assertTrue(captive.mCaptive)
+        assertEquals(CaptivePortalApi.CAPTIVE_JSON_MEDIA_TYPE, server.acceptHeader)
+
+        server.state = """{"captive": false, "seconds-remaining": 3600}"""
+        val notCaptive = fetchState()
+        assertNotNull(notCaptive)
+        assertFalse(notCaptive.mCaptive)
+        assertEquals(3600L, notCaptive.mSecondsRemaining)
+    }
+
+    @Test
+    fun testFetchStateError() {
+        server.status = Response.Status.NOT_FOUND
+        assertNull(fetchState())
+
+        server.status = Response.Status.OK
+        server.state = "<html>Login required</html>"
+        assertNull(fetchState())
+    }
+
+    @Test
+    fun testParseState() {
+        val state = CaptivePortalApi.parseState("""{
+            "captive": true,
+            "user-portal-url": "https://portal.example.com/login"
+        }""")
+        assertNotNull(state)
+        assertTrue(state.mCaptive)
+        assertEquals(CaptivePortalApi.SECONDS_REMAINING_UNKNOWN, state.mSecondsRemaining)
+
+        // "captive" is required
+        assertNull(CaptivePortalApi.parseState("""{"seconds-remaining": 300}"""))
+        assertNull(CaptivePortalApi.parseState("not json"))
+        assertNull(CaptivePortalApi.parseState(null))
+    }
+}
@@ -29,8 +29,10 @@ import static android.provider.DeviceConfig.NAMESPACE_CONNECTIVITY;
 import static androidx.test.espresso.intent.Intents.intending;
 import static androidx.test.espresso.intent.matcher.IntentMatchers.hasAction;
 import static androidx.test.espresso.intent.matcher.IntentMatchers.isInternal;
+import static androidx.test.espresso.web.assertion.WebViewAssertions.webMatches;
 import static androidx.test.espresso.web.sugar.Web.onWebView;
 import static androidx.test.espresso.web.webdriver.DriverAtoms.findElement;
+import static androidx.test.espresso.web.webdriver.DriverAtoms.getText;
 import static androidx.test.espresso.web.webdriver.DriverAtoms.webClick;
 import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
 
@@ -41,14 +43,21 @@ import static com.android.testutils.TestNetworkTrackerKt.initTestNetwork;
 
 import static junit.framework.Assert.assertEquals;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 import android.app.Instrumentation.ActivityResult;
@@ -61,13 +70,16 @@ import android.net.CaptivePortal;
 import android.net.ConnectivityManager;
 import android.net.InetAddresses;
 import android.net.LinkAddress;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.provider.DeviceConfig;
+import android.util.Pair;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.core.app.ActivityScenario;
@@ -91,9 +103,12 @@ import org.mockito.quality.Strictness;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.URL;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BooleanSupplier;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -105,9 +120,13 @@ public class CaptivePortalLoginActivityTest {
     private static final int TEST_NETID = 1234;
     private static final String TEST_URL_QUERY = "testquery";
     private static final long TEST_TIMEOUT_MS = 10_000L;
+    // Time to wait for probes that are not expected to happen
+    private static final long TEST_NO_PROBE_WAIT_MS = 2_000L;
     private static final LinkAddress TEST_LINKADDR = new LinkAddress(
             InetAddresses.parseNumericAddress("2001:db8::8"), 64);
     private static final String TEST_USERAGENT = "Test/42.0 Unit-test";
+    // Another name of the host running the test server
+    private static final String TEST_PORTAL_HOST = "127.0.0.1";
     private CaptivePortalLoginActivity mActivity;
     private MockitoSession mSession;
     private Network mNetwork = new Network(TEST_NETID);
@@ -115,6 +134,7 @@ public class CaptivePortalLoginActivityTest {
 
     private static ConnectivityManager sConnectivityManager;
     private static DevicePolicyManager sMockDevicePolicyManager;
+    private static CaptivePortalApi sMockCaptivePortalApi;
 
     public static class InstrumentedCaptivePortalLoginActivity extends CaptivePortalLoginActivity {
         @Override
@@ -123,6 +143,12 @@ public class CaptivePortalLoginActivityTest {
             if (Context.DEVICE_POLICY_SERVICE.equals(name)) return sMockDevicePolicyManager;
             return super.getSystemService(name);
         }
+
+        @Override
+        CaptivePortalApi makeCaptivePortalApi(URL apiUrl) {
+            if (sMockCaptivePortalApi != null) return sMockCaptivePortalApi;
+            return super.makeCaptivePortalApi(apiUrl);
+        }
     }
 
     /** Class to replace CaptivePortal to prevent mock object is updated and replaced by parcel. */
@@ -130,6 +156,8 @@ public class CaptivePortalLoginActivityTest {
         int mDismissTimes;
         int mIgnoreTimes;
         int mUseTimes;
+        // Not parceled: only counts the calls made by the activity
+        volatile int mReevaluateTimes;
 
         private MockCaptivePortal() {
             this(0, 0, 0);
@@ -155,6 +183,12 @@ public class CaptivePortalLoginActivityTest {
             mUseTimes++;
         }
 
+        // Called by the activity through reflection, as CaptivePortal#reevaluateNetwork is not
+        // part of the SDK it is built against.
+        public void reevaluateNetwork() {
+            mReevaluateTimes++;
+        }
+
         @Override
         public void logEvent(int eventId, String packageName) {
             // Do nothing
@@ -191,6 +225,7 @@ public class CaptivePortalLoginActivityTest {
         final Context context = getInstrumentation().getContext();
         sConnectivityManager = spy(context.getSystemService(ConnectivityManager.class));
         sMockDevicePolicyManager = mock(DevicePolicyManager.class);
+        sMockCaptivePortalApi = null;
         MockitoAnnotations.initMocks(this);
         mSession = mockitoSession()
                 .spyStatic(DeviceConfig.class)
@@ -478,6 +513,8 @@ public class CaptivePortalLoginActivityTest {
         final ComponentName downloadComponent = new ComponentName(ctx, DownloadService.class);
         doReturn(downloadComponent).when(mActivity).startForegroundService(argThat(intent ->
                 downloadComponent.equals(intent.getComponent())));
+        doReturn(downloadComponent).when(mActivity).startService(argThat(intent ->
+                downloadComponent.equals(intent.getComponent())));
         // No intent fired yet
         assertEquals(0, Intents.getIntents().size());
 
@@ -493,7 +530,8 @@ public class CaptivePortalLoginActivityTest {
         assertEquals(mimetype, fileIntent.getType());
         assertEquals(filename, fileIntent.getStringExtra(Intent.EXTRA_TITLE));
 
-        // The download intent should be fired after the create file result is received
+        // The download intent should be fired speculatively when the download starts, before the
+        // file is created
         final ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
         verify(mActivity).startForegroundService(intentCaptor.capture());
         final Intent dlIntent = intentCaptor.getValue();
@@ -504,7 +542,143 @@ public class CaptivePortalLoginActivityTest {
         final String expectedUrl = server.makeUrl(downloadQuery);
         assertEquals(expectedUrl, dlIntent.getStringExtra(DownloadService.ARG_URL));
         assertEquals(filename, dlIntent.getStringExtra(DownloadService.ARG_DISPLAY_NAME));
-        assertEquals(mockFile, dlIntent.getParcelableExtra(DownloadService.ARG_OUTFILE));
+        assertNull(dlIntent.getParcelableExtra(DownloadService.ARG_OUTFILE));
+        final String stagingId = dlIntent.getStringExtra(DownloadService.ARG_STAGING_ID);
+        assertNotNull(stagingId);
+
+        // The destination intent should be fired after the create file result is received
+        verify(mActivity).startService(intentCaptor.capture());
+        final Intent destinationIntent = intentCaptor.getValue();
+
+        assertEquals(downloadComponent, destinationIntent.getComponent());
+        assertEquals(stagingId, destinationIntent.getStringExtra(DownloadService.ARG_STAGING_ID));
+        assertEquals(mockFile, destinationIntent.getParcelableExtra(DownloadService.ARG_OUTFILE));
+
+        server.stop();
+    }
+
+    @Test
+    public void testDownloadToDownloadsCollection() throws Exception {
+        doReturn(1L).when(() -> DeviceConfig.getLong(NAMESPACE_CONNECTIVITY,
+                CaptivePortalLoginActivity.DOWNLOAD_TO_DOWNLOADS_COLLECTION, 0 /* default */));
+        final HttpServer server = new HttpServer();
+        final String linkIdDownload = "download";
+        final String downloadQuery = "dl";
+        final String filename = "testfile.png";
+        final String mimetype = "image/png";
+        server.setResponseBody(TEST_URL_QUERY,
+                "<a id='" + linkIdDownload + "' href='?" + downloadQuery + "'>Download</a>");
+        server.setResponse(downloadQuery, "This is a test file", mimetype, Collections.singletonMap(
+                "Content-Disposition", "attachment; filename=\"" + filename + "\""));
+        server.start();
+
+        ActivityScenario.launch(RequestDismissKeyguardActivity.class);
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+
+        spyOn(mActivity);
+        final ComponentName downloadComponent = new ComponentName(
+                mActivity.getApplicationContext(), DownloadService.class);
+        doReturn(downloadComponent).when(mActivity).startForegroundService(argThat(intent ->
+                downloadComponent.equals(intent.getComponent())));
+
+        onWebView().withElement(findElement(Locator.ID, linkIdDownload))
+                .perform(webClick());
+
+        // The download should start directly, without asking for an output file
+        final ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
+        verify(mActivity, timeout(TEST_TIMEOUT_MS)).startForegroundService(
+                intentCaptor.capture());
+        final Intent dlIntent = intentCaptor.getValue();
+
+        assertEquals(0, Intents.getIntents().size());
+        assertEquals(downloadComponent, dlIntent.getComponent());
+        assertTrue(dlIntent.getBooleanExtra(DownloadService.ARG_SAVE_TO_DOWNLOADS, false));
+        assertEquals(server.makeUrl(downloadQuery),
+                dlIntent.getStringExtra(DownloadService.ARG_URL));
+        assertEquals(filename, dlIntent.getStringExtra(DownloadService.ARG_DISPLAY_NAME));
+        assertEquals(mimetype, dlIntent.getStringExtra(DownloadService.ARG_MIMETYPE));
+        assertNull(dlIntent.getParcelableExtra(DownloadService.ARG_OUTFILE));
+
+        server.stop();
+    }
+
+    @Test
+    public void testCaptivePortalApiPolledWhenNetworkMonitorReevaluates() throws Exception {
+        // Networks only advertise an API from R, where the dismiss flag is enabled by default
+        assumeTrue(Build.VERSION.SDK_INT > Build.VERSION_CODES.Q);
+        doReturn(0L).when(() -> DeviceConfig.getLong(NAMESPACE_CONNECTIVITY,
+                CaptivePortalLoginActivity.DISMISS_PORTAL_IN_VALIDATED_NETWORK, 0 /* default */));
+        final LinkProperties lp = new LinkProperties();
+        lp.setCaptivePortalApiUrl(Uri.parse("https://android.test.com/api"));
+        doReturn(lp).when(sConnectivityManager).getLinkProperties(any());
+        sMockCaptivePortalApi = mock(CaptivePortalApi.class);
+        doReturn(new CaptivePortalApi.State(false /* captive */,
+                CaptivePortalApi.SECONDS_REMAINING_UNKNOWN)).when(sMockCaptivePortalApi)
+                .fetchState();
+
+        initActivity(TEST_URL);
+
+        // The page load has NetworkMonitor reevaluate the network, and the API is still polled:
+        // it reports that the network is not captive anymore.
+        assertTrue(isEventually(() -> getCaptivePortal().mDismissTimes == 1, TEST_TIMEOUT_MS));
+        assertTrue(getCaptivePortal().mReevaluateTimes > 0);
+        verify(sMockCaptivePortalApi, atLeastOnce()).fetchState();
+    }
+
+    private void setUpImmediateProbesOnly() {
+        // Only probes requested right away, for likely logins, run within the test timeout
+        doReturn(Integer.MAX_VALUE).when(() -> DeviceConfig.getInt(eq(NAMESPACE_CONNECTIVITY),
+                eq(CaptivePortalLoginActivity.CAPTIVE_PORTAL_PROBE_DEBOUNCE_MS), anyInt()));
+        // Probe from the app instead of delegating reevaluation to NetworkMonitor
+        setDismissPortalInValidatedNetwork(false);
+    }
+
+    @Test
+    public void testInitialRedirectToPortal() throws Exception {
+        setUpImmediateProbesOnly();
+        // The probe URL redirects to the portal, which is on another host
+        final HttpServer server = new HttpServer();
+        final String portalQuery = "portal";
+        server.start();
+        server.setRedirect(TEST_URL_QUERY, server.makeUrl(TEST_PORTAL_HOST, portalQuery));
+        server.setResponseBody(portalQuery, "<p id='tst_portal'>Portal</p>");
+        ActivityScenario.launch(RequestDismissKeyguardActivity.class);
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+
+        onWebView().withElement(findElement(Locator.ID, "tst_portal"))
+                .check(webMatches(getText(), containsString("Portal")));
+        // The redirect to the portal is not a login attempt: the network is not probed right
+        // away, which would also have flushed the DNS cache.
+        Thread.sleep(TEST_NO_PROBE_WAIT_MS);
+        assertEquals(0, server.getRequestCount(TEST_URL_QUERY, TEST_USERAGENT));
+
+        server.stop();
+    }
+
+    @Test
+    public void testBackToProbeHost() throws Exception {
+        setUpImmediateProbesOnly();
+        // The probe URL redirects to the portal, on another host. Once the user logs in, the
+        // portal links back to the probe host: it is not a redirect, so only the detection of
+        // navigations back to the probe host probes right away.
+        final HttpServer server = new HttpServer();
+        final String portalQuery = "portal";
+        final String loggedInQuery = "loggedin";
+        server.start();
+        server.setRedirect(TEST_URL_QUERY, server.makeUrl(TEST_PORTAL_HOST, portalQuery));
+        server.setResponseBody(portalQuery, "<a id='tst_continue' href='"
+                + server.makeUrl(loggedInQuery) + "'>Continue</a>");
+        server.setResponseBody(loggedInQuery, "<p id='tst_done'>Logged in</p>");
+        ActivityScenario.launch(RequestDismissKeyguardActivity.class);
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+
+        onWebView().withElement(findElement(Locator.ID, "tst_continue")).perform(webClick());
+        onWebView().withElement(findElement(Locator.ID, "tst_done"))
+                .check(webMatches(getText(), containsString("Logged in")));
+
+        // The network is probed without waiting for the debounce delay
+        assertTrue(isEventually(() -> server.getRequestCount(TEST_URL_QUERY, TEST_USERAGENT) > 0,
+                TEST_TIMEOUT_MS));
 
         server.stop();
     }
@@ -524,13 +698,19 @@ public class CaptivePortalLoginActivityTest {
         private final ServerSocket mSocket;
         // Responses per URL query
         private final HashMap<String, MockResponse> mResponses = new HashMap<>();
+        // Number of requests received per URL query and User-Agent
+        private final ConcurrentHashMap<Pair<String, String>, AtomicInteger> mRequestCounts =
+                new ConcurrentHashMap<>();
 
         private static final class MockResponse {
+            private final Response.Status mStatus;
             private final String mBody;
             private final String mMimetype;
             private final Map<String, String> mHeaders;
 
-            MockResponse(String body, String mimetype, Map<String, String> headers) {
+            MockResponse(Response.Status status, String body, String mimetype,
+                    Map<String, String> headers) {
+                this.mStatus = status;
                 this.mBody = body;
                 this.mMimetype = mimetype;
                 this.mHeaders = Collections.unmodifiableMap(new HashMap<>(headers));
@@ -553,9 +733,13 @@ public class CaptivePortalLoginActivityTest {
         }
 
         private String makeUrl(String query) {
+            return makeUrl("localhost", query);
+        }
+
+        private String makeUrl(String host, String query) {
             return new Uri.Builder()
                     .scheme("http")
-                    .encodedAuthority("localhost:" + mSocket.getLocalPort())
+                    .encodedAuthority(host + ":" + mSocket.getLocalPort())
                     // Explicitly specify an empty path to match the format of URLs returned by
                     // WebView (for example in onDownloadStart)
                     .path("/")
@@ -570,18 +754,31 @@ public class CaptivePortalLoginActivityTest {
 
         private void setResponse(String query, String body, String mimetype,
                 Map<String, String> headers) {
-            mResponses.put(query, new MockResponse(body, mimetype, headers));
+            mResponses.put(query, new MockResponse(Response.Status.OK, body, mimetype, headers));
+        }
+
+        private void setRedirect(String query, String location) {
+            mResponses.put(query, new MockResponse(Response.Status.REDIRECT, "" /* body */,
+                    NanoHTTPD.MIME_HTML, Collections.singletonMap("Location", location)));
+        }
+
+        private int getRequestCount(String query, String userAgent) {
+            final AtomicInteger count = mRequestCounts.get(new Pair<>(query, userAgent));
+            return count == null ? 0 : count.get();
         }
 
         @Override
         public Response serve(IHTTPSession session) {
+            mRequestCounts.computeIfAbsent(new Pair<>(session.getQueryParameterString(),
+                    session.getHeaders().get("user-agent")), k -> new AtomicInteger())
+                    .incrementAndGet();
             final MockResponse mockResponse = mResponses.get(session.getQueryParameterString());
             if (mockResponse == null) {
                 // Default response is a 404
                 return super.serve(session);
             }
 
-            final Response response = newFixedLengthResponse(Response.Status.OK,
+            final Response response = newFixedLengthResponse(mockResponse.mStatus,
                     mockResponse.mMimetype,
                     "<!doctype html>"
                     + "<html>"
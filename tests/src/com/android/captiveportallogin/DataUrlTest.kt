@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import androidx.test.platform.app.InstrumentationRegistry.getInstrumentation
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DataUrlTest {
+    private fun decode(url: String) =
+            String(DataUrl.openStream(url).use { it.readBytes() }, StandardCharsets.UTF_8)
+
+    @Test
+    fun testIsDataUrl() {
+        assertTrue(DataUrl.isDataUrl("data:,abc"))
+        assertTrue(DataUrl.isDataUrl("DATA:text/plain,abc"))
+        assertFalse(DataUrl.isDataUrl("https://www.example.com/data:"))
+        assertFalse(DataUrl.isDataUrl(null))
+    }
+
+    @Test
+    fun testGetMimeType() {
+        assertEquals("text/plain", DataUrl.getMimeType("data:text/plain;base64,YWJj"))
+        assertEquals("image/png", DataUrl.getMimeType("data:Image/PNG,abc"))
+        assertNull(DataUrl.getMimeType("data:,abc"))
+        assertNull(DataUrl.getMimeType("data:;base64,YWJj"))
+    }
+
+    @Test
+    fun testDecodeBase64() {
+        assertEquals("Test voucher", decode("data:text/plain;base64,VGVzdCB2b3VjaGVy"))
+        assertEquals("", decode("data:;base64,"))
+    }
+
+    @Test
+    fun testDecodePercentEncoded() {
+        assertEquals("Test voucher", decode("data:text/plain,Test%20voucher"))
+        assertEquals("a,b;c", decode("data:,a,b%3Bc"))
+    }
+
+    @Test
+    fun testDecodeToFile() {
+        val dir = File(getInstrumentation().context.cacheDir, "datauri_test")
+        val file = DataUrl.decodeToFile("data:text/plain;base64,VGVzdCB2b3VjaGVy", dir)
+        try {
+            assertEquals(dir, file.parentFile)
+            assertEquals("Test voucher", file.readText(StandardCharsets.UTF_8))
+        } finally {
+            file.delete()
+        }
+        // Invalid URLs do not leave a file behind
+        assertFailsWith<IOException> { DataUrl.decodeToFile("data:,abc%zz", dir) }
+        assertEquals(0, dir.listFiles()?.size ?: 0)
+    }
+
+    @Test
+    fun testInvalidUrl() {
+        assertFailsWith<IOException> { DataUrl.openStream("data:text/plain") }
+        assertFailsWith<IOException> { decode("data:,abc%2") }
+        assertFailsWith<IOException> { decode("data:,abc%zz") }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.net.Network
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.net.InetAddress
+import java.net.UnknownHostException
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+private const val TEST_TTL_MS = 200L
+private const val TEST_HOST = "test.example.com"
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DnsCacheTest {
+    private val network1 = Network(46)
+    private val network2 = Network(47)
+    private val address = InetAddress.getByName("192.0.2.1")
+    private val lookups = mutableListOf<Pair<Network, String>>()
+    private val cache = DnsCache({ network, host ->
+        lookups.add(network to host)
+        if (host == TEST_HOST) arrayOf(address) else throw UnknownHostException(host)
+    }, TEST_TTL_MS)
+
+    @Test
+    fun testResolutionsAreCachedPerNetwork() {
+        assertEquals(listOf(address), cache.getAllByName(network1, TEST_HOST).toList())
+        assertEquals(listOf(address), cache.getAllByName(network1, TEST_HOST).toList())
+        assertEquals(1, lookups.size)
+
+        cache.getAllByName(network2, TEST_HOST)
+        assertEquals(listOf(network1 to TEST_HOST, network2 to TEST_HOST), lookups)
+    }
+
+    @Test
+    fun testExpiry() {
+        cache.getAllByName(network1, TEST_HOST)
+        Thread.sleep(TEST_TTL_MS * 2)
+        cache.getAllByName(network1, TEST_HOST)
+        assertEquals(2, lookups.size)
+    }
+
+    @Test
+    fun testFlush() {
+        cache.getAllByName(network1, TEST_HOST)
+        cache.getAllByName(network2, TEST_HOST)
+        cache.flush(network1)
+        cache.getAllByName(network1, TEST_HOST)
+        cache.getAllByName(network2, TEST_HOST)
+        assertEquals(3, lookups.size)
+    }
+
+    @Test
+    fun testFailuresAreNotCached() {
+        repeat(2) {
+            assertFailsWith<UnknownHostException> {
+                cache.getAllByName(network1, "unknown.example.com")
+            }
+        }
+        assertEquals(2, lookups.size)
+    }
+
+    @Test
+    fun testResolveUncached() {
+        cache.getAllByName(network1, TEST_HOST)
+        assertEquals(listOf(address), cache.resolveUncached(network1, TEST_HOST).toList())
+        // The cached resolution was dropped, and the new one was not cached
+        cache.getAllByName(network1, TEST_HOST)
+        cache.getAllByName(network1, TEST_HOST)
+        assertEquals(3, lookups.size)
+    }
+
+    @Test
+    fun testDump() {
+        repeat(4) { cache.getAllByName(network1, TEST_HOST) }
+        val dump = StringWriter().also { PrintWriter(it).use { w -> cache.dump(w) } }.toString()
+        assertTrue(dump.contains("hit rate 75% (3/4)"), dump)
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import com.android.captiveportallogin.DownloadConcurrencyController.KBPS_PER_DOWNLOAD
+import com.android.captiveportallogin.DownloadConcurrencyController.MAX_CONCURRENCY
+import com.android.captiveportallogin.DownloadConcurrencyController.SAMPLE_PERIOD_MS
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DownloadConcurrencyControllerTest {
+    private val controller = DownloadConcurrencyController()
+    private var now = 1000L
+
+    /**
+     * Simulate one sampling period with the specified goodput, in bytes/second.
+     */
+    private fun runPeriod(goodput: Long): Boolean {
+        controller.onBytesTransferred(goodput * SAMPLE_PERIOD_MS / 1000, now)
+        now += SAMPLE_PERIOD_MS
+        return controller.onBytesTransferred(0, now)
+    }
+
+    @Test
+    fun testInitialConcurrency() {
+        controller.reset(0 /* linkDownstreamKbps */)
+        assertEquals(1, controller.targetConcurrency)
+
+        controller.reset(KBPS_PER_DOWNLOAD / 2)
+        assertEquals(1, controller.targetConcurrency)
+
+        controller.reset(1_000_000)
+        assertEquals((MAX_CONCURRENCY + 1) / 2, controller.targetConcurrency)
+    }
+
+    @Test
+    fun testIncreaseWhileImproving() {
+        controller.reset(0 /* linkDownstreamKbps */)
+        controller.setWaitingDownloads(10)
+        controller.onBytesTransferred(0, now)
+
+        var goodput = 100_000L
+        for (i in 2..MAX_CONCURRENCY) {
+            assertTrue(runPeriod(goodput))
+            assertEquals(i, controller.targetConcurrency)
+            goodput *= 2
+        }
+        // Never above the maximum
+        assertFalse(runPeriod(goodput * 2))
+        assertEquals(MAX_CONCURRENCY, controller.targetConcurrency)
+    }
+
+    @Test
+    fun testAdditiveDecreaseWhenNotImproving() {
+        controller.reset(0 /* linkDownstreamKbps */)
+        controller.setWaitingDownloads(10)
+        controller.onBytesTransferred(0, now)
+
+        assertTrue(runPeriod(100_000L))
+        assertEquals(2, controller.targetConcurrency)
+        // Same goodput with one more download: back off by one
+        assertTrue(runPeriod(100_000L))
+        assertEquals(1, controller.targetConcurrency)
+    }
+
+    @Test
+    fun testMultiplicativeDecreaseOnErrors() {
+        controller.reset(1_000_000)
+        controller.setWaitingDownloads(10)
+        controller.onBytesTransferred(0, now)
+        assertTrue(runPeriod(100_000L))
+        assertTrue(runPeriod(200_000L))
+        val target = controller.targetConcurrency
+
+        controller.onDownloadError(now)
+        assertTrue(runPeriod(200_000L))
+        assertEquals(target / 2, controller.targetConcurrency)
+    }
+
+    @Test
+    fun testNoIncreaseWithoutWaitingDownloads() {
+        controller.reset(0 /* linkDownstreamKbps */)
+        controller.onBytesTransferred(0, now)
+        assertFalse(runPeriod(100_000L))
+        assertFalse(runPeriod(200_000L))
+        assertEquals(1, controller.targetConcurrency)
+    }
+}
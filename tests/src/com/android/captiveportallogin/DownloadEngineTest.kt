@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import com.android.captiveportallogin.DownloadEngine.CONTENT_LENGTH_UNKNOWN
+import com.android.captiveportallogin.DownloadEngine.MAX_PROGRESS_UPDATE_RATE_MS
+import com.android.captiveportallogin.DownloadEngine.RATE_UNLIMITED
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+private const val READ_TIME_MS = 10L
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DownloadEngineTest {
+    // Fake clock advancing by READ_TIME_MS every time it is read, which is once per read
+    private var now = 1000L
+    private val engine = DownloadEngine({ now.also { now += READ_TIME_MS } }, 100 /* bufferSize */)
+    private val content = Random(42).nextBytes(10_000)
+    private val output = ByteArrayOutputStream()
+    private val sink = DownloadEngine.Sink { buffer, offset, count ->
+        output.write(buffer, offset, count)
+    }
+
+    private class TestProgress(private val cancelAfterBytes: Long = Long.MAX_VALUE)
+        : DownloadEngine.Progress {
+        var transferred = 0L
+        val updates = mutableListOf<Int?>()
+
+        override fun isCancelled() = transferred >= cancelAfterBytes
+        override fun onBytesTransferred(bytes: Long, nowMs: Long) {
+            transferred += bytes
+        }
+        override fun getMaxReadRate() = RATE_UNLIMITED
+        override fun onProgress(progress: Int?) {
+            updates.add(progress)
+        }
+    }
+
+    @Test
+    fun testTransfer() {
+        val progress = TestProgress()
+        assertTrue(engine.transfer(DownloadEngine.streamSource(ByteArrayInputStream(content)),
+                sink, content.size.toLong(), progress))
+
+        assertArrayEquals(content, output.toByteArray())
+        assertEquals(content.size.toLong(), progress.transferred)
+        assertEquals(100, progress.updates.last())
+    }
+
+    @Test
+    fun testTransfer_StopsAtContentLength() {
+        assertTrue(engine.transfer(DownloadEngine.streamSource(ByteArrayInputStream(content)),
+                sink, 1234L, TestProgress()))
+        assertArrayEquals(content.copyOf(1234), output.toByteArray())
+    }
+
+    @Test
+    fun testTransfer_Cancelled() {
+        val progress = TestProgress(cancelAfterBytes = 1000L)
+        assertFalse(engine.transfer(DownloadEngine.streamSource(ByteArrayInputStream(content)),
+                sink, content.size.toLong(), progress))
+        assertEquals(1000, output.size())
+    }
+
+    @Test
+    fun testTransfer_ProgressRateLimited() {
+        val progress = TestProgress()
+        engine.transfer(DownloadEngine.streamSource(ByteArrayInputStream(content)),
+                sink, content.size.toLong(), progress)
+
+        // 100 reads of 100 bytes, each advancing the clock: 1000ms total
+        val durationMs = content.size / 100 * READ_TIME_MS
+        assertTrue(progress.updates.size <= durationMs / MAX_PROGRESS_UPDATE_RATE_MS + 2,
+                "Too many progress updates: ${progress.updates}")
+        assertEquals(listOf(1, 100), listOf(progress.updates.first(), progress.updates.last()))
+    }
+
+    @Test
+    fun testTransfer_UnknownLength() {
+        val progress = TestProgress()
+        assertTrue(engine.transfer(DownloadEngine.streamSource(ByteArrayInputStream(content)),
+                sink, CONTENT_LENGTH_UNKNOWN, progress))
+
+        assertArrayEquals(content, output.toByteArray())
+        assertTrue(progress.updates.isNotEmpty())
+        assertTrue(progress.updates.all { it == null })
+        assertTrue(progress.updates.size <= content.size / 100 * READ_TIME_MS /
+                MAX_PROGRESS_UPDATE_RATE_MS + 1)
+    }
+
+    @Test
+    fun testTransfer_DecodedContent() {
+        val compressed = ByteArrayOutputStream().also { bytes ->
+            GZIPOutputStream(bytes).use { it.write(content) }
+        }.toByteArray()
+        val wireStream = CountingInputStream(ByteArrayInputStream(compressed))
+        val progress = TestProgress()
+
+        // The content length refers to the compressed bytes, and does not limit decoded bytes
+        assertTrue(engine.transfer(
+                DownloadEngine.decodingSource(GZIPInputStream(wireStream), wireStream),
+                sink, compressed.size.toLong(), progress))
+
+        assertArrayEquals(content, output.toByteArray())
+        // Progress is based on the compressed bytes read so far
+        assertTrue(progress.transferred in 1L..compressed.size.toLong())
+        assertTrue(progress.updates.all { it != null && it <= 100 })
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.net.Network
+import android.net.Uri
+import android.os.Bundle
+import android.os.Debug
+import android.os.Parcel
+import android.os.Parcelable
+import android.os.ResultReceiver
+import android.os.SystemClock
+import androidx.core.content.FileProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry.getInstrumentation
+import com.android.captiveportallogin.DownloadService.EXTRA_DOWNLOAD_ID
+import com.android.captiveportallogin.DownloadService.STATUS_CANCELLED
+import com.android.captiveportallogin.DownloadService.STATUS_COMPLETED
+import com.android.captiveportallogin.DownloadService.STATUS_FAILED
+import com.android.captiveportallogin.DownloadService.STATUS_PROGRESS
+import com.android.captiveportallogin.DownloadService.STATUS_QUEUED
+import fi.iki.elonen.NanoHTTPD
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.net.ServerSocket
+import java.net.URL
+import java.net.URLConnection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+private const val TEST_USERAGENT = "Test UserAgent"
+private const val TEST_TIMEOUT_MS = 300_000L
+
+// Progress is reported at most every 500ms, plus the first update and the completion.
+private const val MIN_PROGRESS_INTERVAL_MS = 500L
+private const val EXTRA_PROGRESS_UPDATES = 3
+
+// Threads that the service may use in addition to its download workers (binder threads for
+// status callbacks, server threads accepting connections...).
+private const val THREAD_SLACK = 20
+
+// Shorter than the read timeout of downloads, so that healthy downloads waiting for workers
+// blocked on stalled networks would not complete in time.
+private const val STALLED_HEALTHY_TIMEOUT_MS = 20_000L
+
+// Memory growth tolerated between soak rounds, once the first round has warmed up caches.
+private const val MAX_PSS_GROWTH_KB = 8 * 1024
+private const val MAX_HEAP_GROWTH_BYTES = 4L * 1024 * 1024
+
+/**
+ * Stress and soak tests for [DownloadService].
+ *
+ * The tests queue hundreds of downloads of mixed sizes against a local HTTP server that throttles
+ * responses and injects errors, and check completion, cancellation, the rate of progress updates,
+ * the number of threads and memory growth.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class DownloadServiceStressTest {
+    private val context by lazy { getInstrumentation().context }
+    private lateinit var server: DownloadServer
+    private val testDir by lazy { File(context.cacheDir, "temp").also { it.mkdirs() } }
+
+    /**
+     * Network opening real connections to the local server.
+     *
+     * Connections are opened directly: the local server does not need to be reached through a
+     * specific network.
+     */
+    class LocalNetwork(netId: Int = 44) : Network(netId) {
+        companion object {
+            @JvmField
+            val CREATOR = object : Parcelable.Creator<LocalNetwork> {
+                override fun createFromParcel(source: Parcel?) = LocalNetwork(source!!.readInt())
+                override fun newArray(size: Int) = emptyArray<LocalNetwork>()
+            }
+        }
+
+        override fun getPrivateDnsBypassingCopy(): Network = this
+
+        override fun openConnection(url: URL?): URLConnection = url!!.openConnection()
+    }
+
+    /**
+     * Description of a download served by [DownloadServer].
+     */
+    private data class DownloadSpec(
+        val index: Int,
+        val size: Int,
+        val bytesPerSecond: Int = 0,
+        // Respond with a server error
+        val serverError: Boolean = false,
+        // Close the connection after half of the content
+        val truncate: Boolean = false,
+        // Do not respond until the server is released
+        val stall: Boolean = false
+    ) {
+        val expectFailure get() = serverError || truncate
+
+        fun toQuery() = "index=$index&size=$size&rate=$bytesPerSecond" +
+                "&error=${if (serverError) 1 else 0}&truncate=${if (truncate) 1 else 0}" +
+                "&stall=${if (stall) 1 else 0}"
+    }
+
+    /**
+     * Status reported by the service for one download.
+     */
+    private class DownloadStatus(private val done: CountDownLatch) : ResultReceiver(null) {
+        val downloadId = AtomicInteger(-1)
+        val terminalStatus = AtomicInteger(0)
+        val progressUpdates = AtomicInteger(0)
+        @Volatile var queuedTimeMs = 0L
+        @Volatile var doneTimeMs = 0L
+
+        override fun onReceiveResult(resultCode: Int, resultData: Bundle) {
+            when (resultCode) {
+                STATUS_QUEUED -> {
+                    downloadId.set(resultData.getInt(EXTRA_DOWNLOAD_ID))
+                    queuedTimeMs = SystemClock.elapsedRealtime()
+                }
+                STATUS_PROGRESS -> progressUpdates.incrementAndGet()
+                else -> {
+                    // Only the first terminal status counts; any other would be a bug.
+                    if (terminalStatus.compareAndSet(0, resultCode)) {
+                        doneTimeMs = SystemClock.elapsedRealtime()
+                        done.countDown()
+                    } else {
+                        terminalStatus.set(-1)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Generated content of a download, so that downloaded files can be checked without keeping
+     * the expected content in memory.
+     */
+    private class GeneratedContent(
+        private val seed: Int,
+        private val size: Int,
+        private val bytesPerSecond: Int = 0,
+        private val truncateAt: Int = Int.MAX_VALUE
+    ) : InputStream() {
+        private var position = 0
+        private val startMs = SystemClock.elapsedRealtime()
+
+        override fun read(): Int {
+            val buffer = ByteArray(1)
+            return if (read(buffer, 0, 1) < 0) -1 else buffer[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (position >= size) return -1
+            if (position >= truncateAt) throw IOException("Injected connection reset")
+            val count = minOf(len, size - position, 8192)
+            for (i in 0 until count) {
+                b[off + i] = byteAt(seed, position + i)
+            }
+            position += count
+            if (bytesPerSecond > 0) {
+                val expectedMs = position * 1000L / bytesPerSecond
+                val delayMs = startMs + expectedMs - SystemClock.elapsedRealtime()
+                if (delayMs > 0) Thread.sleep(delayMs)
+            }
+            return count
+        }
+
+        companion object {
+            fun byteAt(seed: Int, position: Int) = ((position * 31 + seed * 17) and 0xff).toByte()
+        }
+    }
+
+    private class DownloadServer : NanoHTTPD("localhost", 0) {
+        private val socket = ServerSocket()
+        val requests = AtomicInteger(0)
+        // Released to let stalled downloads respond
+        val stallRelease = CountDownLatch(1)
+
+        init {
+            setServerSocketFactory { socket }
+        }
+
+        fun makeUrl(spec: DownloadSpec) = Uri.Builder()
+                .scheme("http")
+                .encodedAuthority("localhost:" + socket.localPort)
+                .path("/download")
+                .encodedQuery(spec.toQuery())
+                .build()
+                .toString()
+
+        override fun serve(session: IHTTPSession): Response {
+            requests.incrementAndGet()
+            val params = session.parms
+            if (params["stall"] == "1") {
+                stallRelease.await(TEST_TIMEOUT_MS, MILLISECONDS)
+            }
+            if (params["error"] == "1") {
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                        "Injected error")
+            }
+            val size = params["size"]!!.toInt()
+            val content = GeneratedContent(
+                    seed = params["index"]!!.toInt(),
+                    size = size,
+                    bytesPerSecond = params["rate"]!!.toInt(),
+                    truncateAt = if (params["truncate"] == "1") size / 2 else Int.MAX_VALUE)
+            return newFixedLengthResponse(Response.Status.OK, "application/octet-stream",
+                    content, size.toLong())
+        }
+    }
+
+    @Before
+    fun setUp() {
+        server = DownloadServer()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stallRelease.countDown()
+        server.stop()
+        testDir.listFiles()?.forEach { it.delete() }
+    }
+
+    /**
+     * Make download specs of mixed sizes: mostly small files, some medium and a few large ones,
+     * with errors injected in every [errorEvery] downloads if not 0.
+     */
+    private fun makeSpecs(count: Int, random: Random, errorEvery: Int = 0, rate: Int = 0) =
+            (0 until count).map { i ->
+                val size = when (random.nextInt(100)) {
+                    in 0..69 -> random.nextInt(0, 16 * 1024)
+                    in 70..94 -> random.nextInt(16 * 1024, 256 * 1024)
+                    else -> random.nextInt(256 * 1024, 2 * 1024 * 1024)
+                }
+                val injectError = errorEvery > 0 && i % errorEvery == errorEvery - 1
+                val serverError = injectError && random.nextBoolean()
+                DownloadSpec(index = i, size = size, bytesPerSecond = rate,
+                        serverError = serverError,
+                        truncate = injectError && !serverError && size > 1)
+            }
+
+    private fun makeFileUri(file: File) = FileProvider.getUriForFile(
+            context, "com.android.captiveportallogin.tests.fileprovider", file)
+
+    private fun startDownload(
+        spec: DownloadSpec,
+        status: DownloadStatus,
+        network: Network = LocalNetwork()
+    ): File {
+        val file = File(testDir, "stress-${spec.index}.bin").also { it.createNewFile() }
+        context.startForegroundService(DownloadService.makeDownloadIntent(
+                context,
+                network,
+                TEST_USERAGENT,
+                server.makeUrl(spec),
+                file.name,
+                makeFileUri(file))
+                .putExtra(DownloadService.ARG_STATUS_RECEIVER, status))
+        return file
+    }
+
+    private fun assertGeneratedContent(spec: DownloadSpec, file: File) {
+        assertEquals(spec.size.toLong(), file.length(), "Unexpected size for download $spec")
+        FileInputStream(file).buffered().use { stream ->
+            for (position in 0 until spec.size) {
+                val expected = GeneratedContent.byteAt(spec.index, position)
+                assertEquals(expected, stream.read().toByte(),
+                        "Unexpected content at $position for download $spec")
+            }
+        }
+    }
+
+    /**
+     * Sample the number of live threads in the test process (which hosts the service) until
+     * [running] is cleared, and return the maximum.
+     */
+    private fun startThreadSampler(running: AtomicBoolean): () -> Int {
+        val maxThreads = AtomicInteger(Thread.getAllStackTraces().size)
+        val sampler = Thread {
+            while (running.get()) {
+                maxThreads.accumulateAndGet(Thread.getAllStackTraces().size, ::maxOf)
+                Thread.sleep(50)
+            }
+        }.also { it.start() }
+        return {
+            sampler.join()
+            maxThreads.get()
+        }
+    }
+
+    private fun runDownloads(specs: List<DownloadSpec>): List<DownloadStatus> {
+        val done = CountDownLatch(specs.size)
+        val statuses = specs.map { DownloadStatus(done) }
+        val files = specs.zip(statuses).map { (spec, status) -> startDownload(spec, status) }
+        assertTrue(done.await(TEST_TIMEOUT_MS, MILLISECONDS),
+                "Timed out with ${done.count} downloads not finished")
+
+        specs.zip(statuses).forEachIndexed { i, (spec, status) ->
+            if (spec.expectFailure) {
+                assertEquals(STATUS_FAILED, status.terminalStatus.get(),
+                        "Download $spec should have failed")
+            } else {
+                assertEquals(STATUS_COMPLETED, status.terminalStatus.get(),
+                        "Download $spec should have completed")
+                assertGeneratedContent(spec, files[i])
+            }
+            files[i].delete()
+        }
+        return statuses
+    }
+
+    @Test
+    fun testManyMixedDownloads() {
+        val baseThreads = Thread.getAllStackTraces().size
+        val running = AtomicBoolean(true)
+        val maxThreads = startThreadSampler(running)
+
+        val specs = makeSpecs(count = 300, random = Random(42), errorEvery = 10)
+        runDownloads(specs)
+        running.set(false)
+
+        // All downloads run on one network: the number of workers is bounded by the maximum
+        // concurrency, however many downloads are queued.
+        val threadGrowth = maxThreads() - baseThreads
+        assertTrue(threadGrowth <= DownloadConcurrencyController.MAX_CONCURRENCY + THREAD_SLACK,
+                "Too many threads while downloading: $threadGrowth more than before")
+    }
+
+    @Test
+    fun testProgressUpdatesAreRateLimited() {
+        // Throttled so that each download lasts a few seconds and reports progress several times
+        val specs = (0 until 8).map {
+            DownloadSpec(index = it, size = 1024 * 1024, bytesPerSecond = 256 * 1024)
+        }
+        val statuses = runDownloads(specs)
+
+        statuses.forEach { status ->
+            val durationMs = status.doneTimeMs - status.queuedTimeMs
+            val maxUpdates = durationMs / MIN_PROGRESS_INTERVAL_MS + EXTRA_PROGRESS_UPDATES
+            assertTrue(status.progressUpdates.get() <= maxUpdates, "Too many progress updates: " +
+                    "${status.progressUpdates.get()} in $durationMs ms")
+        }
+    }
+
+    @Test
+    fun testCancellationUnderLoad() {
+        // Slow downloads, so that cancellation happens while they are queued or running
+        val specs = (0 until 40).map {
+            DownloadSpec(index = it, size = 512 * 1024, bytesPerSecond = 128 * 1024)
+        }
+        val done = CountDownLatch(specs.size)
+        val statuses = specs.map { DownloadStatus(done) }
+        val files = specs.zip(statuses).map { (spec, status) -> startDownload(spec, status) }
+
+        // Cancel every other download, whether it is queued or running
+        val cancelled = specs.indices.filter { it % 2 == 0 }
+        cancelled.forEach { i ->
+            val status = statuses[i]
+            val deadline = SystemClock.elapsedRealtime() + TEST_TIMEOUT_MS
+            while (status.downloadId.get() < 0 && SystemClock.elapsedRealtime() < deadline) {
+                Thread.sleep(10)
+            }
+            context.startService(DownloadService.makeCancelIntent(context,
+                    status.downloadId.get()))
+        }
+        assertTrue(done.await(TEST_TIMEOUT_MS, MILLISECONDS),
+                "Timed out with ${done.count} downloads not finished")
+
+        specs.indices.forEach { i ->
+            val terminalStatus = statuses[i].terminalStatus.get()
+            if (i in cancelled) {
+                // A cancellation arriving after the download completed has no effect
+                assertTrue(terminalStatus == STATUS_CANCELLED || terminalStatus == STATUS_COMPLETED,
+                        "Unexpected status $terminalStatus for cancelled download ${specs[i]}")
+            } else {
+                // Cancelling a download must not affect the others
+                assertEquals(STATUS_COMPLETED, terminalStatus,
+                        "Download ${specs[i]} should have completed")
+                assertGeneratedContent(specs[i], files[i])
+            }
+        }
+        assertTrue(cancelled.any { statuses[it].terminalStatus.get() == STATUS_CANCELLED },
+                "No download was cancelled")
+    }
+
+    @Test
+    fun testStalledNetworksDoNotDelayOthers() {
+        // Each stalled lane blocks its workers until the read timeout. Use more stalled lanes
+        // than a pool sized for a fixed number of lanes could serve along with a healthy one.
+        val stalledLanes = 3 * DownloadConcurrencyController.MAX_CONCURRENCY
+        val stalledDone = CountDownLatch(stalledLanes)
+        val stalledSpecs = (0 until stalledLanes).map {
+            DownloadSpec(index = 1000 + it, size = 1024, stall = true)
+        }
+        val stalledStatuses = stalledSpecs.map { DownloadStatus(stalledDone) }
+        val stalledFiles = stalledSpecs.zip(stalledStatuses).mapIndexed { i, (spec, status) ->
+            startDownload(spec, status, LocalNetwork(netId = 100 + i))
+        }
+        // Wait for all stalled downloads to reach the server, so that their workers are blocked
+        val deadline = SystemClock.elapsedRealtime() + TEST_TIMEOUT_MS
+        while (server.requests.get() < stalledLanes && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(stalledLanes, server.requests.get())
+
+        // Downloads on a healthy network complete while the other lanes are stalled
+        val healthySpecs = makeSpecs(count = 20, random = Random(7))
+        val healthyDone = CountDownLatch(healthySpecs.size)
+        val healthyStatuses = healthySpecs.map { DownloadStatus(healthyDone) }
+        healthySpecs.zip(healthyStatuses).forEach { (spec, status) -> startDownload(spec, status) }
+        assertTrue(healthyDone.await(STALLED_HEALTHY_TIMEOUT_MS, MILLISECONDS),
+                "${healthyDone.count} downloads delayed by stalled networks")
+        assertEquals(stalledLanes.toLong(), stalledDone.count)
+        healthyStatuses.forEach { assertEquals(STATUS_COMPLETED, it.terminalStatus.get()) }
+
+        server.stallRelease.countDown()
+        assertTrue(stalledDone.await(TEST_TIMEOUT_MS, MILLISECONDS))
+        stalledSpecs.zip(stalledStatuses).forEachIndexed { i, (spec, status) ->
+            assertEquals(STATUS_COMPLETED, status.terminalStatus.get())
+            assertGeneratedContent(spec, stalledFiles[i])
+        }
+    }
+
+    private fun measureHeapBytes(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            runtime.gc()
+            runtime.runFinalization()
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    @Test
+    fun testSoakMemoryGrowth() {
+        val random = Random(1234)
+        val rounds = 6
+        val pss = mutableListOf<Long>()
+        val heap = mutableListOf<Long>()
+        repeat(rounds) {
+            runDownloads(makeSpecs(count = 100, random = random, errorEvery = 7))
+            heap.add(measureHeapBytes())
+            pss.add(Debug.getPss())
+        }
+
+        // The first round warms up caches and thread pools: only growth after it is a leak.
+        val pssGrowthKb = pss.last() - pss[1]
+        val heapGrowth = heap.last() - heap[1]
+        assertTrue(pssGrowthKb <= MAX_PSS_GROWTH_KB, "PSS grew by $pssGrowthKb kB: $pss")
+        assertTrue(heapGrowth <= MAX_HEAP_GROWTH_BYTES, "Heap grew by $heapGrowth bytes: $heap")
+    }
+}
@@ -24,6 +24,7 @@ import android.net.Uri
 import android.os.Bundle
 import android.os.Parcel
 import android.os.Parcelable
+import android.os.ResultReceiver
 import android.widget.TextView
 import androidx.core.content.FileProvider
 import androidx.test.core.app.ActivityScenario
@@ -38,9 +39,11 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.Mockito.doReturn
 import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
 import org.mockito.Mockito.timeout
 import org.mockito.Mockito.verify
 import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileInputStream
 import java.io.InputStream
@@ -50,8 +53,11 @@ import java.net.URL
 import java.net.URLConnection
 import java.nio.charset.StandardCharsets
 import java.text.NumberFormat
+import java.util.Base64
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.zip.GZIPOutputStream
 import kotlin.math.min
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
@@ -240,9 +246,10 @@ class DownloadServiceTest {
         assertTrue(TEST_FILESIZE / 100 > 0)
         inputStream1.setAvailable(TEST_FILESIZE / 100)
 
-        // 1% progress should be shown in the notification
+        // 1% progress should be shown in the notification, possibly followed by rate and ETA
         assertTrue(device.wait(Until.hasObject(By.res(NOTIFICATION_SHADE_TYPE).hasDescendant(
-                By.text(NumberFormat.getPercentInstance().format(.01f)))), TEST_TIMEOUT_MS))
+                By.textStartsWith(NumberFormat.getPercentInstance().format(.01f)))),
+                TEST_TIMEOUT_MS))
 
         // Setup the connection for the next download with indeterminate progress
         val inputStream2 = TestInputStream()
@@ -278,6 +285,38 @@ class DownloadServiceTest {
         testFile2.delete()
     }
 
+    @Test
+    fun testSpeculativeDownload() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+
+        val testFile = createTestFile()
+        val stagingId = "test_staging_id"
+        openNotificationShade()
+
+        context.startForegroundService(DownloadService.makeSpeculativeDownloadIntent(
+                context, TestNetwork(), TEST_USERAGENT, TEST_URL, testFile.name, stagingId))
+
+        // The download starts before the destination is known
+        verify(connection, timeout(TEST_TIMEOUT_MS)).inputStream
+        inputStream.setAvailable(TEST_FILESIZE / 2)
+        val dlText = resources.getString(R.string.downloading_paramfile, testFile.name)
+        assertTrue(device.wait(Until.hasObject(
+                By.res(NOTIFICATION_SHADE_TYPE).hasDescendant(By.text(dlText))), TEST_TIMEOUT_MS))
+
+        // Provide the destination while the download is in progress, then let it finish
+        context.startService(DownloadService.makeStagedDownloadDestinationIntent(
+                context, stagingId, makeFileUri(testFile)))
+        inputStream.setAvailable(TEST_FILESIZE)
+        verify(connection, timeout(TEST_TIMEOUT_MS)).disconnect()
+
+        FileInputStream(testFile).use {
+            assertSameContents(it, TestInputStream(TEST_FILESIZE))
+        }
+
+        testFile.delete()
+    }
+
     @Test
     fun testTapDoneNotification() {
         val fileContents = "Test file contents"
@@ -301,6 +340,171 @@ class DownloadServiceTest {
         assertTrue(device.wait(Until.hasObject(By.text(fileContents)), TEST_TIMEOUT_MS))
     }
 
+    @Test
+    fun testInlineDownload() {
+        val fileContents = "Test voucher contents"
+        val encoded = Base64.getEncoder().encodeToString(
+                fileContents.toByteArray(StandardCharsets.UTF_8))
+        val testFile = createTestFile(extension = ".testtxtfile")
+        openNotificationShade()
+
+        context.startForegroundService(DownloadService.makeDownloadIntent(
+                context,
+                TestNetwork(),
+                TEST_USERAGENT,
+                "data:text/plain;base64,$encoded",
+                testFile.name,
+                makeFileUri(testFile)))
+
+        val doneText = resources.getString(R.string.download_completed)
+        assertTrue(device.wait(Until.hasObject(By.text(doneText)), TEST_TIMEOUT_MS))
+
+        // The content is decoded locally, without using the network
+        verify(connection, never()).inputStream
+        FileInputStream(testFile).use {
+            assertSameContents(it, ByteArrayInputStream(
+                    fileContents.toByteArray(StandardCharsets.UTF_8)))
+        }
+
+        testFile.delete()
+    }
+
+    @Test
+    fun testInlineFileDownload() {
+        val fileContents = "Test voucher contents"
+        val encoded = Base64.getEncoder().encodeToString(
+                fileContents.toByteArray(StandardCharsets.UTF_8))
+        // Large inline URLs are decoded by the activity, and downloaded from a file
+        val inlineFile = DataUrl.decodeToFile("data:text/plain;base64,$encoded",
+                DownloadService.getInlineDownloadDir(context))
+        val testFile = createTestFile(extension = ".testtxtfile")
+        openNotificationShade()
+
+        context.startForegroundService(DownloadService.makeDownloadIntent(
+                context,
+                TestNetwork(),
+                TEST_USERAGENT,
+                Uri.fromFile(inlineFile).toString(),
+                testFile.name,
+                makeFileUri(testFile)))
+
+        val doneText = resources.getString(R.string.download_completed)
+        assertTrue(device.wait(Until.hasObject(By.text(doneText)), TEST_TIMEOUT_MS))
+
+        verify(connection, never()).inputStream
+        FileInputStream(testFile).use {
+            assertSameContents(it, ByteArrayInputStream(
+                    fileContents.toByteArray(StandardCharsets.UTF_8)))
+        }
+        // The decoded file is deleted once downloaded, right after the done notification
+        val deadlineMs = System.currentTimeMillis() + TEST_TIMEOUT_MS
+        while (inlineFile.exists() && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10)
+        }
+        assertFalse(inlineFile.exists())
+
+        testFile.delete()
+    }
+
+    @Test
+    fun testCompressedDownload() {
+        val fileContents = "Test timetable contents,".repeat(100)
+        val compressed = ByteArrayOutputStream().also { bos ->
+            GZIPOutputStream(bos).use { it.write(fileContents.toByteArray(StandardCharsets.UTF_8)) }
+        }.toByteArray()
+        doReturn("gzip").`when`(connection).contentEncoding
+        doReturn(compressed.size.toLong()).`when`(connection).contentLengthLong
+        doReturn(ByteArrayInputStream(compressed)).`when`(connection).inputStream
+
+        val testFile = createTestFile(extension = ".txt")
+        openNotificationShade()
+        context.startForegroundService(makeDownloadIntent(testFile))
+
+        val doneText = resources.getString(R.string.download_completed)
+        assertTrue(device.wait(Until.hasObject(By.text(doneText)), TEST_TIMEOUT_MS))
+
+        // Compression is requested for text, and the content is decoded into the file
+        verify(connection).setRequestProperty("Accept-Encoding", "gzip")
+        FileInputStream(testFile).use {
+            assertSameContents(it, ByteArrayInputStream(
+                    fileContents.toByteArray(StandardCharsets.UTF_8)))
+        }
+
+        testFile.delete()
+    }
+
+    @Test
+    fun testStatusReceiver() {
+        val fileContents = "Test file contents"
+        doReturn(ByteArrayInputStream(fileContents.toByteArray(StandardCharsets.UTF_8)))
+                .`when`(connection).inputStream
+        val statuses = LinkedBlockingQueue<Pair<Int, Int>>()
+        val receiver = object : ResultReceiver(null /* handler */) {
+            override fun onReceiveResult(resultCode: Int, resultData: Bundle) {
+                statuses.add(resultCode to resultData.getInt(DownloadService.EXTRA_DOWNLOAD_ID))
+            }
+        }
+
+        val testFile = createTestFile()
+        context.startForegroundService(makeDownloadIntent(testFile)
+                .putExtra(DownloadService.ARG_STATUS_RECEIVER, receiver))
+
+        val queued = statuses.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+        assertNotNull(queued)
+        assertEquals(DownloadService.STATUS_QUEUED, queued.first)
+        // Progress may be reported in between, always for the same download
+        var status = statuses.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+        while (status?.first == DownloadService.STATUS_PROGRESS) {
+            assertEquals(queued.second, status.second)
+            status = statuses.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+        }
+        assertEquals(DownloadService.STATUS_COMPLETED to queued.second, status)
+
+        testFile.delete()
+    }
+
+    @Test
+    fun testIsolatedServiceStatusReceiver() {
+        // The service runs in its own process, where the mock connection is not available: use
+        // an inline download, which completes without the network.
+        val fileContents = "Test isolated contents"
+        val encoded = Base64.getEncoder().encodeToString(
+                fileContents.toByteArray(StandardCharsets.UTF_8))
+        val statuses = LinkedBlockingQueue<Pair<Int, Int>>()
+        val receiver = object : ResultReceiver(null /* handler */) {
+            override fun onReceiveResult(resultCode: Int, resultData: Bundle) {
+                statuses.add(resultCode to resultData.getInt(DownloadService.EXTRA_DOWNLOAD_ID))
+            }
+        }
+
+        val testFile = createTestFile(extension = ".txt")
+        context.startForegroundService(DownloadService.makeDownloadIntent(
+                context,
+                TestNetwork(),
+                TEST_USERAGENT,
+                "data:text/plain;base64,$encoded",
+                testFile.name,
+                makeFileUri(testFile))
+                .setClass(context, IsolatedDownloadService::class.java)
+                .putExtra(DownloadService.ARG_STATUS_RECEIVER, receiver))
+
+        val queued = statuses.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+        assertNotNull(queued)
+        assertEquals(DownloadService.STATUS_QUEUED, queued.first)
+        var status = statuses.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+        while (status?.first == DownloadService.STATUS_PROGRESS) {
+            assertEquals(queued.second, status.second)
+            status = statuses.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+        }
+        assertEquals(DownloadService.STATUS_COMPLETED to queued.second, status)
+        FileInputStream(testFile).use {
+            assertSameContents(it, ByteArrayInputStream(
+                    fileContents.toByteArray(StandardCharsets.UTF_8)))
+        }
+
+        testFile.delete()
+    }
+
     private fun openNotificationShade() {
         device.wakeUp()
         device.openNotification()
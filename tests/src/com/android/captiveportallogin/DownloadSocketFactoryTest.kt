@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import com.android.captiveportallogin.DownloadSocketFactory.MAX_RECEIVE_BUFFER_SIZE
+import com.android.captiveportallogin.DownloadSocketFactory.MIN_CONNECT_TIMEOUT_MS
+import com.android.captiveportallogin.DownloadSocketFactory.UNKNOWN
+import com.android.captiveportallogin.DownloadSocketFactory.computeConnectTimeoutMs
+import com.android.captiveportallogin.DownloadSocketFactory.computeReceiveBufferSize
+import com.android.captiveportallogin.DownloadSocketFactory.parseTcpRmemMax
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.Socket
+import javax.net.ssl.SSLSocketFactory
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+private const val MAX_TIMEOUT_MS = 30_000
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DownloadSocketFactoryTest {
+    @Test
+    fun testReceiveBufferSize() {
+        // Unknown path: keep the default
+        assertEquals(0, computeReceiveBufferSize(UNKNOWN, 600))
+        assertEquals(0, computeReceiveBufferSize(1_000_000, UNKNOWN))
+        // Short path: the default buffer is enough
+        assertEquals(0, computeReceiveBufferSize(1_000_000, 20))
+        // Satellite link: 2.5MB/s with 600ms RTT
+        assertEquals(3_000_000, computeReceiveBufferSize(2_500_000, 600))
+        // Capped
+        assertEquals(MAX_RECEIVE_BUFFER_SIZE, computeReceiveBufferSize(100_000_000, 600))
+    }
+
+    @Test
+    fun testConnectTimeout() {
+        assertEquals(MAX_TIMEOUT_MS, computeConnectTimeoutMs(UNKNOWN, MAX_TIMEOUT_MS))
+        assertEquals(MIN_CONNECT_TIMEOUT_MS, computeConnectTimeoutMs(20, MAX_TIMEOUT_MS))
+        assertEquals(12_000, computeConnectTimeoutMs(600, MAX_TIMEOUT_MS))
+        assertEquals(MAX_TIMEOUT_MS, computeConnectTimeoutMs(5_000, MAX_TIMEOUT_MS))
+    }
+
+    @Test
+    fun testParseTcpRmemMax() {
+        assertEquals(6291456L, parseTcpRmemMax("4096\t87380\t6291456\n"))
+        assertEquals(UNKNOWN, parseTcpRmemMax("4096 87380"))
+        assertEquals(UNKNOWN, parseTcpRmemMax("4096 87380 max"))
+        assertEquals(UNKNOWN, parseTcpRmemMax(null))
+    }
+
+    @Test
+    fun testBufferWithinAutotuningIsNotSet() {
+        val factory = DownloadSocketFactory(SSLSocketFactory.getDefault() as SSLSocketFactory,
+                MAX_TIMEOUT_MS, MAX_RECEIVE_BUFFER_SIZE.toLong() /* autotuningMaxBufferSize */)
+        factory.setReceiveBufferSize(MAX_RECEIVE_BUFFER_SIZE)
+        Socket().use { socket ->
+            val defaultSize = socket.receiveBufferSize
+            factory.tuneSocket(socket)
+            // Setting the size would disable autotuning, which already reaches it
+            assertEquals(defaultSize, socket.receiveBufferSize)
+            assertTrue(factory.appliedParams!!.contains("rcvbuf autotuned"))
+        }
+    }
+
+    @Test
+    fun testParametersApplyToNewSockets() {
+        // A single factory is kept for all the connections of a network, so that they can be
+        // pooled, and its parameters change as the path is measured.
+        val factory = DownloadSocketFactory(SSLSocketFactory.getDefault() as SSLSocketFactory,
+                MAX_TIMEOUT_MS, 1_000_000L /* autotuningMaxBufferSize */)
+        Socket().use { socket ->
+            val defaultSize = socket.receiveBufferSize
+            factory.tuneSocket(socket)
+            assertEquals(defaultSize, socket.receiveBufferSize)
+            assertEquals(MAX_TIMEOUT_MS, socket.soTimeout)
+            assertTrue(socket.keepAlive)
+        }
+
+        factory.setReceiveBufferSize(MAX_RECEIVE_BUFFER_SIZE)
+        Socket().use { socket ->
+            val defaultSize = socket.receiveBufferSize
+            factory.tuneSocket(socket)
+            // The kernel may cap the size, but it grows from the default
+            assertTrue(socket.receiveBufferSize > defaultSize)
+            assertTrue(factory.appliedParams!!.contains("requested $MAX_RECEIVE_BUFFER_SIZE"))
+        }
+    }
+}
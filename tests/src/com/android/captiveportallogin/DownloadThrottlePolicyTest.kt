@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.os.PowerManager.THERMAL_STATUS_CRITICAL
+import android.os.PowerManager.THERMAL_STATUS_LIGHT
+import android.os.PowerManager.THERMAL_STATUS_MODERATE
+import android.os.PowerManager.THERMAL_STATUS_NONE
+import android.os.PowerManager.THERMAL_STATUS_SEVERE
+import android.os.PowerManager.THERMAL_STATUS_SHUTDOWN
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import com.android.captiveportallogin.DownloadThrottlePolicy.LEVEL_CRITICAL
+import com.android.captiveportallogin.DownloadThrottlePolicy.LEVEL_LIGHT
+import com.android.captiveportallogin.DownloadThrottlePolicy.LEVEL_NONE
+import com.android.captiveportallogin.DownloadThrottlePolicy.LEVEL_SEVERE
+import com.android.captiveportallogin.DownloadThrottlePolicy.RATE_UNLIMITED
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DownloadThrottlePolicyTest {
+    private val policy = DownloadThrottlePolicy()
+
+    @Test
+    fun testNotThrottledByDefault() {
+        assertEquals(LEVEL_NONE, policy.level)
+        assertEquals(DownloadConcurrencyController.MAX_CONCURRENCY, policy.maxConcurrency)
+        assertEquals(RATE_UNLIMITED, policy.maxReadRate)
+        assertTrue(policy.allowsReceiveBufferGrowth())
+        // Light thermal status is not worth throttling for
+        assertFalse(policy.setThermalStatus(THERMAL_STATUS_LIGHT, 1000L))
+    }
+
+    @Test
+    fun testThermalEscalation() {
+        assertTrue(policy.setThermalStatus(THERMAL_STATUS_MODERATE, 1000L))
+        assertEquals(LEVEL_LIGHT, policy.level)
+        assertEquals(2, policy.maxConcurrency)
+        assertFalse(policy.allowsReceiveBufferGrowth())
+        assertEquals(RATE_UNLIMITED, policy.maxReadRate)
+
+        assertTrue(policy.setThermalStatus(THERMAL_STATUS_SEVERE, 2000L))
+        assertEquals(LEVEL_SEVERE, policy.level)
+        assertEquals(1, policy.maxConcurrency)
+        assertTrue(policy.maxReadRate > 0)
+
+        val severeRate = policy.maxReadRate
+        assertTrue(policy.setThermalStatus(THERMAL_STATUS_CRITICAL, 3000L))
+        assertEquals(LEVEL_CRITICAL, policy.level)
+        assertTrue(policy.maxReadRate in 1 until severeRate)
+        assertFalse(policy.setThermalStatus(THERMAL_STATUS_SHUTDOWN, 4000L))
+
+        // Limits are lifted when the device cools down
+        assertTrue(policy.setThermalStatus(THERMAL_STATUS_NONE, 5000L))
+        assertEquals(LEVEL_NONE, policy.level)
+        assertEquals(RATE_UNLIMITED, policy.maxReadRate)
+    }
+
+    @Test
+    fun testPowerSaveMode() {
+        assertTrue(policy.setPowerSaveMode(true, 1000L))
+        assertEquals(LEVEL_LIGHT, policy.level)
+        // Thermal status takes over when more severe
+        assertTrue(policy.setThermalStatus(THERMAL_STATUS_SEVERE, 2000L))
+        assertFalse(policy.setPowerSaveMode(false, 3000L))
+        assertEquals(LEVEL_SEVERE, policy.level)
+        assertTrue(policy.setThermalStatus(THERMAL_STATUS_NONE, 4000L))
+        assertEquals(LEVEL_NONE, policy.level)
+    }
+
+    @Test
+    fun testDecisionsAreDumped() {
+        policy.setPowerSaveMode(true, 1000L)
+        policy.setPowerSaveMode(false, 2000L)
+        val writer = StringWriter()
+        policy.dump(PrintWriter(writer))
+        val dump = writer.toString()
+        assertTrue(dump.contains("1000: level 0 -> 1"), dump)
+        assertTrue(dump.contains("2000: level 1 -> 0"), dump)
+    }
+}
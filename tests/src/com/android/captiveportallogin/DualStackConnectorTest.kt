@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.net.ConnectivityManager
+import android.net.Network
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import androidx.test.platform.app.InstrumentationRegistry.getInstrumentation
+import com.android.captiveportallogin.DualStackConnector.CONNECTION_ATTEMPT_DELAY_MS
+import fi.iki.elonen.NanoHTTPD
+import org.junit.After
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.ConnectException
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.URL
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import javax.net.ssl.HttpsURLConnection
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+private const val TEST_TIMEOUT_MS = 10_000
+private const val TEST_HOST = "test.example.com"
+
+// Discard-only prefix (RFC 6666): attempts to it never complete
+private val BLACKHOLE_IPV6 = InetAddress.getByName("100::1")
+private val BLACKHOLE_IPV6_2 = InetAddress.getByName("100::2")
+private val LOOPBACK_IPV4 = InetAddress.getByName("127.0.0.1")
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DualStackConnectorTest {
+    private val executor = Executors.newCachedThreadPool()
+    private lateinit var server: HostServer
+    private lateinit var network: Network
+
+    /**
+     * Server listening on IPv4 loopback only, recording the Host header of requests and counting
+     * accepted connections.
+     */
+    private class HostServer : NanoHTTPD("127.0.0.1", 0) {
+        val connections = AtomicInteger()
+        private val socket = object : ServerSocket() {
+            override fun accept(): Socket = super.accept().also { connections.incrementAndGet() }
+        }
+        @Volatile
+        var hostHeader: String? = null
+
+        init {
+            setServerSocketFactory { socket }
+        }
+
+        val port get() = socket.localPort
+
+        override fun serve(session: IHTTPSession): Response {
+            hostHeader = session.headers["host"]
+            return newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_PLAINTEXT, "")
+        }
+    }
+
+    @Before
+    fun setUp() {
+        // Connections are opened on a network, which reaches the loopback server like any other
+        val cm = getInstrumentation().context.getSystemService(ConnectivityManager::class.java)
+        val activeNetwork = cm.activeNetwork
+        assumeTrue(activeNetwork != null)
+        network = activeNetwork!!
+        server = HostServer()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.stop()
+        executor.shutdownNow()
+    }
+
+    private fun makeConnector(
+        vararg addresses: InetAddress,
+        hasProxy: Boolean = false,
+        timeoutMs: Int = TEST_TIMEOUT_MS
+    ): DualStackConnector {
+        val resolver = DualStackConnector.Resolver { arrayOf(*addresses) }
+        val handover = SocketHandover(network.socketFactory, timeoutMs.toLong())
+        val handoverNetwork = DualStackConnector.HandoverNetwork(network, resolver, handover)
+        return DualStackConnector(executor, resolver, network.socketFactory, handover,
+                { url -> handoverNetwork.openConnection(url) }, { hasProxy }, timeoutMs)
+    }
+
+    private fun dump(connector: DualStackConnector) = StringWriter().also {
+        PrintWriter(it).use { writer -> connector.dump(writer) }
+    }.toString()
+
+    @Test
+    fun testBrokenIpv6FallsBackToIpv4() {
+        val connector = makeConnector(BLACKHOLE_IPV6, LOOPBACK_IPV4)
+        val url = URL("http://$TEST_HOST:${server.port}/204")
+        val startMs = System.currentTimeMillis()
+        val connection = connector.openConnection(url) as HttpURLConnection
+        try {
+            assertEquals(204, connection.responseCode)
+        } finally {
+            connection.disconnect()
+        }
+        // Does not wait for the IPv6 attempt to time out
+        assertTrue(System.currentTimeMillis() - startMs < TEST_TIMEOUT_MS / 2)
+        assertEquals("$TEST_HOST:${server.port}", server.hostHeader)
+        // The connection adopted the socket that won the race instead of connecting again
+        assertEquals(1, server.connections.get())
+        val stats = dump(connector)
+        assertTrue(stats.contains("prefer IPv4"), stats)
+        assertTrue(stats.contains("IPv6 wins 0 losses 1, IPv4 wins 1 losses 0"), stats)
+        assertTrue(stats.contains("0 pending, 1 adopted, 0 expired"), stats)
+    }
+
+    @Test
+    fun testSingleAddressIsNotRaced() {
+        val connector = makeConnector(LOOPBACK_IPV4)
+        val url = URL("http://$TEST_HOST:${server.port}/204")
+        val connection = connector.openConnection(url) as HttpURLConnection
+        try {
+            // The platform connects to the resolved address
+            assertEquals(url, connection.url)
+            assertEquals(204, connection.responseCode)
+        } finally {
+            connection.disconnect()
+        }
+        assertEquals("$TEST_HOST:${server.port}", server.hostHeader)
+        assertEquals(1, server.connections.get())
+        val stats = dump(connector)
+        assertTrue(stats.contains("IPv6 wins 0 losses 0, IPv4 wins 0 losses 0"), stats)
+        assertTrue(stats.contains("0 pending, 0 adopted"), stats)
+    }
+
+    @Test
+    fun testHttpsIsRaced() {
+        val connector = makeConnector(BLACKHOLE_IPV6, LOOPBACK_IPV4)
+        val url = URL("https://$TEST_HOST:${server.port}/204")
+        // Not connected: the connection keeps the host for SNI, and will adopt the winning socket
+        val connection = connector.openConnection(url)
+        assertTrue(connection is HttpsURLConnection)
+        assertEquals(url, connection.url)
+        val stats = dump(connector)
+        assertTrue(stats.contains("IPv6 wins 0 losses 1, IPv4 wins 1 losses 0"), stats)
+        assertTrue(stats.contains("1 pending, 0 adopted"), stats)
+    }
+
+    @Test
+    fun testFailedRaceFailsFast() {
+        val timeoutMs = 1_000
+        val resolver = DualStackConnector.Resolver { arrayOf(BLACKHOLE_IPV6, BLACKHOLE_IPV6_2) }
+        val connector = DualStackConnector(executor, resolver, network.socketFactory,
+                SocketHandover(network.socketFactory, timeoutMs.toLong()),
+                { fail("Connected again after all attempts failed") }, { false }, timeoutMs)
+        val url = URL("http://$TEST_HOST:${server.port}/204")
+        val startMs = System.currentTimeMillis()
+        assertFailsWith<ConnectException> { connector.openConnection(url) }
+        // The attempts overlap, and are not retried one after the other
+        assertTrue(System.currentTimeMillis() - startMs < 2 * timeoutMs)
+        assertTrue(dump(connector).contains("failed races 1"))
+    }
+
+    @Test
+    fun testProxyIsNotRaced() {
+        val connector = makeConnector(BLACKHOLE_IPV6, LOOPBACK_IPV4, hasProxy = true)
+        val url = URL("http://$TEST_HOST:${server.port}/204")
+        // The proxy resolves the host: the connection keeps it, and is opened without delay
+        val startMs = System.currentTimeMillis()
+        val connection = connector.openConnection(url)
+        assertTrue(System.currentTimeMillis() - startMs < CONNECTION_ATTEMPT_DELAY_MS)
+        assertEquals(url, connection.url)
+        assertTrue(dump(connector).contains("IPv6 wins 0 losses 0, IPv4 wins 0 losses 0"))
+    }
+
+    @Test
+    fun testAjaxLoginThenDnsChange() {
+        // The portal spoofs DNS answers until the user logs in
+        val spoofed = InetAddress.getByName("192.0.2.1")
+        val real = InetAddress.getByName("198.51.100.1")
+        var answer = spoofed
+        val cache = DnsCache({ _, _ -> arrayOf(answer) }, 60_000L /* ttlMs */)
+        val resolver = DualStackConnector.makeResolver(cache, Network(46),
+                setOf("connectivitycheck.example.com"))
+        assertEquals(listOf(spoofed),
+                resolver.getAllByName("connectivitycheck.example.com").toList())
+        assertEquals(listOf(spoofed), resolver.getAllByName(TEST_HOST).toList())
+
+        // Login with an AJAX request does not flush the cache, but the next probe resolves the
+        // probe host again and sees the real answer.
+        answer = real
+        assertEquals(listOf(real),
+                resolver.getAllByName("CONNECTIVITYCHECK.example.com").toList())
+        // Other hosts use the cache until it is flushed
+        assertEquals(listOf(spoofed), resolver.getAllByName(TEST_HOST).toList())
+    }
+
+    @Test
+    fun testInterleaveFamilies() {
+        val v6 = arrayOf(InetAddress.getByName("2001:db8::1"), InetAddress.getByName("2001:db8::2"))
+        val v4 = InetAddress.getByName("192.0.2.1")
+        assertEquals(listOf(v6[0], v4, v6[1]),
+                DualStackConnector.interleaveFamilies(arrayOf(*v6, v4), true /* preferIpv6 */))
+        assertEquals(listOf(v4, v6[0], v6[1]),
+                DualStackConnector.interleaveFamilies(arrayOf(*v6, v4), false /* preferIpv6 */))
+        assertEquals(v6.toList(),
+                DualStackConnector.interleaveFamilies(v6, false /* preferIpv6 */))
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+private const val TEST_TIMEOUT_MS = 10_000L
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class InstrumentedExecutorTest {
+    private val executor = InstrumentedExecutor("TestExecutor", 2 /* maxThreads */)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    private fun dump() = StringWriter().also { executor.dump(PrintWriter(it)) }.toString()
+
+    @Test
+    fun testBoundedNamedThreads() {
+        val release = CountDownLatch(1)
+        val done = CountDownLatch(10)
+        val running = AtomicInteger(0)
+        val maxRunning = AtomicInteger(0)
+        val threadNames = Collections.synchronizedSet(mutableSetOf<String>())
+        repeat(10) {
+            executor.execute {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+                threadNames.add(Thread.currentThread().name)
+                release.await(TEST_TIMEOUT_MS, MILLISECONDS)
+                running.decrementAndGet()
+                done.countDown()
+            }
+        }
+        // Tasks beyond the number of threads are queued
+        val deadline = System.currentTimeMillis() + TEST_TIMEOUT_MS
+        while (running.get() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10)
+        assertTrue(dump().contains("queue depth 8"), dump())
+        release.countDown()
+        assertTrue(done.await(TEST_TIMEOUT_MS, MILLISECONDS))
+
+        assertEquals(2, maxRunning.get())
+        assertEquals(setOf("TestExecutor-1", "TestExecutor-2"), threadNames.toSet())
+    }
+
+    @Test
+    fun testLatencyMetrics() {
+        val blocker = CountDownLatch(1)
+        val done = CountDownLatch(3)
+        // Two long tasks occupy both threads, so the third one waits for them
+        repeat(2) {
+            executor.execute {
+                blocker.await(TEST_TIMEOUT_MS, MILLISECONDS)
+                done.countDown()
+            }
+        }
+        executor.execute { done.countDown() }
+        Thread.sleep(200)
+        blocker.countDown()
+        assertTrue(done.await(TEST_TIMEOUT_MS, MILLISECONDS))
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(TEST_TIMEOUT_MS, MILLISECONDS))
+
+        val dump = dump()
+        assertTrue(dump.contains("3 tasks"), dump)
+        val maxLatency = Regex("latency avg \\d+ms max (\\d+)ms").find(dump)!!.groupValues[1]
+        assertTrue(maxLatency.toLong() >= 200, dump)
+    }
+}
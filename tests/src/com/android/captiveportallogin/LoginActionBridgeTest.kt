@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class LoginActionBridgeTest {
+    private val reports = mutableListOf<Long>()
+    private val formSubmissions = mutableListOf<Boolean>()
+    private val bridge = LoginActionBridge { delayMs, isFormSubmission ->
+        reports.add(delayMs)
+        formSubmissions.add(isFormSubmission)
+    }
+
+    @Test
+    fun testReportsAreThrottled() {
+        bridge.onRequestCompleted()
+        assertEquals(listOf(0L), reports)
+
+        // Delayed until the end of the interval
+        bridge.onRequestCompleted()
+        assertEquals(2, reports.size)
+        assertTrue(reports[1] > 0 && reports[1] <= LoginActionBridge.MIN_REPORT_INTERVAL_MS)
+
+        // Covered by the delayed report
+        repeat(5) { bridge.onRequestCompleted() }
+        bridge.onFormSubmitted()
+        assertEquals(2, reports.size)
+
+        Thread.sleep(LoginActionBridge.MIN_REPORT_INTERVAL_MS * 2)
+        bridge.onRequestCompleted()
+        assertEquals(listOf(0L), reports.drop(2))
+    }
+
+    @Test
+    fun testReportKind() {
+        bridge.onFormSubmitted()
+        Thread.sleep(LoginActionBridge.MIN_REPORT_INTERVAL_MS * 2)
+        bridge.onRequestCompleted()
+        assertEquals(listOf(0L, 0L), reports)
+        assertEquals(listOf(true, false), formSubmissions)
+    }
+
+    @Test
+    fun testHookScript() {
+        val name = bridge.getName()
+        assertTrue(name.matches(Regex("[A-Za-z_][A-Za-z0-9_]*")), "Invalid JS identifier $name")
+        assertNotEquals(name, LoginActionBridge { _, _ -> }.getName())
+        val script = bridge.getHookScript()
+        assertTrue(script.contains("window['$name']"))
+        // Only requests that may log in are reported
+        assertTrue(script.contains("/^(POST|PUT)$/i"))
+        assertTrue(script.contains("location.origin"))
+    }
+}
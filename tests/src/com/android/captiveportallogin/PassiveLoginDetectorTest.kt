@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.URL
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class PassiveLoginDetectorTest {
+    private val detector = PassiveLoginDetector(listOf(
+            ProbeRacer.Endpoint(URL("http://connectivitycheck.example.com/generate_204"), null),
+            ProbeRacer.Endpoint(URL("http://fallback.example.com/check"), null)))
+
+    @Test
+    fun testInitialLoadIsIgnored() {
+        assertFalse(detector.onMainFrameNavigation("connectivitycheck.example.com"))
+        assertFalse(detector.onMainFrameNavigation("connectivitycheck.example.com"))
+        assertFalse(detector.onMainFrameNavigation(null))
+    }
+
+    @Test
+    fun testBackToProbeHost() {
+        assertFalse(detector.onMainFrameNavigation("connectivitycheck.example.com"))
+        assertFalse(detector.onMainFrameNavigation("portal.example.com"))
+        assertFalse(detector.onMainFrameNavigation("portal.example.com"))
+        assertTrue(detector.onMainFrameNavigation("CONNECTIVITYCHECK.example.com"))
+        assertTrue(detector.onMainFrameNavigation("fallback.example.com"))
+    }
+
+    @Test
+    fun testRedirectsWhileLoadingPortalAreIgnored() {
+        // The probe URL redirects to the portal, which redirects between its own hosts
+        assertFalse(detector.isLoginRedirect("connectivitycheck.example.com", "portal.example.com"))
+        assertFalse(detector.isLoginRedirect("portal.example.com", "auth.example.com"))
+        detector.onPageLoaded("connectivitycheck.example.com")
+        assertFalse(detector.isLoginRedirect("connectivitycheck.example.com", "www.example.com"))
+        assertFalse(detector.isLoginRedirect(null, "www.example.com"))
+    }
+
+    @Test
+    fun testRedirectAwayFromPortal() {
+        detector.onPageLoaded("auth.example.com")
+        detector.onPageLoaded("portal.example.com")
+        // Redirects within the portal
+        assertFalse(detector.isLoginRedirect("portal.example.com", "AUTH.example.com"))
+        assertFalse(detector.isLoginRedirect("portal.example.com", "portal.example.com"))
+        // Redirects leaving the portal once logged in
+        assertTrue(detector.isLoginRedirect("PORTAL.example.com", "www.example.com"))
+        assertTrue(detector.isLoginRedirect("portal.example.com", "connectivitycheck.example.com"))
+        assertFalse(detector.isLoginRedirect("portal.example.com", null))
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ProbeCadenceTest {
+    @Test
+    fun testIdleBackoff() {
+        val cadence = ProbeCadence(1000L /* minIdleDelayMs */, 5000L /* maxIdleDelayMs */)
+        assertEquals(listOf(1000L, 2000L, 4000L, 5000L, 5000L),
+                (0 until 5).map { cadence.nextIdleDelayMs() })
+
+        // User activity resets the backoff
+        cadence.onUserActivity()
+        assertEquals(1000L, cadence.nextIdleDelayMs())
+    }
+
+    @Test
+    fun testIsLikelyLogin() {
+        // Form submissions
+        assertTrue(ProbeCadence.isLikelyLogin("POST"))
+        assertTrue(ProbeCadence.isLikelyLogin("post"))
+
+        // Regular navigations
+        assertFalse(ProbeCadence.isLikelyLogin("GET"))
+        assertFalse(ProbeCadence.isLikelyLogin(null))
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+private const val TEST_ENDPOINT = "http://connectivitycheck.example.com/generate_204"
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ProbeMetricsTest {
+    private val metrics = ProbeMetrics()
+
+    @Test
+    fun testHistogramBuckets() {
+        val histogram = ProbeMetrics.Histogram(longArrayOf(100, 1000))
+        listOf(0L, 100L, 101L, 1000L, 1001L, 60_000L).forEach { histogram.add(it) }
+        assertEquals(listOf(2, 2, 2), (0..2).map { histogram.getCount(it) })
+        assertEquals("count 6, avg 10367ms: <=100:2 <=1000:2 >1000:2", histogram.toString())
+    }
+
+    @Test
+    fun testOutcomes() {
+        metrics.recordProbe(TEST_ENDPOINT, ProbeMetrics.Outcome.PORTAL, 80L)
+        metrics.recordProbe(TEST_ENDPOINT, ProbeMetrics.Outcome.PORTAL, 120L)
+        metrics.recordProbe(TEST_ENDPOINT, ProbeMetrics.Outcome.TIMEOUT, 10_000L)
+        assertEquals(2, metrics.getOutcomeCount(TEST_ENDPOINT, ProbeMetrics.Outcome.PORTAL))
+        assertEquals(1, metrics.getOutcomeCount(TEST_ENDPOINT, ProbeMetrics.Outcome.TIMEOUT))
+        assertEquals(0, metrics.getOutcomeCount("http://other.example.com",
+                ProbeMetrics.Outcome.PORTAL))
+    }
+
+    @Test
+    fun testDump() {
+        metrics.recordProbe(TEST_ENDPOINT, ProbeMetrics.Outcome.SUCCESS, 40L)
+        metrics.recordTimeToDismiss(20_000L)
+        val dump = StringWriter().also { PrintWriter(it).use { w -> metrics.dump(w) } }.toString()
+        assertTrue(dump.contains("Time to dismiss: count 1, avg 20000ms"), dump)
+        assertTrue(dump.contains(
+                "Probes of $TEST_ENDPOINT: success 1 portal 0 timeout 0 error 0"), dump)
+        assertTrue(dump.contains("Latency: count 1, avg 40ms: <=50:1"), dump)
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.net.Network
+import android.os.SystemClock
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import fi.iki.elonen.NanoHTTPD
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.ServerSocket
+import java.net.URL
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+private const val TEST_TIMEOUT_MS = 10_000
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ProbeRacerTest {
+    private val executor = Executors.newCachedThreadPool()
+    private val network = Network(45)
+    private val cache = ProbeResultCache(0 /* ttlMs */)
+    private val metrics = ProbeMetrics()
+    private val racer = makeRacer(cache)
+    private lateinit var server: ProbeServer
+
+    /**
+     * Server answering probes according to their path: "/204", "/portal" or "/slow".
+     */
+    private class ProbeServer : NanoHTTPD("localhost", 0) {
+        private val socket = ServerSocket()
+        // Released to let slow responses complete
+        val slowResponseRelease = CountDownLatch(1)
+        val requests = AtomicInteger(0)
+
+        init {
+            setServerSocketFactory { socket }
+        }
+
+        fun url(path: String) = URL("http://localhost:${socket.localPort}$path")
+
+        override fun serve(session: IHTTPSession): Response {
+            requests.incrementAndGet()
+            return when (session.uri) {
+                "/204" -> newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_PLAINTEXT, "")
+                "/portal" -> newFixedLengthResponse(Response.Status.REDIRECT, MIME_HTML, "")
+                        .apply { addHeader("Location", "http://portal.example.com/login") }
+                "/slow" -> {
+                    slowResponseRelease.await(TEST_TIMEOUT_MS.toLong(), MILLISECONDS)
+                    newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_PLAINTEXT, "")
+                }
+                else -> newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "")
+            }
+        }
+    }
+
+    @Before
+    fun setUp() {
+        server = ProbeServer()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.slowResponseRelease.countDown()
+        server.stop()
+        executor.shutdownNow()
+    }
+
+    private fun makeRacer(cache: ProbeResultCache) = ProbeRacer(executor, network,
+            { url -> url.openConnection() }, cache, metrics, "Test UserAgent", TEST_TIMEOUT_MS)
+
+    private fun endpoint(path: String) = ProbeRacer.Endpoint(server.url(path), null /* spec */)
+
+    // Nothing listens on port 1 of localhost: connections are refused
+    private fun unreachableEndpoint() = ProbeRacer.Endpoint(URL("http://localhost:1/204"), null)
+
+    @Test
+    fun testSuccess() {
+        assertEquals(ProbeRacer.Result.SUCCESS, racer.race(listOf(endpoint("/204"))))
+    }
+
+    @Test
+    fun testPortal() {
+        assertEquals(ProbeRacer.Result.PORTAL, racer.race(listOf(endpoint("/portal"))))
+    }
+
+    @Test
+    fun testFirstConclusiveResultWins() {
+        val startMs = SystemClock.elapsedRealtime()
+        val result = racer.race(listOf(endpoint("/slow"), unreachableEndpoint(),
+                endpoint("/204")))
+
+        // The slow endpoint is not waited for
+        assertEquals(ProbeRacer.Result.SUCCESS, result)
+        assertTrue(SystemClock.elapsedRealtime() - startMs < TEST_TIMEOUT_MS / 2)
+    }
+
+    @Test
+    fun testFailedProbesAreInconclusive() {
+        assertEquals(ProbeRacer.Result.PORTAL,
+                racer.race(listOf(unreachableEndpoint(), endpoint("/portal"))))
+        assertEquals(ProbeRacer.Result.FAILED, racer.race(listOf(unreachableEndpoint())))
+    }
+
+    @Test
+    fun testCachedResults() {
+        val cache = ProbeResultCache(TEST_TIMEOUT_MS.toLong())
+        val racer = makeRacer(cache)
+        val portal = endpoint("/portal")
+        assertEquals(ProbeRacer.Result.PORTAL, racer.race(listOf(portal)))
+        assertEquals(ProbeRacer.Result.PORTAL, racer.race(listOf(portal)))
+        assertEquals(1, server.requests.get())
+
+        cache.invalidate(network)
+        assertEquals(ProbeRacer.Result.PORTAL, racer.race(listOf(portal)))
+        assertEquals(2, server.requests.get())
+    }
+
+    @Test
+    fun testOutcomesAreRecorded() {
+        val portal = endpoint("/portal")
+        val unreachable = unreachableEndpoint()
+        assertEquals(ProbeRacer.Result.PORTAL, racer.race(listOf(portal)))
+        assertEquals(ProbeRacer.Result.FAILED, racer.race(listOf(unreachable)))
+
+        assertEquals(1, metrics.getOutcomeCount(portal.toString(), ProbeMetrics.Outcome.PORTAL))
+        assertEquals(1, metrics.getOutcomeCount(unreachable.toString(),
+                ProbeMetrics.Outcome.ERROR))
+        assertEquals(0, metrics.getOutcomeCount(portal.toString(), ProbeMetrics.Outcome.SUCCESS))
+    }
+
+    @Test
+    fun testIsDismissed() {
+        assertTrue(ProbeRacer.isDismissed(204, null /* locationHeader */, null /* probeSpec */))
+        assertFalse(ProbeRacer.isDismissed(302, "http://portal.example.com", null))
+        assertFalse(ProbeRacer.isDismissed(200, null, null))
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+private const val TEST_DEBOUNCE_MS = 100L
+private const val TEST_MAX_DELAY_MS = 300L
+private const val TEST_TIMEOUT_MS = 10_000L
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ProbeSchedulerTest {
+    // Several threads, so that the scheduler does not rely on the executor to serialize probes
+    private val executor = Executors.newScheduledThreadPool(4)
+    private val probes = AtomicInteger(0)
+    private val concurrentProbes = AtomicInteger(0)
+    private val maxConcurrentProbes = AtomicInteger(0)
+    @Volatile
+    private var probeBlocker: CountDownLatch? = null
+
+    private val scheduler = ProbeScheduler(executor, {
+        maxConcurrentProbes.accumulateAndGet(concurrentProbes.incrementAndGet(), ::maxOf)
+        probeBlocker?.await(TEST_TIMEOUT_MS, MILLISECONDS)
+        concurrentProbes.decrementAndGet()
+        probes.incrementAndGet()
+    }, TEST_DEBOUNCE_MS, TEST_MAX_DELAY_MS)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    private fun awaitIdle() {
+        // Longer than the maximum delay of any probe
+        Thread.sleep(TEST_MAX_DELAY_MS * 2)
+    }
+
+    @Test
+    fun testBurstIsCollapsed() {
+        repeat(10) { scheduler.requestProbe() }
+        awaitIdle()
+        assertEquals(1, probes.get())
+    }
+
+    @Test
+    fun testRequestsAreDebounced() {
+        scheduler.requestProbe()
+        Thread.sleep(TEST_DEBOUNCE_MS / 2)
+        scheduler.requestProbe()
+        Thread.sleep(TEST_DEBOUNCE_MS / 2)
+        // The first request would be due by now, but the second one pushed it back
+        assertEquals(0, probes.get())
+        awaitIdle()
+        assertEquals(1, probes.get())
+    }
+
+    @Test
+    fun testMaxDelay() {
+        // Requests keep coming faster than the debounce delay: the probe still runs
+        val deadline = System.currentTimeMillis() + TEST_MAX_DELAY_MS * 3
+        while (System.currentTimeMillis() < deadline && probes.get() == 0) {
+            scheduler.requestProbe()
+            Thread.sleep(TEST_DEBOUNCE_MS / 4)
+        }
+        assertTrue(probes.get() > 0, "Probe never ran while requests kept coming")
+    }
+
+    @Test
+    fun testOneInFlightAndOnePending() {
+        val blocker = CountDownLatch(1)
+        probeBlocker = blocker
+        scheduler.requestProbe()
+        // Wait for the first probe to be in flight
+        Thread.sleep(TEST_DEBOUNCE_MS * 2)
+        assertEquals(1, concurrentProbes.get())
+
+        // Requests while in flight are collapsed into a single probe, which waits for the first
+        repeat(3) {
+            scheduler.requestProbe()
+            awaitIdle()
+        }
+        assertEquals(1, concurrentProbes.get())
+        blocker.countDown()
+        awaitIdle()
+
+        assertEquals(2, probes.get())
+        assertEquals(1, maxConcurrentProbes.get())
+    }
+
+    @Test
+    fun testExplicitDelayIsNotDebounced() {
+        scheduler.requestProbe()
+        // Runs before the debounce delay of the first request
+        scheduler.requestProbe(0L /* delayMs */)
+        Thread.sleep(TEST_DEBOUNCE_MS / 2)
+        assertEquals(1, probes.get())
+
+        // Debounced requests can bring forward a probe requested with an explicit delay, but
+        // never postpone it
+        scheduler.requestProbe(TEST_DEBOUNCE_MS * 2)
+        scheduler.requestProbe()
+        Thread.sleep(TEST_DEBOUNCE_MS * 3 / 2)
+        assertEquals(2, probes.get())
+        awaitIdle()
+        assertEquals(2, probes.get())
+    }
+
+    @Test
+    fun testExplicitDelayDoesNotPostponePendingProbe() {
+        scheduler.requestProbe()
+        scheduler.requestProbe(TEST_MAX_DELAY_MS * 2)
+        Thread.sleep(TEST_DEBOUNCE_MS * 2)
+        assertEquals(1, probes.get())
+    }
+
+    @Test
+    fun testSuspendAndResume() {
+        assertFalse(scheduler.resume())
+        scheduler.requestProbe()
+        scheduler.suspend()
+        // Requests are ignored while suspended
+        scheduler.requestProbe(0L /* delayMs */)
+        awaitIdle()
+        assertEquals(0, probes.get())
+
+        assertTrue(scheduler.resume())
+        assertFalse(scheduler.resume())
+        scheduler.requestProbe(0L /* delayMs */)
+        awaitIdle()
+        assertEquals(1, probes.get())
+    }
+
+    @Test
+    fun testSuspendDropsProbeDueAfterInFlightProbe() {
+        val blocker = CountDownLatch(1)
+        probeBlocker = blocker
+        scheduler.requestProbe(0L /* delayMs */)
+        Thread.sleep(TEST_DEBOUNCE_MS)
+        assertEquals(1, concurrentProbes.get())
+        // Becomes due while the first probe is in flight
+        scheduler.requestProbe(0L /* delayMs */)
+        Thread.sleep(TEST_DEBOUNCE_MS)
+
+        scheduler.suspend()
+        blocker.countDown()
+        awaitIdle()
+        assertEquals(1, probes.get())
+    }
+
+    @Test
+    fun testCancel() {
+        scheduler.requestProbe()
+        scheduler.cancel()
+        scheduler.requestProbe()
+        awaitIdle()
+        assertEquals(0, probes.get())
+    }
+}
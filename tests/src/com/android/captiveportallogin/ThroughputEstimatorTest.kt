@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import com.android.captiveportallogin.ThroughputEstimator.MIN_WINDOW_MS
+import com.android.captiveportallogin.ThroughputEstimator.RATE_UNKNOWN
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+private const val HALF_LIFE_MS = 1000L
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ThroughputEstimatorTest {
+    private val estimator = ThroughputEstimator(HALF_LIFE_MS)
+    private var now = 1000L
+
+    /**
+     * Transfer data at the specified rate in bytes/second, for the specified duration.
+     */
+    private fun transfer(rate: Long, durationMs: Long) {
+        val endMs = now + durationMs
+        while (now < endMs) {
+            now += MIN_WINDOW_MS
+            estimator.onBytesTransferred(rate * MIN_WINDOW_MS / 1000, now)
+        }
+    }
+
+    @Test
+    fun testUnknownUntilFirstWindow() {
+        assertEquals(RATE_UNKNOWN, estimator.rate)
+        assertEquals(RATE_UNKNOWN, estimator.estimateRemainingMs(1000))
+        estimator.onBytesTransferred(1000, now)
+        estimator.onBytesTransferred(1000, now + MIN_WINDOW_MS / 2)
+        assertEquals(RATE_UNKNOWN, estimator.rate)
+        assertEquals(2000, estimator.totalBytes)
+    }
+
+    @Test
+    fun testSteadyRate() {
+        estimator.onBytesTransferred(0, now)
+        transfer(100_000L, 5_000L)
+        assertEquals(100_000L, estimator.rate)
+        assertEquals(2_000L, estimator.estimateRemainingMs(200_000L))
+        assertEquals(500_000L, estimator.totalBytes)
+    }
+
+    @Test
+    fun testRateChangeIsSmoothed() {
+        estimator.onBytesTransferred(0, now)
+        transfer(100_000L, 5_000L)
+
+        // After one half-life at the new rate, the estimate is halfway to it
+        transfer(300_000L, HALF_LIFE_MS)
+        assertEquals(200_000L, estimator.rate)
+
+        // ... and converges to the new rate after a few more
+        transfer(300_000L, 10 * HALF_LIFE_MS)
+        assertTrue(estimator.rate > 299_000L)
+    }
+
+    @Test
+    fun testStall() {
+        estimator.onBytesTransferred(0, now)
+        transfer(100_000L, 5_000L)
+        transfer(0L, 10 * HALF_LIFE_MS)
+        assertTrue(estimator.rate < 1_000L)
+
+        estimator.reset()
+        assertEquals(RATE_UNKNOWN, estimator.rate)
+        assertEquals(0, estimator.totalBytes)
+    }
+}